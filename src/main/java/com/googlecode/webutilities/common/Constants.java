@@ -91,6 +91,14 @@ public final class Constants {
 
     public static final String HTTP_IF_MODIFIED_SINCE = "If-Modified-Since";
 
+    public static final String HTTP_RANGE_HEADER = "Range";
+
+    public static final String HTTP_IF_RANGE_HEADER = "If-Range";
+
+    public static final String HTTP_ACCEPT_RANGES_HEADER = "Accept-Ranges";
+
+    public static final String HTTP_CONTENT_RANGE_HEADER = "Content-Range";
+
     public static final String CONTENT_ENCODING_GZIP = "gzip";
 
     public static final String CONTENT_ENCODING_COMPRESS = "compress";
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2010-2016 Rajendra Patil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.webutilities.common;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+
+/**
+ * Response wrapper that streams the body to the wrapped response as it is written, keeping a copy of it.
+ * <p>
+ * Unlike {@link WebUtilitiesResponseWrapper}, which holds the whole body till {@link #fill(HttpServletResponse)}, bytes
+ * reach the client while the chain is still writing, and the body is not copied again to be sent. Copy is kept only up
+ * to max capture bytes: once the body grows past that, the copy is dropped and {@link #isCaptured()} is false, so huge
+ * responses are not held in memory just to find out they are too big to cache. Headers and status go through as with
+ * the base wrapper, which means whatever is set after the response is committed doesn't reach the client.
+ * </p>
+ *
+ * @author rpatil
+ * @version 1.0
+ */
+public class TeeResponseWrapper extends WebUtilitiesResponseWrapper {
+
+    private final TeeOutputStream stream;
+
+    private boolean getWriterCalled = false;
+
+    private boolean getStreamCalled = false;
+
+    private PrintWriter printWriter;
+
+    /**
+     * @param response        - response to stream the body to
+     * @param maxCaptureBytes - bytes of the body to keep a copy of, 0 to keep none
+     */
+    public TeeResponseWrapper(HttpServletResponse response, int maxCaptureBytes) {
+        super(response);
+        this.stream = new TeeOutputStream(response, maxCaptureBytes);
+    }
+
+    /**
+     * @return true if the whole body was captured
+     */
+    public boolean isCaptured() {
+        this.flushWriter();
+        return stream.capture != null;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        if (getWriterCalled) {
+            throw new IllegalStateException("getWriter already called.");
+        }
+        getStreamCalled = true;
+        return stream;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        if (getStreamCalled) {
+            throw new IllegalStateException("getStream already called.");
+        }
+        getWriterCalled = true;
+        if (printWriter == null) {
+            printWriter = new PrintWriter(new OutputStreamWriter(stream, this.getCharacterEncoding()));
+        }
+        return printWriter;
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+        this.flushWriter();
+        stream.flush();
+    }
+
+    @Override
+    public void reset() {
+        this.resetBuffer();
+    }
+
+    @Override
+    public void resetBuffer() {
+        this.flushWriter();
+        getResponse().resetBuffer(); //throws if already committed
+        stream.reset();
+    }
+
+    @Override
+    public int getSize() {
+        this.flushWriter();
+        return stream.size;
+    }
+
+    /**
+     * @return captured body
+     * @throws IllegalStateException if the body was not captured
+     */
+    @Override
+    public byte[] getBytes() {
+        this.flushWriter();
+        if (stream.capture == null) {
+            throw new IllegalStateException("Body of " + stream.size + " bytes was not captured.");
+        }
+        return stream.capture.toByteArray();
+    }
+
+    private void flushWriter() {
+        if (printWriter != null) {
+            printWriter.flush();
+        }
+    }
+
+    /**
+     * Body is sent already, so only flushes what is left in the writer. Headers are not set again.
+     */
+    @Override
+    public void fill(HttpServletResponse response) throws IOException {
+        this.flushBuffer();
+    }
+
+    private static final class TeeOutputStream extends ServletOutputStream {
+
+        private final HttpServletResponse response;
+
+        private final int maxCaptureBytes;
+
+        private ServletOutputStream target;
+
+        private ByteArrayOutputStream capture;
+
+        private int size;
+
+        private TeeOutputStream(HttpServletResponse response, int maxCaptureBytes) {
+            this.response = response;
+            this.maxCaptureBytes = maxCaptureBytes;
+            this.capture = new ByteArrayOutputStream(Math.max(0, Math.min(maxCaptureBytes, 8192)));
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.target().write(b);
+            this.captured(1);
+            if (capture != null) {
+                capture.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            this.target().write(b, off, len);
+            this.captured(len);
+            if (capture != null) {
+                capture.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (target != null) {
+                target.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.target().close();
+        }
+
+        @Override
+        public boolean isReady() {
+            return target == null || target.isReady();
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            try {
+                this.target().setWriteListener(writeListener); //bytes go straight to the client, so does async IO
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        private ServletOutputStream target() throws IOException {
+            if (target == null) {
+                target = response.getOutputStream();
+            }
+            return target;
+        }
+
+        private void captured(int length) {
+            size += length;
+            if (capture != null && size > maxCaptureBytes) {
+                capture = null; //too big, stop copying
+            }
+        }
+
+        private void reset() {
+            size = 0;
+            capture = new ByteArrayOutputStream(Math.max(0, Math.min(maxCaptureBytes, 8192)));
+        }
+    }
+}
@@ -217,6 +217,14 @@ public class WebUtilitiesResponseWrapper extends HttpServletResponseWrapper {
         return stream.getByteArrayOutputStream().toByteArray();
     }
 
+    /**
+     * @return bytes written to the body so far
+     */
+    public int getSize() {
+        flushWriter();
+        return stream.getByteArrayOutputStream().size();
+    }
+
     public WebUtilitiesResponseWrapper(HttpServletResponse response) {
         super(response);
         stream = new WebUtilitiesResponseOutputStream(this);
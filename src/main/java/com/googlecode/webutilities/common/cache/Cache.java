@@ -16,8 +16,20 @@
 
 package com.googlecode.webutilities.common.cache;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * Cache Provider responsible for Cache management - put/get/invalidate etc.
+ * <p>
+ * Bulk operations default to one call per key, providers that can do them in one round trip override them.
+ * </p>
+ * <p>
+ * Entries can be put with tags (like the resources they were built from), and then invalidated by tag without
+ * touching the rest of the cache. Plain {@link #put(Object, Object)} keeps the tags the entry already has. Providers
+ * that can't look entries up by tag invalidate everything instead.
+ * </p>
  */
 
 public interface Cache<K, V> {
@@ -32,4 +44,47 @@ public interface Cache<K, V> {
 
     void cleanup();
 
+    /**
+     * @param keys - keys to look up
+     * @return values of the keys that are in the cache
+     */
+    default Map<K, V> getAll(Iterable<? extends K> keys) {
+        Map<K, V> values = new HashMap<>();
+        for (K key : keys) {
+            V value = this.get(key);
+            if (value != null) {
+                values.put(key, value);
+            }
+        }
+        return values;
+    }
+
+    default void putAll(Map<? extends K, ? extends V> entries) {
+        for (Map.Entry<? extends K, ? extends V> entry : entries.entrySet()) {
+            this.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    default void invalidateAll(Iterable<? extends K> keys) {
+        for (K key : keys) {
+            this.invalidate(key);
+        }
+    }
+
+    /**
+     * @param key   - key
+     * @param value - value
+     * @param tags  - tags of the entry, replacing the ones it had
+     */
+    default void put(K key, V value, Collection<String> tags) {
+        this.put(key, value);
+    }
+
+    /**
+     * @param tag - tag of the entries to invalidate
+     */
+    default void invalidateTag(String tag) {
+        this.invalidateAll();
+    }
+
 }
@@ -21,7 +21,17 @@ package com.googlecode.webutilities.common.cache;
  */
 public class CacheConfig<K, V> {
 
-    public enum CacheProvider {DEFAULT, MEMCACHED, REDIS, COUCHBASE}
+    public enum CacheProvider {DEFAULT, MEMCACHED, REDIS, COUCHBASE, OFF_HEAP}
+
+    public static final long DEFAULT_MAX_OFF_HEAP_BYTES = 64 * 1024 * 1024; //64 MB
+
+    public static final long DEFAULT_LOCAL_MAXIMUM_WEIGHT = 16 * 1024 * 1024; //16 MB
+
+    public static final int DEFAULT_LOCAL_TTL = 60; //seconds
+
+    public static final int DEFAULT_OPERATION_TIMEOUT = 500; //millis
+
+    public static final int DEFAULT_WRITE_BEHIND_QUEUE_SIZE = 1000;
 
     private CacheProvider provider;
 
@@ -33,6 +43,30 @@ public class CacheConfig<K, V> {
 
     private int resetTime;
 
+    private long maxOffHeapBytes = DEFAULT_MAX_OFF_HEAP_BYTES;
+
+    private long maximumWeight;
+
+    private int expireAfterAccess;
+
+    private boolean tinyLfu;
+
+    private boolean localTier;
+
+    private long localMaximumWeight = DEFAULT_LOCAL_MAXIMUM_WEIGHT;
+
+    private int localTtl = DEFAULT_LOCAL_TTL;
+
+    private boolean binaryProtocol;
+
+    private int operationTimeout = DEFAULT_OPERATION_TIMEOUT;
+
+    private int compressThreshold; //bytes, 0 - don't compress
+
+    private boolean writeBehind;
+
+    private int writeBehindQueueSize = DEFAULT_WRITE_BEHIND_QUEUE_SIZE;
+
     public CacheConfig() {
         this.provider = CacheProvider.DEFAULT;
     }
@@ -95,6 +129,129 @@ public class CacheConfig<K, V> {
         this.resetTime = resetTime;
     }
 
+    /**
+     * @return most bytes of direct memory OFF_HEAP cache takes for the bodies
+     */
+    public long getMaxOffHeapBytes() {
+        return maxOffHeapBytes;
+    }
+
+    public void setMaxOffHeapBytes(long maxOffHeapBytes) {
+        this.maxOffHeapBytes = maxOffHeapBytes;
+    }
+
+    /**
+     * @return most bytes (bodies and headers) DEFAULT cache holds, 0 to bind it by GC pressure (soft values) instead
+     */
+    public long getMaximumWeight() {
+        return maximumWeight;
+    }
+
+    public void setMaximumWeight(long maximumWeight) {
+        this.maximumWeight = maximumWeight;
+    }
+
+    /**
+     * @return seconds after last access an entry of DEFAULT cache expires, 0 for never
+     */
+    public int getExpireAfterAccess() {
+        return expireAfterAccess;
+    }
+
+    public void setExpireAfterAccess(int expireAfterAccess) {
+        this.expireAfterAccess = expireAfterAccess;
+    }
+
+    /**
+     * @return true if DEFAULT cache, when full, admits only entries used more often than what they'd evict
+     */
+    public boolean isTinyLfu() {
+        return tinyLfu;
+    }
+
+    public void setTinyLfu(boolean tinyLfu) {
+        this.tinyLfu = tinyLfu;
+    }
+
+    /**
+     * @return true if MEMCACHED, REDIS or COUCHBASE cache gets an in process cache in front of it
+     */
+    public boolean isLocalTier() {
+        return localTier;
+    }
+
+    public void setLocalTier(boolean localTier) {
+        this.localTier = localTier;
+    }
+
+    /**
+     * @return most bytes the in process tier holds
+     */
+    public long getLocalMaximumWeight() {
+        return localMaximumWeight;
+    }
+
+    public void setLocalMaximumWeight(long localMaximumWeight) {
+        this.localMaximumWeight = localMaximumWeight;
+    }
+
+    /**
+     * @return seconds an entry lives in the in process tier
+     */
+    public int getLocalTtl() {
+        return localTtl;
+    }
+
+    public void setLocalTtl(int localTtl) {
+        this.localTtl = localTtl;
+    }
+
+    /**
+     * @return true if MEMCACHED cache is to talk binary protocol instead of text
+     */
+    public boolean isBinaryProtocol() {
+        return binaryProtocol;
+    }
+
+    public void setBinaryProtocol(boolean binaryProtocol) {
+        this.binaryProtocol = binaryProtocol;
+    }
+
+    /**
+     * @return millis to wait for distributed cache operation, after which a get is taken as a miss
+     */
+    public int getOperationTimeout() {
+        return operationTimeout;
+    }
+
+    public void setOperationTimeout(int operationTimeout) {
+        this.operationTimeout = operationTimeout;
+    }
+
+    public int getCompressThreshold() {
+        return compressThreshold;
+    }
+
+    public void setCompressThreshold(int compressThreshold) {
+        this.compressThreshold = compressThreshold;
+    }
+
+    public boolean isWriteBehind() {
+        return writeBehind;
+    }
+
+    public void setWriteBehind(boolean writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+
+    public int getWriteBehindQueueSize() {
+        return writeBehindQueueSize;
+    }
+
+    public void setWriteBehindQueueSize(int writeBehindQueueSize) {
+        this.writeBehindQueueSize = writeBehindQueueSize;
+    }
+
     @Override
     public String toString() {
         return "CacheConfig{" +
@@ -103,6 +260,18 @@ public class CacheConfig<K, V> {
                 ", portNumber=" + portNumber +
                 ", reloadTime=" + reloadTime +
                 ", resetTime=" + resetTime +
+                ", maxOffHeapBytes=" + maxOffHeapBytes +
+                ", maximumWeight=" + maximumWeight +
+                ", expireAfterAccess=" + expireAfterAccess +
+                ", tinyLfu=" + tinyLfu +
+                ", localTier=" + localTier +
+                ", localMaximumWeight=" + localMaximumWeight +
+                ", localTtl=" + localTtl +
+                ", binaryProtocol=" + binaryProtocol +
+                ", operationTimeout=" + operationTimeout +
+                ", compressThreshold=" + compressThreshold +
+                ", writeBehind=" + writeBehind +
+                ", writeBehindQueueSize=" + writeBehindQueueSize +
                 '}';
     }
 }
@@ -16,10 +16,14 @@
 
 package com.googlecode.webutilities.common.cache;
 
+import com.googlecode.webutilities.common.cache.impl.CompressingCache;
 import com.googlecode.webutilities.common.cache.impl.CouchbaseCache;
 import com.googlecode.webutilities.common.cache.impl.GoogleCache;
 import com.googlecode.webutilities.common.cache.impl.MemcachedCache;
+import com.googlecode.webutilities.common.cache.impl.OffHeapCache;
 import com.googlecode.webutilities.common.cache.impl.RedisCache;
+import com.googlecode.webutilities.common.cache.impl.TieredCache;
+import com.googlecode.webutilities.common.cache.impl.WriteBehindCache;
 
 import java.io.IOException;
 
@@ -33,18 +37,42 @@ public class CacheFactory {
     }
 
     public static <K, V> Cache<K, V> getCache(CacheConfig<K, V> config) throws IOException {
+        Cache<K, V> cache = provided(config);
+        return config.getCompressThreshold() > 0 ? new CompressingCache<>(config, cache) : cache;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K, V> Cache<K, V> provided(CacheConfig<K, V> config) throws IOException {
         if (CacheConfig.CacheProvider.MEMCACHED.equals(config.getProvider())) {
-            return new MemcachedCache<>(config);
+            return tiered(config, new MemcachedCache<>(config));
         } else if (CacheConfig.CacheProvider.REDIS.equals(config.getProvider())) {
-            return new RedisCache<>(config);
+            return tiered(config, new RedisCache<>(config));
         } else if (CacheConfig.CacheProvider.COUCHBASE.equals(config.getProvider())) {
-            return new CouchbaseCache<>(config);
+            return tiered(config, new CouchbaseCache<>(config));
+        } else if (CacheConfig.CacheProvider.OFF_HEAP.equals(config.getProvider())) {
+            return (Cache<K, V>) new OffHeapCache<>((CacheConfig<K, CachedResponse>) config); //holds CachedResponse only
         } else {
-            return new GoogleCache<>(new CacheConfig<>());
+            return new GoogleCache<>(config);
+        }
+    }
+
+    private static <K, V> Cache<K, V> tiered(CacheConfig<K, V> config, Cache<K, V> remote) {
+        if (config.isWriteBehind()) {
+            remote = new WriteBehindCache<>(config, remote);
         }
+        return config.isLocalTier() ? new TieredCache<>(config, remote) : remote;
     }
 
     public static boolean isCacheProvider(Cache cache, CacheConfig.CacheProvider provider) {
+        if (cache instanceof CompressingCache) {
+            cache = ((CompressingCache) cache).getDelegate();
+        }
+        if (cache instanceof TieredCache) {
+            cache = ((TieredCache) cache).getRemote(); //provider of the remote tier
+        }
+        if (cache instanceof WriteBehindCache) {
+            cache = ((WriteBehindCache) cache).getDelegate();
+        }
         return cache != null
                 && provider != null
                 && ((CacheConfig.CacheProvider.MEMCACHED.equals(provider)
@@ -53,6 +81,8 @@ public class CacheFactory {
                 && cache instanceof RedisCache)
                 || (CacheConfig.CacheProvider.COUCHBASE.equals(provider)
                 && cache instanceof CouchbaseCache)
+                || (CacheConfig.CacheProvider.OFF_HEAP.equals(provider)
+                && cache instanceof OffHeapCache)
                 || (CacheConfig.CacheProvider.DEFAULT.equals(provider)
                 && cache instanceof GoogleCache));
     }
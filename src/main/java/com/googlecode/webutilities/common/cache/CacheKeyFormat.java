@@ -0,0 +1,119 @@
+/*
+ * Copyright 2010-2016 Rajendra Patil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.webutilities.common.cache;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cache key format compiled to the list of request attributes it is built from.
+ * <p>
+ * Format is comma separated list of <code>queryString</code>, <code>header=Name</code> and <code>parameter=name</code>
+ * (request URI is always the first part of the key). It is parsed once, and each key is then built by running the
+ * compiled parts over the request into a per thread buffer. Key can optionally be hashed (128 bit murmur3, 32 hex
+ * chars) so that long URIs and headers don't make long keys in the cache (and on the wire for distributed caches).
+ * </p>
+ *
+ * @author rpatil
+ * @version 1.0
+ */
+public final class CacheKeyFormat {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CacheKeyFormat.class.getName());
+
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    private static final int MAX_BUFFER_CAPACITY = 4096; //don't keep huge buffers around
+
+    private static final ThreadLocal<StringBuilder> BUFFER = ThreadLocal.withInitial(() -> new StringBuilder(256));
+
+    private static final String SEPARATOR = "+";
+
+    private final KeyPart[] parts;
+
+    private final boolean hashed;
+
+    private CacheKeyFormat(KeyPart[] parts, boolean hashed) {
+        this.parts = parts;
+        this.hashed = hashed;
+    }
+
+    /**
+     * @param format - comma separated list of key attributes, unknown ones are ignored
+     * @param hashed - whether to hash the key
+     * @return compiled format
+     */
+    public static CacheKeyFormat compile(String format, boolean hashed) {
+        List<KeyPart> parts = new ArrayList<>();
+        parts.add((request, key) -> key.append(request.getRequestURI()));
+        for (String attribute : format != null ? format.split(",") : new String[0]) {
+            String keyAttribute = attribute.trim();
+            String lowerCased = keyAttribute.toLowerCase();
+            if (lowerCased.equals("uri") || keyAttribute.isEmpty()) {
+                continue; //always part of the key
+            }
+            if (lowerCased.equals("querystring")) {
+                parts.add((request, key) -> {
+                    if (request.getQueryString() != null) {
+                        key.append(SEPARATOR).append(request.getQueryString());
+                    }
+                });
+            } else if (lowerCased.startsWith("header=")) {
+                final String header = keyAttribute.substring(7).trim();
+                parts.add((request, key) -> key.append(SEPARATOR).append(request.getHeader(header)));
+            } else if (lowerCased.startsWith("parameter=")) {
+                final String parameter = keyAttribute.substring(10).trim();
+                parts.add((request, key) -> key.append(SEPARATOR).append(request.getParameter(parameter)));
+            } else {
+                LOGGER.debug("Ignoring unknown cache key attribute: {}", keyAttribute);
+            }
+        }
+        return new CacheKeyFormat(parts.toArray(new KeyPart[parts.size()]), hashed);
+    }
+
+    public boolean isHashed() {
+        return hashed;
+    }
+
+    /**
+     * @param request - HttpServletRequest
+     * @return cache key for the request
+     */
+    public String keyFor(HttpServletRequest request) {
+        StringBuilder key = BUFFER.get();
+        key.setLength(0);
+        for (KeyPart part : parts) {
+            part.appendTo(request, key);
+        }
+        String cacheKey = hashed ? HASH_FUNCTION.hashString(key, Charsets.UTF_8).toString() : key.toString();
+        if (key.capacity() > MAX_BUFFER_CAPACITY) {
+            BUFFER.remove();
+        }
+        return cacheKey;
+    }
+
+    private interface KeyPart {
+        void appendTo(HttpServletRequest request, StringBuilder key);
+    }
+}
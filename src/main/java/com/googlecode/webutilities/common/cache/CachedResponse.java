@@ -20,14 +20,43 @@ import com.googlecode.webutilities.common.WebUtilitiesResponseWrapper;
 
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.*;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
 
+import static com.googlecode.webutilities.common.Constants.*;
+
+/**
+ * Response as cached by <code>ResponseCacheFilter</code>.
+ * <p>
+ * Besides the body as rendered, it can hold gzip and deflate encoded copies of the body, made the first time a client
+ * accepting that encoding asks for it (see {@link #toResponse(HttpServletResponse, String)}), so that cache hits don't
+ * have to be compressed again and again.
+ * </p>
+ * <p>
+ * Body can also be kept compressed (Deflate, fastest level) while the response sits in a cache, see
+ * {@link #compressed(int)} and {@link #decompressed()}.
+ * </p>
+ */
 public class CachedResponse implements Serializable {
 
     static final long serialVersionUID = 1L;
 
+    /**
+     * Codec of the body compressed by {@link #compressed(int)}
+     */
+    public static final String BODY_CODEC_DEFLATE = "deflate-1";
+
+    private static final Pattern NOT_ACCEPTABLE = Pattern.compile("q\\s*=\\s*0(\\.0*)?");
+
     private Map<String, Serializable> headers = new HashMap<>();
 
     private Set<Cookie> cookies = new HashSet<>();
@@ -44,6 +73,12 @@ public class CachedResponse implements Serializable {
 
     private long time;
 
+    private volatile byte[] gzipData;
+
+    private volatile byte[] deflateData;
+
+    private String bodyCodec; //null if body is as rendered
+
     public CachedResponse(long time, WebUtilitiesResponseWrapper response) {
         this.time = time;
         this.fromResponse(response);
@@ -57,14 +92,250 @@ public class CachedResponse implements Serializable {
         this.encoding = response.getCharacterEncoding();
         this.contentType = response.getContentType();
         this.locale = response.getLocale();
+        this.gzipData = null;
+        this.deflateData = null;
+    }
+
+    private CachedResponse(CachedResponse response, byte[][] bodies) {
+        this(response, bodies, response.bodyCodec);
+    }
+
+    private CachedResponse(CachedResponse response, byte[][] bodies, String bodyCodec) {
+        this.headers = response.headers;
+        this.cookies = response.cookies;
+        this.status = response.status;
+        this.encoding = response.encoding;
+        this.contentType = response.contentType;
+        this.locale = response.locale;
+        this.time = response.time;
+        this.data = bodies[0];
+        this.gzipData = bodies[1];
+        this.deflateData = bodies[2];
+        this.bodyCodec = bodyCodec;
+    }
+
+    CachedResponse(long time, int status, Map<String, Serializable> headers, Set<Cookie> cookies, String encoding,
+                   String contentType, Locale locale, byte[][] bodies, String bodyCodec) {
+        this.time = time;
+        this.status = status;
+        this.headers = headers;
+        this.cookies = cookies;
+        this.encoding = encoding;
+        this.contentType = contentType;
+        this.locale = locale;
+        this.data = bodies[0];
+        this.gzipData = bodies[1];
+        this.deflateData = bodies[2];
+        this.bodyCodec = bodyCodec;
     }
 
     public long getTime() {
         return time;
     }
 
+    int getStatus() {
+        return status;
+    }
+
+    Map<String, Serializable> getHeaders() {
+        return headers;
+    }
+
+    Set<Cookie> getCookies() {
+        return cookies;
+    }
+
+    String getEncoding() {
+        return encoding;
+    }
+
+    String getContentType() {
+        return contentType;
+    }
+
+    Locale getLocale() {
+        return locale;
+    }
+
+    /**
+     * @return codec the body is compressed with, null if it is as rendered
+     */
+    public String getBodyCodec() {
+        return bodyCodec;
+    }
+
+    /**
+     * @param threshold - bytes the body must have to be compressed
+     * @return copy of this response with the body compressed, or this response if body is smaller than threshold, is
+     * compressed already or doesn't get smaller
+     */
+    public CachedResponse compressed(int threshold) {
+        if (this.bodyCodec != null || this.data == null || this.data.length < threshold) return this;
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(this.data);
+            deflater.finish();
+            byte[] buffer = new byte[this.data.length];
+            int length = 0;
+            while (!deflater.finished() && length < buffer.length) {
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+            if (!deflater.finished()) return this; //not worth it
+            return new CachedResponse(this, new byte[][]{Arrays.copyOf(buffer, length), this.gzipData, this.deflateData},
+                    BODY_CODEC_DEFLATE);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @return copy of this response with the body as rendered, or this response if it is not compressed
+     */
+    public CachedResponse decompressed() {
+        if (this.bodyCodec == null) return this;
+        if (!BODY_CODEC_DEFLATE.equals(this.bodyCodec)) {
+            throw new IllegalStateException("Unknown body codec: " + this.bodyCodec);
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(this.data);
+            ByteArrayOutputStream body = new ByteArrayOutputStream(this.data.length * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalStateException("Truncated compressed body");
+                }
+                body.write(buffer, 0, length);
+            }
+            return new CachedResponse(this, new byte[][]{body.toByteArray(), this.gzipData, this.deflateData}, null);
+        } catch (DataFormatException ex) {
+            throw new IllegalStateException("Corrupt compressed body", ex);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * @return identity, gzip and deflate bodies, in that order (encoded ones null if not made yet)
+     */
+    public byte[][] getBodies() {
+        return new byte[][]{this.data, this.gzipData, this.deflateData};
+    }
+
+    /**
+     * @return approximate bytes this response takes in memory: bodies, headers and a fixed overhead
+     */
+    public int weight() {
+        long weight = 256;
+        for (byte[] body : this.getBodies()) {
+            weight += body != null ? body.length : 0;
+        }
+        for (Map.Entry<String, Serializable> header : this.headers.entrySet()) {
+            weight += 2 * (header.getKey().length() + String.valueOf(header.getValue()).length()) + 64;
+        }
+        return (int) Math.min(weight, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param bodies - identity, gzip and deflate bodies, in that order (as in {@link #getBodies()})
+     * @return copy of this response (sharing its headers and cookies) with the given bodies
+     */
+    public CachedResponse withBodies(byte[][] bodies) {
+        return new CachedResponse(this, bodies);
+    }
+
     public void toResponse(HttpServletResponse response) {
+        this.writeHeaders(response);
+        this.writeBody(response, this.data);
+    }
+
+    /**
+     * Same as {@link #toResponse(HttpServletResponse)}, but sends the body gzip or deflate encoded (with
+     * <code>Content-Encoding</code> and <code>Vary: Accept-Encoding</code> headers) if the client accepts it. Encoded
+     * body is made on first use and kept with this response.
+     *
+     * @param response       - HttpServletResponse
+     * @param acceptEncoding - Accept-Encoding header of the request
+     * @return true if encoded body was made for this call, i.e. this response changed and may need to be cached again
+     */
+    public boolean toResponse(HttpServletResponse response, String acceptEncoding) {
+        if (!this.isCompressible()) {
+            this.toResponse(response);
+            return false;
+        }
+        String contentEncoding = encodingFor(acceptEncoding);
+        byte[] body = CONTENT_ENCODING_GZIP.equals(contentEncoding) ? gzipData
+                : CONTENT_ENCODING_DEFLATE.equals(contentEncoding) ? deflateData : this.data;
+        boolean made = false;
+        if (body == null) {
+            body = encode(this.data, contentEncoding);
+            if (CONTENT_ENCODING_GZIP.equals(contentEncoding)) {
+                gzipData = body;
+            } else {
+                deflateData = body;
+            }
+            made = true;
+        }
+        this.writeHeaders(response);
+        response.addHeader(HTTP_VARY_HEADER, HTTP_ACCEPT_ENCODING_HEADER);
+        if (body != this.data) { // not worth encoding otherwise
+            response.setHeader(HTTP_CONTENT_ENCODING_HEADER, contentEncoding);
+        }
+        response.setContentLength(body.length);
+        this.writeBody(response, body);
+        return made;
+    }
 
+    /**
+     * @param acceptEncoding - Accept-Encoding header of the request
+     * @return gzip or deflate, whichever comes first in accept encoding, null if neither is accepted
+     */
+    public static String encodingFor(String acceptEncoding) {
+        if (acceptEncoding == null) return null;
+        for (String accepts : acceptEncoding.split(",")) {
+            int semicolon = accepts.indexOf(';');
+            String coding = (semicolon < 0 ? accepts : accepts.substring(0, semicolon)).trim().toLowerCase();
+            if (semicolon >= 0 && NOT_ACCEPTABLE.matcher(accepts.substring(semicolon + 1).trim()).matches()) {
+                continue; //not acceptable
+            }
+            if (CONTENT_ENCODING_GZIP.equals(coding) || "*".equals(coding)) {
+                return CONTENT_ENCODING_GZIP;
+            } else if (CONTENT_ENCODING_DEFLATE.equals(coding)) {
+                return CONTENT_ENCODING_DEFLATE;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the body is text like and is not already encoded
+     */
+    private boolean isCompressible() {
+        if (this.data == null || this.data.length == 0 || this.contentType == null) return false;
+        for (String headerName : this.headers.keySet()) {
+            if (HTTP_CONTENT_ENCODING_HEADER.equalsIgnoreCase(headerName)) return false;
+        }
+        String type = this.contentType.toLowerCase();
+        return type.startsWith("text/") || type.contains("javascript") || type.contains("json")
+                || type.contains("xml") || type.contains("css");
+    }
+
+    /**
+     * @return encoded bytes, or the same bytes if encoding doesn't make them smaller
+     */
+    private static byte[] encode(byte[] data, String contentEncoding) {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream(Math.max(data.length / 3, 64));
+        try (OutputStream out = CONTENT_ENCODING_GZIP.equals(contentEncoding)
+                ? new GZIPOutputStream(encoded) : new DeflaterOutputStream(encoded)) {
+            out.write(data);
+        } catch (IOException ex) {
+            return data; //in memory, doesn't happen
+        }
+        return encoded.size() < data.length ? encoded.toByteArray() : data;
+    }
+
+    private void writeHeaders(HttpServletResponse response) {
         this.cookies.forEach(response::addCookie);
         for (String headerName : this.headers.keySet()) {
             Object value = this.headers.get(headerName);
@@ -83,13 +354,15 @@ public class CachedResponse implements Serializable {
 
         if (this.status > 0)
             response.setStatus(this.status);
+    }
 
+    private void writeBody(HttpServletResponse response, byte[] body) {
         try {
-            response.getOutputStream().write(this.data);
+            response.getOutputStream().write(body);
             response.getOutputStream().close();
         } catch (IOException ex) {
             try {
-                response.getWriter().write(new String(this.data));
+                response.getWriter().write(new String(body));
                 response.getWriter().close();
             } catch (Exception ex1) {
                 //LOGGER.error(ex1.getMessage(), ex1);
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2010-2016 Rajendra Patil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.webutilities.common.cache;
+
+import com.google.common.base.Charsets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.Cookie;
+import java.io.*;
+import java.util.*;
+
+/**
+ * Binary format of {@link CachedResponse} for the distributed caches.
+ * <p>
+ * Response is written as a magic number and format version, followed by time, status, character encoding, content type,
+ * locale, header table (name, type and value of each), cookies and the bodies, all length prefixed. Encoded (gzip,
+ * deflate) bodies are written only if they were made, as told by a flags byte. It takes a fraction of the bytes and
+ * time of Java serialization, which writes class descriptors and whole <code>Cookie</code> and <code>Locale</code>
+ * objects, and reads them back reflectively.
+ * </p>
+ * <p>
+ * Identity body kept compressed by {@link CachedResponse#compressed(int)} is written as it is, and its codec is
+ * recorded with a flag. Such responses are written as format version 2, so that releases which only know version 1
+ * read them as a miss instead of serving the compressed bytes.
+ * </p>
+ * <p>
+ * {@link #toBytes(Object)} and {@link #toObject(byte[])} use this format for responses and Java serialization for any
+ * other value, telling them apart on read by the magic number. Bytes of a format version this class doesn't know
+ * (written by a newer release sharing the cache) are read as a miss.
+ * </p>
+ *
+ * @author rpatil
+ * @version 1.0
+ */
+public final class CachedResponseCodec {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CachedResponseCodec.class.getName());
+
+    private static final int MAGIC = 0x5755; // "WU", Java serialization starts with 0xACED
+
+    private static final int VERSION = 1;
+
+    private static final int COMPRESSED_BODY_VERSION = 2;
+
+    private static final int HAS_GZIP = 1;
+
+    private static final int HAS_DEFLATE = 1 << 1;
+
+    private static final int BODY_DEFLATED = 1 << 2; //identity body is CachedResponse.BODY_CODEC_DEFLATE compressed
+
+    private static final byte STRING_HEADER = 0;
+
+    private static final byte DATE_HEADER = 1;
+
+    private static final byte INT_HEADER = 2;
+
+    private CachedResponseCodec() {
+    } //non instantiable
+
+    /**
+     * @param response - response to encode
+     * @return bytes of the response
+     */
+    public static byte[] encode(CachedResponse response) {
+        byte[][] bodies = response.getBodies();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256 + (bodies[0] != null ? bodies[0].length : 0));
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            String bodyCodec = response.getBodyCodec();
+            if (bodyCodec != null && !CachedResponse.BODY_CODEC_DEFLATE.equals(bodyCodec)) {
+                throw new IllegalArgumentException("Unknown body codec: " + bodyCodec);
+            }
+            out.writeShort(MAGIC);
+            out.writeByte(bodyCodec != null ? COMPRESSED_BODY_VERSION : VERSION);
+            out.writeByte((bodies[1] != null ? HAS_GZIP : 0) | (bodies[2] != null ? HAS_DEFLATE : 0)
+                    | (bodyCodec != null ? BODY_DEFLATED : 0));
+            out.writeLong(response.getTime());
+            out.writeInt(response.getStatus());
+            writeString(out, response.getEncoding());
+            writeString(out, response.getContentType());
+            writeString(out, response.getLocale() != null ? response.getLocale().toLanguageTag() : null);
+            Map<String, Serializable> headers = response.getHeaders();
+            out.writeInt(headers.size());
+            for (Map.Entry<String, Serializable> header : headers.entrySet()) {
+                writeString(out, header.getKey());
+                Object value = header.getValue();
+                if (value instanceof Long) {
+                    out.writeByte(DATE_HEADER);
+                    out.writeLong((Long) value);
+                } else if (value instanceof Integer) {
+                    out.writeByte(INT_HEADER);
+                    out.writeInt((Integer) value);
+                } else {
+                    out.writeByte(STRING_HEADER);
+                    writeString(out, String.valueOf(value));
+                }
+            }
+            Set<Cookie> cookies = response.getCookies();
+            out.writeInt(cookies.size());
+            for (Cookie cookie : cookies) {
+                writeString(out, cookie.getName());
+                writeString(out, cookie.getValue());
+                writeString(out, cookie.getDomain());
+                writeString(out, cookie.getPath());
+                writeString(out, cookie.getComment());
+                out.writeInt(cookie.getMaxAge());
+                out.writeInt(cookie.getVersion());
+                out.writeBoolean(cookie.getSecure());
+                out.writeBoolean(cookie.isHttpOnly());
+            }
+            for (byte[] body : bodies) {
+                writeBytes(out, body);
+            }
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex); //in memory, doesn't happen
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param bytes - bytes written by {@link #encode(CachedResponse)}
+     * @return the response, null if bytes are not of a known version of the format
+     */
+    public static CachedResponse decode(byte[] bytes) {
+        if (!isEncodedResponse(bytes)) return null;
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            in.readShort();
+            int version = in.readUnsignedByte();
+            if (version != VERSION && version != COMPRESSED_BODY_VERSION) {
+                LOGGER.debug("Unknown cached response format version: {}", version);
+                return null;
+            }
+            int flags = in.readUnsignedByte();
+            long time = in.readLong();
+            int status = in.readInt();
+            String encoding = readString(in);
+            String contentType = readString(in);
+            String languageTag = readString(in);
+            int headerCount = in.readInt();
+            Map<String, Serializable> headers = new HashMap<>(Math.max(16, headerCount * 2));
+            for (int i = 0; i < headerCount; i++) {
+                String name = readString(in);
+                byte type = in.readByte();
+                headers.put(name, type == DATE_HEADER ? Long.valueOf(in.readLong())
+                        : type == INT_HEADER ? Integer.valueOf(in.readInt()) : readString(in));
+            }
+            int cookieCount = in.readInt();
+            Set<Cookie> cookies = new HashSet<>();
+            for (int i = 0; i < cookieCount; i++) {
+                Cookie cookie = new Cookie(readString(in), readString(in));
+                String domain = readString(in);
+                if (domain != null) {
+                    cookie.setDomain(domain);
+                }
+                cookie.setPath(readString(in));
+                cookie.setComment(readString(in));
+                cookie.setMaxAge(in.readInt());
+                cookie.setVersion(in.readInt());
+                cookie.setSecure(in.readBoolean());
+                cookie.setHttpOnly(in.readBoolean());
+                cookies.add(cookie);
+            }
+            byte[][] bodies = new byte[3][];
+            bodies[0] = readBytes(in);
+            bodies[1] = (flags & HAS_GZIP) != 0 ? readBytes(in) : null;
+            bodies[2] = (flags & HAS_DEFLATE) != 0 ? readBytes(in) : null;
+            return new CachedResponse(time, status, headers, cookies, encoding, contentType,
+                    languageTag != null ? Locale.forLanguageTag(languageTag) : null, bodies,
+                    (flags & BODY_DEFLATED) != 0 ? CachedResponse.BODY_CODEC_DEFLATE : null);
+        } catch (IOException | RuntimeException ex) {
+            LOGGER.debug("Failed to decode cached response.", ex);
+            return null;
+        }
+    }
+
+    /**
+     * @param value - value to be cached
+     * @return bytes of the response if value is one, of its Java serialization otherwise
+     */
+    public static byte[] toBytes(Object value) {
+        if (value instanceof CachedResponse) {
+            return encode((CachedResponse) value);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(value);
+        } catch (IOException ex) {
+            LOGGER.debug("Failed to serialize {}", value, ex);
+            return new byte[0];
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param bytes - bytes written by {@link #toBytes(Object)}, can be null
+     * @return the value, null if bytes are null, empty or can't be read
+     */
+    public static Object toObject(byte[] bytes) {
+        if (bytes == null || bytes.length < 1) return null;
+        if (isEncodedResponse(bytes)) {
+            return decode(bytes);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return in.readObject();
+        } catch (IOException | ClassNotFoundException ex) {
+            LOGGER.debug("Failed to deserialize cached value.", ex);
+            return null;
+        }
+    }
+
+    private static boolean isEncodedResponse(byte[] bytes) {
+        return bytes != null && bytes.length > 2 && ((bytes[0] & 0xFF) << 8 | (bytes[1] & 0xFF)) == MAGIC;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        writeBytes(out, value != null ? value.getBytes(Charsets.UTF_8) : null);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = readBytes(in);
+        return bytes != null ? new String(bytes, Charsets.UTF_8) : null;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
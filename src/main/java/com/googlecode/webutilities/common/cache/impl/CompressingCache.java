@@ -0,0 +1,122 @@
+/*
+ * Copyright 2010-2016 Rajendra Patil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.webutilities.common.cache.impl;
+
+import com.googlecode.webutilities.common.cache.Cache;
+import com.googlecode.webutilities.common.cache.CacheConfig;
+import com.googlecode.webutilities.common.cache.CachedResponse;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache that keeps identity bodies of the responses compressed in the cache it wraps.
+ * <p>
+ * Bodies of at least compress threshold bytes of the config are compressed ({@link CachedResponse#compressed(int)},
+ * Deflate at fastest level) on put, and decompressed on get, so text pages take a fraction of the memory in
+ * {@link GoogleCache} and of the bytes on the wire to remote caches. The codec is recorded with the entry, so entries
+ * put without compression (or by servers with other threshold) are read as they are. Values other than responses are
+ * passed through.
+ * </p>
+ *
+ * @author rpatil
+ * @version 1.0
+ */
+public class CompressingCache<K, V> implements Cache<K, V> {
+
+    private final Cache<K, V> delegate;
+
+    private final int threshold;
+
+    public CompressingCache(CacheConfig<K, V> cacheConfig, Cache<K, V> delegate) {
+        this.delegate = delegate;
+        this.threshold = cacheConfig.getCompressThreshold();
+    }
+
+    public Cache<K, V> getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public void put(K key, V value) {
+        delegate.put(key, this.compress(value));
+    }
+
+    @Override
+    public void put(K key, V value, Collection<String> tags) {
+        delegate.put(key, this.compress(value), tags);
+    }
+
+    @Override
+    public V get(K key) {
+        return this.decompress(delegate.get(key));
+    }
+
+    @Override
+    public void invalidate(K key) {
+        delegate.invalidate(key);
+    }
+
+    @Override
+    public void invalidateAll() {
+        delegate.invalidateAll();
+    }
+
+    @Override
+    public Map<K, V> getAll(Iterable<? extends K> keys) {
+        Map<K, V> values = delegate.getAll(keys);
+        for (Map.Entry<K, V> entry : values.entrySet()) {
+            entry.setValue(this.decompress(entry.getValue()));
+        }
+        return values;
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> entries) {
+        Map<K, V> compressed = new LinkedHashMap<>(Math.max(16, entries.size() * 2));
+        for (Map.Entry<? extends K, ? extends V> entry : entries.entrySet()) {
+            compressed.put(entry.getKey(), this.compress(entry.getValue()));
+        }
+        delegate.putAll(compressed);
+    }
+
+    @Override
+    public void invalidateAll(Iterable<? extends K> keys) {
+        delegate.invalidateAll(keys);
+    }
+
+    @Override
+    public void invalidateTag(String tag) {
+        delegate.invalidateTag(tag);
+    }
+
+    @Override
+    public void cleanup() {
+        delegate.cleanup();
+    }
+
+    @SuppressWarnings("unchecked")
+    private V compress(V value) {
+        return value instanceof CachedResponse ? (V) ((CachedResponse) value).compressed(threshold) : value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private V decompress(V value) {
+        return value instanceof CachedResponse ? (V) ((CachedResponse) value).decompressed() : value;
+    }
+}
@@ -16,23 +16,42 @@
 
 package com.googlecode.webutilities.common.cache.impl;
 
+import com.couchbase.client.deps.io.netty.buffer.ByteBuf;
+import com.couchbase.client.deps.io.netty.buffer.Unpooled;
 import com.couchbase.client.deps.io.netty.util.ReferenceCountUtil;
 import com.couchbase.client.java.Bucket;
 import com.couchbase.client.java.Cluster;
 import com.couchbase.client.java.CouchbaseCluster;
-import com.couchbase.client.java.document.SerializableDocument;
+import com.couchbase.client.java.document.BinaryDocument;
+import com.couchbase.client.java.document.JsonLongDocument;
+import com.couchbase.client.java.env.CouchbaseEnvironment;
+import com.couchbase.client.java.env.DefaultCouchbaseEnvironment;
 import com.googlecode.webutilities.common.cache.Cache;
 import com.googlecode.webutilities.common.cache.CacheConfig;
+import com.googlecode.webutilities.common.cache.CachedResponseCodec;
+import rx.Observable;
+import rx.functions.Func1;
 
-import java.io.Serializable;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Cache implemented using CouchbaseCache Cache
+ * Cache implemented using CouchbaseCache Cache. Values are stored as binary documents, responses in the format of
+ * {@link CachedResponseCodec}. Tags are kept as counter documents ({@link TaggedValue}): tagged values are stored
+ * with the generations of their tags and read as misses once one of them is incremented by invalidating the tag.
+ * Counters of all the tags of a value are read (or created) in one batch of asynchronous operations.
  */
 public class CouchbaseCache<K, V> implements Cache<K, V> {
 
     private static final String BUCKET_NAME = "webutilities-response-cache";
 
+    private static final String TAG_PREFIX = "webutilities:tag:";
+
+    private CouchbaseEnvironment environment;
+
     private Cluster cluster;
 
     private Bucket bucket;
@@ -41,25 +60,35 @@ public class CouchbaseCache<K, V> implements Cache<K, V> {
 
     public CouchbaseCache(CacheConfig<K, V> config) {
         this.cacheConfig = config;
-        this.cluster = CouchbaseCluster.create(config.getHostname().split("\\s+"));
+        this.environment = DefaultCouchbaseEnvironment.create();
+        this.cluster = CouchbaseCluster.create(environment, config.getHostname().split("\\s+"));
         this.bucket = cluster.openBucket(BUCKET_NAME);
     }
 
     @Override
     public void put(K key, V value) {
         int reloadTime = cacheConfig.getReloadTime();
-        bucket.upsert(SerializableDocument.create(key.toString(), reloadTime, (Serializable) value));
+        bucket.upsert(BinaryDocument.create(key.toString(), reloadTime, Unpooled.wrappedBuffer(CachedResponseCodec.toBytes(value))));
     }
 
     @Override
     public V get(K key) {
-        SerializableDocument document = bucket.get(key.toString(), SerializableDocument.class);
-        if (document != null) {
-            V data = (V) document.content();
-            ReferenceCountUtil.release(data);
-            return data;
+        BinaryDocument document = bucket.get(key.toString(), BinaryDocument.class);
+        if (document == null) return null;
+        byte[] bytes;
+        ByteBuf content = document.content();
+        try {
+            bytes = new byte[content.readableBytes()];
+            content.readBytes(bytes);
+        } finally {
+            ReferenceCountUtil.release(content);
         }
-        return null;
+        TaggedValue tagged = TaggedValue.decode(bytes);
+        if (tagged != null) {
+            if (!tagged.isCurrent(this.currentGenerations(tagged.tags))) return null;
+            bytes = tagged.data;
+        }
+        return (V) CachedResponseCodec.toObject(bytes);
     }
 
     @Override
@@ -72,9 +101,49 @@ public class CouchbaseCache<K, V> implements Cache<K, V> {
         bucket.bucketManager().flush();
     }
 
+    @Override
+    public void put(K key, V value, Collection<String> tags) {
+        String[] tagArray = new LinkedHashSet<>(tags).toArray(new String[0]);
+        long now = System.currentTimeMillis();
+        Map<String, Long> counters = this.counters(tagArray, tag -> bucket.async().counter(tag, 0, now)); //created if new
+        long[] generations = new long[tagArray.length];
+        for (int i = 0; i < tagArray.length; i++) {
+            generations[i] = counters.get(tagArray[i]);
+        }
+        byte[] bytes = new TaggedValue(tagArray, generations, 0, CachedResponseCodec.toBytes(value)).encode();
+        bucket.upsert(BinaryDocument.create(key.toString(), cacheConfig.getReloadTime(), Unpooled.wrappedBuffer(bytes)));
+    }
+
+    @Override
+    public void invalidateTag(String tag) {
+        bucket.counter(TAG_PREFIX + tag, 1, System.currentTimeMillis());
+    }
+
+    private Map<String, Long> currentGenerations(String[] tags) {
+        return this.counters(tags, tag -> bucket.async().get(tag, JsonLongDocument.class));
+    }
+
+    /**
+     * @param tags      - tags to read counters of
+     * @param operation - reads (or creates) counter document of the given id, emits nothing if there is none
+     * @return counter values by tag, all read at once, waiting no longer than a single key/value operation
+     */
+    private Map<String, Long> counters(String[] tags, Func1<String, Observable<JsonLongDocument>> operation) {
+        Map<String, Long> counters = new HashMap<>();
+        for (JsonLongDocument counter : Observable.from(tags)
+                .flatMap(tag -> operation.call(TAG_PREFIX + tag))
+                .toList()
+                .timeout(environment.kvTimeout(), TimeUnit.MILLISECONDS)
+                .toBlocking().single()) {
+            counters.put(counter.id().substring(TAG_PREFIX.length()), counter.content());
+        }
+        return counters;
+    }
+
     @Override
     public void cleanup() {
         this.bucket.close();
         this.cluster.disconnect();
+        this.environment.shutdown().toBlocking().single();
     }
 }
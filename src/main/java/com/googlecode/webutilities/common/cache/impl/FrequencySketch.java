@@ -0,0 +1,109 @@
+/*
+ * Copyright 2010-2016 Rajendra Patil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.webutilities.common.cache.impl;
+
+/**
+ * Count-min sketch of 4 bit counters estimating how often keys were used recently (TinyLFU).
+ * <p>
+ * Each key is counted in 4 counters, its frequency is the smallest of them. After 10 times as many increments as there
+ * are counters, all the counters are halved, so the sketch forgets old history and keeps up with what is popular now.
+ * </p>
+ *
+ * @author rpatil
+ * @version 1.0
+ */
+final class FrequencySketch {
+
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private static final int MAX_COUNT = 15;
+
+    private final long[] table;
+
+    private final int sampleSize;
+
+    private int size;
+
+    /**
+     * @param expectedEntries - about how many keys the cache holds (sketch has 16 counters per expected entry, at least
+     *                        64K counters in all, so that one time keys rarely add up to look popular)
+     */
+    FrequencySketch(int expectedEntries) {
+        int length = Integer.highestOneBit(Math.max(Math.min(expectedEntries, 1 << 22), 4096) - 1) << 1;
+        this.table = new long[length];
+        this.sampleSize = 10 * length;
+    }
+
+    /**
+     * @param key - key of the cache
+     * @return estimated number of uses of the key, up to 15
+     */
+    synchronized int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < SEEDS.length; i++) {
+            long slot = this.slot(hash, i);
+            frequency = Math.min(frequency, (int) ((table[(int) slot] >>> (slot >>> 32)) & MAX_COUNT));
+        }
+        return frequency;
+    }
+
+    /**
+     * @param key - key of the cache that was used
+     */
+    synchronized void increment(Object key) {
+        int hash = spread(key.hashCode());
+        boolean incremented = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            long slot = this.slot(hash, i);
+            int index = (int) slot;
+            long offset = slot >>> 32;
+            if (((table[index] >>> offset) & MAX_COUNT) < MAX_COUNT) {
+                table[index] += 1L << offset;
+                incremented = true;
+            }
+        }
+        if (incremented && ++size >= sampleSize) {
+            this.reset();
+        }
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size /= 2;
+    }
+
+    /**
+     * @return index of the long in lower 32 bits and bit offset of the counter in it in upper 32 bits
+     */
+    private long slot(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        long index = (int) h & (table.length - 1);
+        long offset = ((h >>> 40) & 15) << 2;
+        return offset << 32 | index;
+    }
+
+    private static int spread(int hash) {
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        return (hash >>> 16) ^ hash;
+    }
+}
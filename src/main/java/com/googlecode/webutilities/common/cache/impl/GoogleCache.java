@@ -17,35 +17,109 @@
 package com.googlecode.webutilities.common.cache.impl;
 
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.Weigher;
 import com.googlecode.webutilities.common.cache.Cache;
 import com.googlecode.webutilities.common.cache.CacheConfig;
+import com.googlecode.webutilities.common.cache.CachedResponse;
 
+import java.util.Collection;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Cache implementation using Google Guava Cache
+ * <p>
+ * Without maximum weight in the config, values are soft referenced and it is the GC that decides how much is cached.
+ * With it, the cache holds at most that many bytes (bodies and headers of {@link CachedResponse}s, 1 for other values)
+ * and evicts least recently used entries beyond. Entries can also expire after write (reload time) and after access.
+ * </p>
+ * <p>
+ * With TinyLFU on (and maximum weight set), a {@link FrequencySketch} counts how often each key is looked up, and once
+ * the cache is full a new entry is admitted only if its key has been asked for more than once recently. So a scan of
+ * one time URLs doesn't flush the popular responses out of the cache.
+ * </p>
+ * <p>
+ * Tags are kept in a local {@link TagIndex}, keys leave it as their entries are invalidated, evicted or expire.
+ * </p>
  */
 public class GoogleCache<K, V> implements Cache<K, V> {
 
-    private com.google.common.cache.Cache<K, V> googleCache;
+    private com.google.common.cache.Cache<K, Weighted<V>> googleCache;
+
+    private final long maximumWeight;
+
+    private final FrequencySketch sketch;
+
+    private final AtomicLong weight = new AtomicLong();
+
+    private final TagIndex<K> tags = new TagIndex<>();
 
     public GoogleCache(CacheConfig<K, V> cacheConfig) {
-        CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder().softValues();
-        // if(reloadAfterAccess > 0)
-        //     builder.expireAfterAccess(reloadAfterAccess, TimeUnit.SECONDS);
+        CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder();
+        this.maximumWeight = cacheConfig.getMaximumWeight();
+        if (maximumWeight > 0) {
+            builder.maximumWeight(maximumWeight).weigher((Weigher<Object, Object>) (key, value) -> ((Weighted<?>) value).weight);
+        } else {
+            builder.softValues();
+        }
+        if (cacheConfig.getExpireAfterAccess() > 0)
+            builder.expireAfterAccess(cacheConfig.getExpireAfterAccess(), TimeUnit.SECONDS);
         if (cacheConfig.getReloadTime() > 0)
             builder.expireAfterWrite(cacheConfig.getReloadTime(), TimeUnit.SECONDS);
+        final boolean tinyLfu = maximumWeight > 0 && cacheConfig.isTinyLfu();
+        if (tinyLfu) {
+            this.sketch = new FrequencySketch((int) Math.min(maximumWeight / 1024, Integer.MAX_VALUE));
+            builder.concurrencyLevel(1); //one segment, so that it evicts only when the whole cache is full
+        } else {
+            this.sketch = null;
+        }
+        builder.removalListener((RemovalListener<Object, Object>) notification -> {
+            if (tinyLfu && notification.getValue() != null) {
+                weight.addAndGet(-((Weighted<?>) notification.getValue()).weight);
+            }
+            if (notification.getCause() != RemovalCause.REPLACED) {
+                tags.untag((K) notification.getKey());
+            }
+        });
         googleCache = builder.build();
     }
 
     @Override
     public void put(K key, V value) {
-        googleCache.put(key, value);
+        this.store(key, value);
+    }
+
+    @Override
+    public void put(K key, V value, Collection<String> tags) {
+        if (this.store(key, value)) {
+            this.tags.tag(key, tags);
+        }
+    }
+
+    /**
+     * @return false if the value was not admitted to the cache
+     */
+    private boolean store(K key, V value) {
+        int valueWeight = maximumWeight > 0 ? weigh(value) : 1;
+        if (sketch != null) {
+            if (weight.get() + valueWeight > maximumWeight && sketch.frequency(key) <= 1) {
+                return false; //not popular enough to evict others
+            }
+            weight.addAndGet(valueWeight);
+        }
+        googleCache.put(key, new Weighted<>(value, valueWeight));
+        return true;
     }
 
     @Override
     public V get(K key) {
-        return googleCache.getIfPresent(key);
+        if (sketch != null) {
+            sketch.increment(key);
+        }
+        Weighted<V> weighted = googleCache.getIfPresent(key);
+        return weighted != null ? weighted.value : null;
     }
 
     @Override
@@ -56,10 +130,42 @@ public class GoogleCache<K, V> implements Cache<K, V> {
     @Override
     public void invalidateAll() {
         googleCache.invalidateAll();
+        tags.clear();
+    }
+
+    @Override
+    public void invalidateTag(String tag) {
+        googleCache.invalidateAll(tags.keysOf(tag));
+    }
+
+    @Override
+    public void invalidateAll(Iterable<? extends K> keys) {
+        googleCache.invalidateAll(keys);
     }
 
     @Override
     public void cleanup() {
         this.googleCache = null;
+        this.tags.clear();
+    }
+
+    private static int weigh(Object value) {
+        return value instanceof CachedResponse ? ((CachedResponse) value).weight() : 1;
+    }
+
+    /**
+     * Value with its weight as of when it was put, so that later changes to the value (like encoded bodies added to
+     * {@link CachedResponse}) don't throw the weight accounting off
+     */
+    private static final class Weighted<V> {
+
+        private final V value;
+
+        private final int weight;
+
+        private Weighted(V value, int weight) {
+            this.value = value;
+            this.weight = weight;
+        }
     }
 }
@@ -16,48 +16,180 @@
 
 package com.googlecode.webutilities.common.cache.impl;
 
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
 import com.googlecode.webutilities.common.cache.Cache;
 import com.googlecode.webutilities.common.cache.CacheConfig;
+import com.googlecode.webutilities.common.cache.CachedResponse;
+import com.googlecode.webutilities.common.cache.CachedResponseCodec;
 import net.spy.memcached.AddrUtil;
+import net.spy.memcached.CachedData;
 import net.spy.memcached.ConnectionFactoryBuilder;
+import net.spy.memcached.DefaultHashAlgorithm;
 import net.spy.memcached.FailureMode;
 import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.internal.BulkFuture;
+import net.spy.memcached.internal.GetFuture;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
- * Cache implemented using Memcached Cache
+ * Cache implemented using Memcached Cache. Responses are stored in the format of {@link CachedResponseCodec}.
+ * <p>
+ * Host name of the config can list several servers (<code>host1:11211 host2:11211</code>, port of the config is used
+ * for the ones without), keys are spread over them by consistent (ketama) hashing, so that adding or losing a server
+ * moves only its share of the keys, and a server that is down is skipped. Binary protocol is used if the config says
+ * so. Gets are sent asynchronously and waited for at most operation timeout of the config, after which they are taken
+ * as a miss (and the response is rendered), so a slow server doesn't hold the request threads. Keys memcached can't
+ * take (longer than 250 bytes, or with spaces or control characters) are hashed.
+ * </p>
+ * <p>
+ * Tags are kept as generation counters ({@link TaggedValue}): a tagged entry is stored with the generations of its
+ * tags, which are read back in one bulk get along with it, and invalidating a tag is an atomic increment of its
+ * counter. So nothing grows with the number of tagged entries, and entries tagged while a tag is invalidated are never
+ * missed. Counters don't expire; if memcached evicts one, entries of the tag are read as misses.
+ * </p>
  */
 public class MemcachedCache<K, V> implements Cache<K, V> {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(MemcachedCache.class.getName());
+
+    private static final int MAX_KEY_LENGTH = 250;
+
+    private static final int DEFAULT_EXPIRY = 3600;
+
+    private static final String TAG_PREFIX = "webutilities:tag:";
+
+    private static final SerializingTranscoder COUNTERS = new SerializingTranscoder(); //counters are stored as digits
+
+    private final ResponseTranscoder transcoder = new ResponseTranscoder();
+
     private MemcachedClient client;
 
     private CacheConfig<K, V> cacheConfig;
 
+    private final long operationTimeout;
+
     public MemcachedCache(CacheConfig<K, V> config) throws IOException {
         this.cacheConfig = config;
-        String addr = config.getHostname() + ":" + config.getPortNumber();
-        this.client = new MemcachedClient(new ConnectionFactoryBuilder().setDaemon(true).setFailureMode(FailureMode.Retry).build(), AddrUtil.getAddresses(addr));
+        this.operationTimeout = config.getOperationTimeout() > 0 ? config.getOperationTimeout() : CacheConfig.DEFAULT_OPERATION_TIMEOUT;
+        this.client = new MemcachedClient(new ConnectionFactoryBuilder()
+                .setDaemon(true)
+                .setProtocol(config.isBinaryProtocol() ? ConnectionFactoryBuilder.Protocol.BINARY : ConnectionFactoryBuilder.Protocol.TEXT)
+                .setLocatorType(ConnectionFactoryBuilder.Locator.CONSISTENT)
+                .setHashAlg(DefaultHashAlgorithm.KETAMA_HASH)
+                .setFailureMode(FailureMode.Redistribute)
+                .setOpTimeout(operationTimeout)
+                .setOpQueueMaxBlockTime(operationTimeout)
+                .setTranscoder(transcoder).build(), AddrUtil.getAddresses(addresses(config)));
+    }
+
+    /**
+     * @return space separated host:port list of the servers in the config
+     */
+    private static String addresses(CacheConfig<?, ?> config) {
+        StringBuilder addresses = new StringBuilder();
+        for (String host : config.getHostname().trim().split("[\\s,]+")) {
+            if (addresses.length() > 0) {
+                addresses.append(' ');
+            }
+            addresses.append(host.indexOf(':') > 0 ? host : host + ":" + config.getPortNumber());
+        }
+        return addresses.toString();
     }
 
     @Override
     public void put(K key, V value) {
+        this.set(key, value);
+    }
+
+    private void set(K key, Object value) {
         int reloadTime = cacheConfig.getReloadTime();
-        if (reloadTime > 0) {
-            client.set(key.toString(), reloadTime, value);
-        } else {
-            client.set(key.toString(), 3600, value);
+        try {
+            client.set(memcachedKey(key), reloadTime > 0 ? reloadTime : DEFAULT_EXPIRY, value);
+        } catch (IllegalStateException ex) {
+            LOGGER.debug("Memcached queue is full, not caching {}", key); //servers are too slow to keep up
         }
     }
 
     @Override
     public V get(K key) {
-        return (V) client.get(key.toString());
+        GetFuture<Object> future;
+        try {
+            future = client.asyncGet(memcachedKey(key));
+        } catch (IllegalStateException ex) {
+            return null;
+        }
+        try {
+            Object value = future.get(operationTimeout, TimeUnit.MILLISECONDS);
+            if (value instanceof TaggedValue) {
+                TaggedValue tagged = (TaggedValue) value;
+                Map<String, Long> generations = this.currentGenerations(tagged.tags);
+                return generations != null && tagged.isCurrent(generations) ? (V) this.decode(tagged) : null;
+            }
+            return (V) value;
+        } catch (TimeoutException ex) {
+            future.cancel(false);
+            LOGGER.debug("Memcached get of {} timed out, taking it as a miss.", key);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | RuntimeException ex) {
+            LOGGER.debug("Memcached get of {} failed, taking it as a miss.", key, ex);
+        }
+        return null;
+    }
+
+    @Override
+    public Map<K, V> getAll(Iterable<? extends K> keys) {
+        Map<String, K> keysByMemcachedKey = new HashMap<>();
+        for (K key : keys) {
+            keysByMemcachedKey.put(memcachedKey(key), key);
+        }
+        Map<K, V> values = new HashMap<>();
+        if (keysByMemcachedKey.isEmpty()) return values;
+        try {
+            BulkFuture<Map<String, Object>> future = client.asyncGetBulk(keysByMemcachedKey.keySet());
+            Map<String, Object> found = future.getSome(operationTimeout, TimeUnit.MILLISECONDS); //whatever came in time
+            List<String> tags = new ArrayList<>();
+            for (Object value : found.values()) {
+                if (value instanceof TaggedValue) {
+                    tags.addAll(Arrays.asList(((TaggedValue) value).tags));
+                }
+            }
+            Map<String, Long> generations = tags.isEmpty() ? null : this.currentGenerations(tags.toArray(new String[tags.size()]));
+            for (Map.Entry<String, Object> entry : found.entrySet()) {
+                Object value = entry.getValue();
+                if (value instanceof TaggedValue) {
+                    TaggedValue tagged = (TaggedValue) value;
+                    if (generations == null || !tagged.isCurrent(generations)) continue;
+                    value = this.decode(tagged);
+                }
+                values.put(keysByMemcachedKey.get(entry.getKey()), (V) value);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | RuntimeException ex) {
+            LOGGER.debug("Memcached bulk get failed, taking it as a miss.", ex);
+        }
+        return values;
     }
 
     @Override
     public void invalidate(K key) {
-        client.delete(key.toString());
+        client.delete(memcachedKey(key));
     }
 
     @Override
@@ -65,10 +197,129 @@ public class MemcachedCache<K, V> implements Cache<K, V> {
         client.flush();
     }
 
+    @Override
+    public void put(K key, V value, Collection<String> tags) {
+        String[] tagArray = new LinkedHashSet<>(tags).toArray(new String[0]);
+        long[] generations = this.generations(tagArray);
+        if (generations == null) {
+            LOGGER.debug("Failed to read generations of the tags, not caching {}", key); //it would escape invalidation
+            return;
+        }
+        CachedData data = transcoder.encode(value);
+        this.set(key, new TaggedValue(tagArray, generations, data.getFlags(), data.getData()));
+    }
+
+    @Override
+    public void invalidateTag(String tag) {
+        try {
+            client.incr(counterKey(tag), 1, System.currentTimeMillis(), 0);
+        } catch (RuntimeException ex) {
+            LOGGER.debug("Failed to invalidate tag {}", tag, ex);
+        }
+    }
+
+    /**
+     * @return current generation of each tag, counters are created for the new ones; null if they can't be read
+     */
+    private long[] generations(String[] tags) {
+        Map<String, Long> current = this.currentGenerations(tags);
+        if (current == null) return null;
+        long[] generations = new long[tags.length];
+        try {
+            for (int i = 0; i < tags.length; i++) {
+                Long generation = current.get(tags[i]);
+                if (generation == null) { //new tag, or counter came too late; time makes a recreated counter differ
+                    generation = client.incr(counterKey(tags[i]), 0, System.currentTimeMillis(), 0);
+                    if (generation < 0) return null;
+                }
+                generations[i] = generation;
+            }
+        } catch (RuntimeException ex) {
+            LOGGER.debug("Failed to create tag counters.", ex);
+            return null;
+        }
+        return generations;
+    }
+
+    /**
+     * @return generation of the tags that have a counter, by tag; null if counters can't be read
+     */
+    private Map<String, Long> currentGenerations(String[] tags) {
+        Map<String, String> tagsByCounterKey = new HashMap<>();
+        for (String tag : tags) {
+            tagsByCounterKey.put(counterKey(tag), tag);
+        }
+        try {
+            Map<String, Object> counters = client.asyncGetBulk(tagsByCounterKey.keySet(), COUNTERS)
+                    .getSome(operationTimeout, TimeUnit.MILLISECONDS);
+            Map<String, Long> generations = new HashMap<>();
+            for (Map.Entry<String, Object> counter : counters.entrySet()) {
+                generations.put(tagsByCounterKey.get(counter.getKey()), Long.parseLong(String.valueOf(counter.getValue()).trim()));
+            }
+            return generations;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | RuntimeException ex) {
+            LOGGER.debug("Failed to read tag counters.", ex);
+        }
+        return null;
+    }
+
+    private Object decode(TaggedValue tagged) {
+        return transcoder.decode(new CachedData(tagged.flags, tagged.data, transcoder.getMaxSize()));
+    }
+
+    private static String counterKey(String tag) {
+        return memcachedKey(TAG_PREFIX + tag);
+    }
+
     @Override
     public void cleanup() {
         client.flush();
         client.shutdown();
         client = null;
     }
+
+    private static String memcachedKey(Object key) {
+        String memcachedKey = key.toString();
+        boolean valid = memcachedKey.length() * 3 <= MAX_KEY_LENGTH
+                || memcachedKey.getBytes(Charsets.UTF_8).length <= MAX_KEY_LENGTH;
+        for (int i = 0; valid && i < memcachedKey.length(); i++) {
+            char c = memcachedKey.charAt(i);
+            valid = c > ' ' && c != 0x7F;
+        }
+        return valid ? memcachedKey : Hashing.murmur3_128().hashString(memcachedKey, Charsets.UTF_8).toString();
+    }
+
+    /**
+     * Serializing transcoder that writes responses with {@link CachedResponseCodec} instead
+     */
+    private static final class ResponseTranscoder extends SerializingTranscoder {
+
+        private static final int RESPONSE = 1 << 4; //flags not used by SerializingTranscoder
+
+        private static final int TAGGED = 1 << 5;
+
+        @Override
+        public CachedData encode(Object value) {
+            if (value instanceof CachedResponse) {
+                return new CachedData(RESPONSE, CachedResponseCodec.encode((CachedResponse) value), this.getMaxSize());
+            }
+            if (value instanceof TaggedValue) {
+                return new CachedData(TAGGED, ((TaggedValue) value).encode(), this.getMaxSize());
+            }
+            return super.encode(value);
+        }
+
+        @Override
+        public Object decode(CachedData data) {
+            if (data.getFlags() == RESPONSE) {
+                return CachedResponseCodec.decode(data.getData());
+            }
+            if (data.getFlags() == TAGGED) {
+                return TaggedValue.decode(data.getData()); //value is decoded once tags are checked
+            }
+            return super.decode(data);
+        }
+    }
 }
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2010-2016 Rajendra Patil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.webutilities.common.cache.impl;
+
+import com.googlecode.webutilities.common.cache.Cache;
+import com.googlecode.webutilities.common.cache.CacheConfig;
+import com.googlecode.webutilities.common.cache.CachedResponse;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of responses that keeps the bodies in direct (off heap) memory.
+ * <p>
+ * Bodies (identity and encoded ones) are copied into fixed size pages of direct <code>ByteBuffer</code> slabs, and only
+ * headers and page numbers stay on heap. So large cached bodies don't fill the old generation, and the cache is bound
+ * by bytes ({@link CacheConfig#getMaxOffHeapBytes()}) rather than by GC pressure: when there aren't enough free pages
+ * for a body, least recently used responses are evicted till there are. Slabs are allocated as they are needed, up to
+ * the limit.
+ * </p>
+ * <p>
+ * Bodies are copied back to heap on {@link #get(Object)}, so the pages can be reused as soon as an entry goes, without
+ * tracking readers. Responses older than reload time of the config (if set) are not returned. Tags are kept in a
+ * local {@link TagIndex}.
+ * </p>
+ *
+ * @author rpatil
+ * @version 1.0
+ */
+public class OffHeapCache<K> implements Cache<K, CachedResponse> {
+
+    private static final int PAGE_SIZE = 8 * 1024;
+
+    private static final int PAGES_PER_SLAB = 128; //1 MB slabs
+
+    private static final int[] NO_PAGES = new int[0];
+
+    private final long expireAfterWriteMillis;
+
+    private final int totalPages;
+
+    private ByteBuffer[] slabs;
+
+    private int[] freePages;
+
+    private int freeCount;
+
+    private int allocatedPages;
+
+    private final LinkedHashMap<K, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final TagIndex<K> tags = new TagIndex<>();
+
+    public OffHeapCache(CacheConfig<K, CachedResponse> cacheConfig) {
+        this.totalPages = (int) Math.min(Integer.MAX_VALUE - PAGES_PER_SLAB, Math.max(cacheConfig.getMaxOffHeapBytes() / PAGE_SIZE, 1));
+        this.expireAfterWriteMillis = TimeUnit.SECONDS.toMillis(Math.max(cacheConfig.getReloadTime(), 0));
+        this.slabs = new ByteBuffer[(totalPages + PAGES_PER_SLAB - 1) / PAGES_PER_SLAB];
+        this.freePages = new int[totalPages];
+    }
+
+    @Override
+    public synchronized void put(K key, CachedResponse value) {
+        this.store(key, value);
+    }
+
+    @Override
+    public synchronized void put(K key, CachedResponse value, Collection<String> tags) {
+        if (this.store(key, value)) {
+            this.tags.tag(key, tags);
+        }
+    }
+
+    /**
+     * @return false if the response never fits
+     */
+    private boolean store(K key, CachedResponse value) {
+        Entry previous = entries.remove(key); //tags stay with the key
+        if (previous != null) {
+            this.free(previous.pages);
+        }
+        byte[][] bodies = value.getBodies();
+        long bytes = 0;
+        for (byte[] body : bodies) {
+            bytes += body != null ? body.length : 0;
+        }
+        int pagesNeeded = (int) ((bytes + PAGE_SIZE - 1) / PAGE_SIZE);
+        if (pagesNeeded > totalPages) {
+            tags.untag(key);
+            return false; //never fits
+        }
+        Iterator<Map.Entry<K, Entry>> eldest = entries.entrySet().iterator();
+        while (this.availablePages() < pagesNeeded && eldest.hasNext()) {
+            Map.Entry<K, Entry> evicted = eldest.next();
+            this.free(evicted.getValue().pages);
+            tags.untag(evicted.getKey());
+            eldest.remove();
+        }
+        int[] pages = pagesNeeded == 0 ? NO_PAGES : new int[pagesNeeded];
+        for (int i = 0; i < pagesNeeded; i++) {
+            pages[i] = this.allocate();
+        }
+        int[] lengths = new int[bodies.length];
+        int page = 0, offset = 0;
+        for (int b = 0; b < bodies.length; b++) {
+            byte[] body = bodies[b];
+            lengths[b] = body != null ? body.length : -1;
+            for (int written = 0; body != null && written < body.length; ) {
+                int count = Math.min(PAGE_SIZE - offset, body.length - written);
+                ByteBuffer slab = this.positioned(pages[page], offset);
+                slab.put(body, written, count);
+                written += count;
+                offset += count;
+                if (offset == PAGE_SIZE) {
+                    page++;
+                    offset = 0;
+                }
+            }
+        }
+        entries.put(key, new Entry(value.withBodies(new byte[bodies.length][]), pages, lengths, System.currentTimeMillis()));
+        return true;
+    }
+
+    @Override
+    public synchronized CachedResponse get(K key) {
+        Entry entry = entries.get(key);
+        if (entry == null) return null;
+        if (expireAfterWriteMillis > 0 && System.currentTimeMillis() - entry.created > expireAfterWriteMillis) {
+            this.remove(key);
+            return null;
+        }
+        byte[][] bodies = new byte[entry.lengths.length][];
+        int page = 0, offset = 0;
+        for (int b = 0; b < bodies.length; b++) {
+            if (entry.lengths[b] < 0) continue;
+            byte[] body = bodies[b] = new byte[entry.lengths[b]];
+            for (int read = 0; read < body.length; ) {
+                int count = Math.min(PAGE_SIZE - offset, body.length - read);
+                ByteBuffer slab = this.positioned(entry.pages[page], offset);
+                slab.get(body, read, count);
+                read += count;
+                offset += count;
+                if (offset == PAGE_SIZE) {
+                    page++;
+                    offset = 0;
+                }
+            }
+        }
+        return entry.response.withBodies(bodies);
+    }
+
+    @Override
+    public synchronized void invalidate(K key) {
+        this.remove(key);
+    }
+
+    @Override
+    public synchronized void invalidateAll() {
+        for (Entry entry : entries.values()) {
+            this.free(entry.pages);
+        }
+        entries.clear();
+        tags.clear();
+    }
+
+    @Override
+    public synchronized void invalidateTag(String tag) {
+        for (K key : tags.keysOf(tag)) {
+            this.remove(key);
+        }
+    }
+
+    @Override
+    public synchronized void cleanup() {
+        entries.clear();
+        tags.clear();
+        slabs = new ByteBuffer[slabs.length]; //direct memory is released when buffers are collected
+        freeCount = 0;
+        allocatedPages = 0;
+    }
+
+    /**
+     * @return bytes of direct memory taken by the bodies
+     */
+    public synchronized long getUsedBytes() {
+        return (long) (allocatedPages - freeCount) * PAGE_SIZE;
+    }
+
+    private void remove(K key) {
+        tags.untag(key);
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            this.free(entry.pages);
+        }
+    }
+
+    private int availablePages() {
+        return freeCount + totalPages - allocatedPages;
+    }
+
+    private int allocate() {
+        if (freeCount > 0) {
+            return freePages[--freeCount];
+        }
+        return allocatedPages++; //pages of slabs not yet used, slab itself is allocated on first access
+    }
+
+    private void free(int[] pages) {
+        for (int page : pages) {
+            freePages[freeCount++] = page;
+        }
+    }
+
+    private ByteBuffer positioned(int page, int offset) {
+        int slabIndex = page / PAGES_PER_SLAB;
+        ByteBuffer slab = slabs[slabIndex];
+        if (slab == null) {
+            int pagesInSlab = Math.min(PAGES_PER_SLAB, totalPages - slabIndex * PAGES_PER_SLAB);
+            slab = slabs[slabIndex] = ByteBuffer.allocateDirect(pagesInSlab * PAGE_SIZE);
+        }
+        ((Buffer) slab).position((page % PAGES_PER_SLAB) * PAGE_SIZE + offset); //Buffer's, so it runs on Java 8 too
+        return slab;
+    }
+
+    private static final class Entry {
+
+        private final CachedResponse response;
+
+        private final int[] pages;
+
+        private final int[] lengths;
+
+        private final long created;
+
+        private Entry(CachedResponse response, int[] pages, int[] lengths, long created) {
+            this.response = response;
+            this.pages = pages;
+            this.lengths = lengths;
+            this.created = created;
+        }
+    }
+}
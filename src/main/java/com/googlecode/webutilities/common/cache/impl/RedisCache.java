@@ -16,18 +16,34 @@
 
 package com.googlecode.webutilities.common.cache.impl;
 
+import com.google.common.base.Charsets;
 import com.googlecode.webutilities.common.cache.Cache;
 import com.googlecode.webutilities.common.cache.CacheConfig;
+import com.googlecode.webutilities.common.cache.CachedResponseCodec;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
 
-import java.io.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
- * Cache implemented using Redis Cache
+ * Cache implemented using Redis Cache. Keys are stored as UTF-8 strings, responses in the format of
+ * {@link CachedResponseCodec}. Bulk operations take one round trip: MGET, pipelined SET/SETEX and multi key DEL.
+ * Keys of each tag are kept in a Redis set. When reload time is set, the set expires twice that long after the last key
+ * was added to it, so it outlives the entries it indexes even if they are put again (without tags) meanwhile. The set
+ * is read and deleted in one transaction when the tag is invalidated, so keys added meanwhile go to a new set.
  */
 public class RedisCache<K, V> implements Cache<K, V> {
 
+    private static final String TAG_PREFIX = "webutilities:tag:";
+
     private JedisPool jedisPool;
 
     CacheConfig<K, V> cacheConfig;
@@ -44,89 +60,131 @@ public class RedisCache<K, V> implements Cache<K, V> {
         return this.jedisPool;
     }
 
+    private byte[] keyBytes(K key) {
+        return key.toString().getBytes(Charsets.UTF_8);
+    }
+
     private byte[] toBytes(Object value) {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        ObjectOutput out = null;
-        byte[] result = new byte[0];
+        return CachedResponseCodec.toBytes(value);
+    }
+
+    public Object toObject(byte[] bytes) {
+        return CachedResponseCodec.toObject(bytes);
+    }
+
+    @Override
+    public void put(K key, V value) {
+        int reloadTime = cacheConfig.getReloadTime();
+        Jedis jedis = this.jedisPool.getResource();
         try {
-            out = new ObjectOutputStream(bos);
-            out.writeObject(value);
-            result = bos.toByteArray();
-        } catch (Exception e) {
-            e.printStackTrace();
-            //log error
-        } finally {
-            try {
-                if (out != null) {
-                    out.close();
-                }
-            } catch (IOException ex) {
-                // ignore close exception
+            if (reloadTime > 0) {
+                jedis.setex(keyBytes(key), reloadTime, toBytes(value));
+            } else {
+                jedis.set(keyBytes(key), toBytes(value));
             }
-            try {
-                bos.close();
-            } catch (IOException ex) {
-                // ignore close exception
+        } finally {
+            if (jedis != null) {
+                this.jedisPool.returnResource(jedis);
             }
         }
-        return result;
-    }
 
-    public Object toObject(byte[] bytes) {
-        if (bytes == null || bytes.length < 1) return null;
+    }
 
-        ByteArrayInputStream bis = new ByteArrayInputStream(bytes);
+    @Override
+    public V get(K key) {
+        Jedis jedis = this.jedisPool.getResource();
+        try {
+            return (V) toObject(jedis.get(keyBytes(key)));
+        } finally {
+            if (jedis != null) {
+                this.jedisPool.returnResource(jedis);
+            }
+        }
+    }
 
-        ObjectInput in = null;
-        Object result = null;
+    @Override
+    public void invalidate(K key) {
+        Jedis jedis = this.jedisPool.getResource();
+        try {
+            jedis.del(keyBytes(key));
+        } finally {
+            if (jedis != null) {
+                this.jedisPool.returnResource(jedis);
+            }
+        }
+    }
 
+    @Override
+    public void invalidateAll() {
+        Jedis jedis = this.jedisPool.getResource();
         try {
-            in = new ObjectInputStream(bis);
-            result = in.readObject();
-        } catch (IOException e) {
-            //Log error
-        } catch (ClassNotFoundException e) {
-            //Log error
+            jedis.flushDB();
         } finally {
-            try {
-                bis.close();
-            } catch (IOException ex) {
-                // ignore close exception
+            if (jedis != null) {
+                this.jedisPool.returnResource(jedis);
             }
-            try {
-                if (in != null) {
-                    in.close();
+        }
+    }
+
+    @Override
+    public Map<K, V> getAll(Iterable<? extends K> keys) {
+        List<K> keyList = new ArrayList<>();
+        List<byte[]> keyBytes = new ArrayList<>();
+        for (K key : keys) {
+            keyList.add(key);
+            keyBytes.add(keyBytes(key));
+        }
+        Map<K, V> values = new HashMap<>();
+        if (keyList.isEmpty()) return values;
+        Jedis jedis = this.jedisPool.getResource();
+        try {
+            List<byte[]> results = jedis.mget(keyBytes.toArray(new byte[keyBytes.size()][]));
+            for (int i = 0; i < results.size(); i++) {
+                V value = (V) toObject(results.get(i));
+                if (value != null) {
+                    values.put(keyList.get(i), value);
                 }
-            } catch (IOException ex) {
-                // ignore close exception
+            }
+        } finally {
+            if (jedis != null) {
+                this.jedisPool.returnResource(jedis);
             }
         }
-        return result;
+        return values;
     }
 
     @Override
-    public void put(K key, V value) {
+    public void putAll(Map<? extends K, ? extends V> entries) {
+        if (entries.isEmpty()) return;
         int reloadTime = cacheConfig.getReloadTime();
         Jedis jedis = this.jedisPool.getResource();
         try {
-            if (reloadTime < 0) {
-                jedis.setex(toBytes(key), reloadTime, toBytes(value));
-            } else {
-                jedis.set(toBytes(key), toBytes(value));
+            Pipeline pipeline = jedis.pipelined();
+            for (Map.Entry<? extends K, ? extends V> entry : entries.entrySet()) {
+                if (reloadTime > 0) {
+                    pipeline.setex(keyBytes(entry.getKey()), reloadTime, toBytes(entry.getValue()));
+                } else {
+                    pipeline.set(keyBytes(entry.getKey()), toBytes(entry.getValue()));
+                }
             }
+            pipeline.sync();
         } finally {
             if (jedis != null) {
                 this.jedisPool.returnResource(jedis);
             }
         }
-
     }
 
     @Override
-    public V get(K key) {
+    public void invalidateAll(Iterable<? extends K> keys) {
+        List<byte[]> keyBytes = new ArrayList<>();
+        for (K key : keys) {
+            keyBytes.add(keyBytes(key));
+        }
+        if (keyBytes.isEmpty()) return;
         Jedis jedis = this.jedisPool.getResource();
         try {
-            return (V) toObject(jedis.get(toBytes(key)));
+            jedis.del(keyBytes.toArray(new byte[keyBytes.size()][]));
         } finally {
             if (jedis != null) {
                 this.jedisPool.returnResource(jedis);
@@ -135,10 +193,25 @@ public class RedisCache<K, V> implements Cache<K, V> {
     }
 
     @Override
-    public void invalidate(K key) {
+    public void put(K key, V value, Collection<String> tags) {
+        int reloadTime = cacheConfig.getReloadTime();
+        byte[] keyBytes = keyBytes(key);
         Jedis jedis = this.jedisPool.getResource();
         try {
-            jedis.del(toBytes(key));
+            Pipeline pipeline = jedis.pipelined();
+            if (reloadTime > 0) {
+                pipeline.setex(keyBytes, reloadTime, toBytes(value));
+            } else {
+                pipeline.set(keyBytes, toBytes(value));
+            }
+            for (String tag : tags) {
+                byte[] tagKey = tagKey(tag);
+                pipeline.sadd(tagKey, keyBytes);
+                if (reloadTime > 0) {
+                    pipeline.expire(tagKey, 2 * reloadTime); //entry TTL, plus that of a re-put while it lives
+                }
+            }
+            pipeline.sync();
         } finally {
             if (jedis != null) {
                 this.jedisPool.returnResource(jedis);
@@ -147,10 +220,18 @@ public class RedisCache<K, V> implements Cache<K, V> {
     }
 
     @Override
-    public void invalidateAll() {
+    public void invalidateTag(String tag) {
+        byte[] tagKey = tagKey(tag);
         Jedis jedis = this.jedisPool.getResource();
         try {
-            jedis.flushDB();
+            Transaction transaction = jedis.multi();
+            Response<Set<byte[]>> members = transaction.smembers(tagKey);
+            transaction.del(tagKey);
+            transaction.exec();
+            Set<byte[]> keys = members.get();
+            if (!keys.isEmpty()) {
+                jedis.del(keys.toArray(new byte[keys.size()][]));
+            }
         } finally {
             if (jedis != null) {
                 this.jedisPool.returnResource(jedis);
@@ -158,6 +239,10 @@ public class RedisCache<K, V> implements Cache<K, V> {
         }
     }
 
+    private static byte[] tagKey(String tag) {
+        return (TAG_PREFIX + tag).getBytes(Charsets.UTF_8);
+    }
+
     @Override
     public void cleanup() {
         this.jedisPool.close();
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2010-2016 Rajendra Patil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.webutilities.common.cache.impl;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Thread safe index of keys by tag, for the in process caches. Keys are to be untagged when their entries go, so that
+ * index doesn't outgrow the cache.
+ *
+ * @author rpatil
+ * @version 1.0
+ */
+final class TagIndex<K> {
+
+    private final ConcurrentHashMap<String, Set<K>> keysByTag = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<K, Collection<String>> tagsByKey = new ConcurrentHashMap<>();
+
+    /**
+     * @param key  - key
+     * @param tags - tags of the key, replacing the ones it had
+     */
+    void tag(K key, Collection<String> tags) {
+        this.untag(key);
+        if (tags == null || tags.isEmpty()) return;
+        tagsByKey.put(key, new ArrayList<>(tags));
+        for (String tag : tags) {
+            keysByTag.compute(tag, (t, keys) -> {
+                Set<K> tagged = keys != null ? keys : ConcurrentHashMap.newKeySet();
+                tagged.add(key);
+                return tagged;
+            });
+        }
+    }
+
+    void untag(K key) {
+        Collection<String> tags = tagsByKey.remove(key);
+        if (tags == null) return;
+        for (String tag : tags) {
+            keysByTag.computeIfPresent(tag, (t, keys) -> {
+                keys.remove(key);
+                return keys.isEmpty() ? null : keys;
+            });
+        }
+    }
+
+    /**
+     * @return copy of the keys that have the tag
+     */
+    Set<K> keysOf(String tag) {
+        Set<K> keys = keysByTag.get(tag);
+        return keys != null ? new HashSet<>(keys) : Collections.<K>emptySet();
+    }
+
+    void clear() {
+        keysByTag.clear();
+        tagsByKey.clear();
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2010-2016 Rajendra Patil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.webutilities.common.cache.impl;
+
+import com.google.common.base.Charsets;
+
+import java.io.*;
+import java.util.Map;
+
+/**
+ * Value of a distributed cache stored along with the generations its tags had when it was put.
+ * <p>
+ * Distributed caches keep a counter (generation) per tag, and invalidate a tag by incrementing it, instead of keeping
+ * lists of the tagged keys: lists grow with every put, and keys added to them while they are being removed are lost.
+ * A tagged value is current only while all its tags still have the generations it was stored with, so values of an
+ * invalidated tag are read as misses, and go when they expire. Value itself is kept as the bytes (and flags) its
+ * cache encoded it to, and decoded only if it is current.
+ * </p>
+ *
+ * @author rpatil
+ * @version 1.0
+ */
+final class TaggedValue {
+
+    private static final int MAGIC = 0x5754; // "WT", responses start with "WU"
+
+    final String[] tags;
+
+    final long[] generations;
+
+    final int flags;
+
+    final byte[] data;
+
+    TaggedValue(String[] tags, long[] generations, int flags, byte[] data) {
+        this.tags = tags;
+        this.generations = generations;
+        this.flags = flags;
+        this.data = data;
+    }
+
+    /**
+     * @param currentGenerations - current generation of the tags, by tag
+     * @return true if none of the tags was invalidated since the value was stored
+     */
+    boolean isCurrent(Map<String, Long> currentGenerations) {
+        for (int i = 0; i < tags.length; i++) {
+            Long current = currentGenerations.get(tags[i]);
+            if (current == null || current != generations[i]) return false; //counter gone or incremented
+        }
+        return true;
+    }
+
+    byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length + 64 * tags.length + 16);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeShort(MAGIC);
+            out.writeInt(flags);
+            out.writeInt(tags.length);
+            for (int i = 0; i < tags.length; i++) {
+                byte[] tag = tags[i].getBytes(Charsets.UTF_8);
+                out.writeInt(tag.length);
+                out.write(tag);
+                out.writeLong(generations[i]);
+            }
+            out.write(data);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex); //in memory, doesn't happen
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param bytes - bytes that may have been written by {@link #encode()}
+     * @return the tagged value, null if bytes are not of one
+     */
+    static TaggedValue decode(byte[] bytes) {
+        if (bytes == null || bytes.length < 10 || ((bytes[0] & 0xFF) << 8 | (bytes[1] & 0xFF)) != MAGIC) return null;
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            in.readShort();
+            int flags = in.readInt();
+            int count = in.readInt();
+            String[] tags = new String[count];
+            long[] generations = new long[count];
+            for (int i = 0; i < count; i++) {
+                byte[] tag = new byte[in.readInt()];
+                in.readFully(tag);
+                tags[i] = new String(tag, Charsets.UTF_8);
+                generations[i] = in.readLong();
+            }
+            byte[] data = new byte[in.available()];
+            in.readFully(data);
+            return new TaggedValue(tags, generations, flags, data);
+        } catch (IOException | RuntimeException ex) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2010-2016 Rajendra Patil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.webutilities.common.cache.impl;
+
+import com.googlecode.webutilities.common.cache.Cache;
+import com.googlecode.webutilities.common.cache.CacheConfig;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Two tier cache: bounded in process cache (L1) in front of a remote one (L2).
+ * <p>
+ * Gets are served from L1 when they can be, otherwise read through from L2 and promoted to L1. Puts and invalidations
+ * go to both. L1 entries live for local TTL of the config, or reload time if that is shorter (and set), so they never
+ * outlive the L2 entry they came from by more than that, and changes made by other servers through L2 show up here
+ * within local TTL.
+ * </p>
+ * <p>
+ * Invalidating a tag drops the whole local tier, as entries promoted from L2 don't carry their tags.
+ * </p>
+ *
+ * @author rpatil
+ * @version 1.0
+ */
+public class TieredCache<K, V> implements Cache<K, V> {
+
+    private final Cache<K, V> local;
+
+    private final Cache<K, V> remote;
+
+    public TieredCache(CacheConfig<K, V> cacheConfig, Cache<K, V> remote) {
+        CacheConfig<K, V> localConfig = new CacheConfig<>();
+        int ttl = cacheConfig.getLocalTtl();
+        if (cacheConfig.getReloadTime() > 0 && (ttl <= 0 || cacheConfig.getReloadTime() < ttl)) {
+            ttl = cacheConfig.getReloadTime();
+        }
+        localConfig.setReloadTime(ttl);
+        localConfig.setMaximumWeight(cacheConfig.getLocalMaximumWeight());
+        localConfig.setTinyLfu(cacheConfig.isTinyLfu());
+        this.local = new GoogleCache<>(localConfig);
+        this.remote = remote;
+    }
+
+    public Cache<K, V> getRemote() {
+        return remote;
+    }
+
+    @Override
+    public void put(K key, V value) {
+        local.put(key, value);
+        remote.put(key, value);
+    }
+
+    @Override
+    public void put(K key, V value, Collection<String> tags) {
+        local.put(key, value, tags);
+        remote.put(key, value, tags);
+    }
+
+    @Override
+    public V get(K key) {
+        V value = local.get(key);
+        if (value == null) {
+            value = remote.get(key);
+            if (value != null) {
+                local.put(key, value);
+            }
+        }
+        return value;
+    }
+
+    @Override
+    public void invalidate(K key) {
+        local.invalidate(key);
+        remote.invalidate(key);
+    }
+
+    @Override
+    public void invalidateAll() {
+        local.invalidateAll();
+        remote.invalidateAll();
+    }
+
+    @Override
+    public Map<K, V> getAll(Iterable<? extends K> keys) {
+        Map<K, V> values = local.getAll(keys);
+        List<K> missing = new ArrayList<>();
+        for (K key : keys) {
+            if (!values.containsKey(key)) {
+                missing.add(key);
+            }
+        }
+        if (!missing.isEmpty()) {
+            Map<K, V> remoteValues = remote.getAll(missing);
+            local.putAll(remoteValues);
+            values.putAll(remoteValues);
+        }
+        return values;
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> entries) {
+        local.putAll(entries);
+        remote.putAll(entries);
+    }
+
+    @Override
+    public void invalidateAll(Iterable<? extends K> keys) {
+        local.invalidateAll(keys);
+        remote.invalidateAll(keys);
+    }
+
+    @Override
+    public void invalidateTag(String tag) {
+        local.invalidateAll();
+        remote.invalidateTag(tag);
+    }
+
+    @Override
+    public void cleanup() {
+        local.cleanup();
+        remote.cleanup();
+    }
+}
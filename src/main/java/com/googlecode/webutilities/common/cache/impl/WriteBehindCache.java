@@ -0,0 +1,304 @@
+/*
+ * Copyright 2010-2016 Rajendra Patil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.webutilities.common.cache.impl;
+
+import com.googlecode.webutilities.common.cache.Cache;
+import com.googlecode.webutilities.common.cache.CacheConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cache that writes puts to the cache it wraps (a remote one) in background, so requests don't wait on serialization
+ * and network writes.
+ * <p>
+ * Puts are queued, up to write behind queue size of the config, and written by a single daemon thread in batches (one
+ * bulk {@link Cache#putAll(Map)} for untagged ones). When the queue is full the oldest put is dropped. Till a put is
+ * written, gets of its key are served from the queue, and a later put of the same key replaces it. Invalidations go
+ * to the wrapped cache right away and drop the queued puts they cover; they are never reordered with a batch being
+ * written. {@link #cleanup()} writes what is queued before closing the wrapped cache.
+ * </p>
+ * <p>
+ * Counts of written, dropped and failed puts are kept for monitoring.
+ * </p>
+ *
+ * @author rpatil
+ * @version 1.0
+ */
+public class WriteBehindCache<K, V> implements Cache<K, V> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WriteBehindCache.class.getName());
+
+    private static final int BATCH_SIZE = 64;
+
+    private final Cache<K, V> delegate;
+
+    private final LinkedBlockingDeque<Write<K, V>> queue;
+
+    private final Map<K, Write<K, V>> pending = new ConcurrentHashMap<>(); //latest queued put of each key
+
+    private final ReentrantLock writeLock = new ReentrantLock(); //orders batches with invalidations
+
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "webutilities-cache-write-behind");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicLong written = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    public WriteBehindCache(CacheConfig<K, V> cacheConfig, Cache<K, V> delegate) {
+        this.delegate = delegate;
+        this.queue = new LinkedBlockingDeque<>(Math.max(cacheConfig.getWriteBehindQueueSize(), 1));
+    }
+
+    public Cache<K, V> getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * @return puts written to the wrapped cache
+     */
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    /**
+     * @return puts dropped as the queue was full
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return puts the wrapped cache failed to write
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * @return puts waiting to be written
+     */
+    public int getQueuedCount() {
+        return queue.size();
+    }
+
+    @Override
+    public void put(K key, V value) {
+        this.enqueue(new Write<>(key, value, null));
+    }
+
+    @Override
+    public void put(K key, V value, Collection<String> tags) {
+        this.enqueue(new Write<>(key, value, tags));
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> entries) {
+        for (Map.Entry<? extends K, ? extends V> entry : entries.entrySet()) {
+            this.enqueue(new Write<>(entry.getKey(), entry.getValue(), null));
+        }
+    }
+
+    @Override
+    public V get(K key) {
+        Write<K, V> write = pending.get(key);
+        return write != null ? write.value : delegate.get(key);
+    }
+
+    @Override
+    public Map<K, V> getAll(Iterable<? extends K> keys) {
+        Map<K, V> values = new HashMap<>();
+        List<K> missing = new ArrayList<>();
+        for (K key : keys) {
+            Write<K, V> write = pending.get(key);
+            if (write != null) {
+                values.put(key, write.value);
+            } else {
+                missing.add(key);
+            }
+        }
+        if (!missing.isEmpty()) {
+            values.putAll(delegate.getAll(missing));
+        }
+        return values;
+    }
+
+    @Override
+    public void invalidate(K key) {
+        writeLock.lock();
+        try {
+            pending.remove(key);
+            delegate.invalidate(key);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void invalidateAll(Iterable<? extends K> keys) {
+        writeLock.lock();
+        try {
+            for (K key : keys) {
+                pending.remove(key);
+            }
+            delegate.invalidateAll(keys);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void invalidateAll() {
+        writeLock.lock();
+        try {
+            queue.clear();
+            pending.clear();
+            delegate.invalidateAll();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void invalidateTag(String tag) {
+        writeLock.lock();
+        try {
+            pending.values().removeIf(write -> write.tags != null && write.tags.contains(tag));
+            delegate.invalidateTag(tag);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void cleanup() {
+        writer.shutdownNow();
+        this.flush();
+        delegate.cleanup();
+    }
+
+    /**
+     * Writes the queued puts in calling thread, returns once puts queued before are written
+     */
+    public void flush() {
+        List<Write<K, V>> batch = new ArrayList<>(BATCH_SIZE);
+        while (true) {
+            writeLock.lock(); //batch taken by the background thread is written before this one is taken
+            try {
+                if (queue.drainTo(batch, BATCH_SIZE) == 0) return;
+                this.write(batch);
+            } finally {
+                writeLock.unlock();
+            }
+            batch.clear();
+        }
+    }
+
+    private void enqueue(Write<K, V> write) {
+        pending.put(write.key, write);
+        while (!queue.offerLast(write)) {
+            Write<K, V> oldest = queue.pollFirst();
+            if (oldest != null && pending.remove(oldest.key, oldest)) {
+                dropped.incrementAndGet();
+                LOGGER.debug("Write behind queue is full, dropped put of {}", oldest.key);
+            }
+        }
+        if (draining.compareAndSet(false, true)) {
+            this.submitDrain();
+        }
+    }
+
+    private void submitDrain() {
+        try {
+            writer.execute(this::drain);
+        } catch (RejectedExecutionException ex) {
+            draining.set(false); //cleaned up, queued puts are written by cleanup or not at all
+        }
+    }
+
+    private void drain() {
+        try {
+            this.flush();
+        } finally {
+            draining.set(false);
+            if (!queue.isEmpty() && draining.compareAndSet(false, true)) {
+                this.submitDrain(); //queued after the last drainTo
+            }
+        }
+    }
+
+    private void write(List<Write<K, V>> batch) { //with write lock held
+        List<Write<K, V>> current = new ArrayList<>(batch.size());
+        Map<K, V> untagged = new LinkedHashMap<>();
+        for (Write<K, V> write : batch) {
+            if (pending.get(write.key) != write) continue; //replaced or invalidated since
+            current.add(write);
+            if (write.tags == null) {
+                untagged.put(write.key, write.value);
+            }
+        }
+        try {
+            if (!untagged.isEmpty()) {
+                delegate.putAll(untagged);
+            }
+            for (Write<K, V> write : current) {
+                if (write.tags != null) {
+                    delegate.put(write.key, write.value, write.tags);
+                }
+            }
+            written.addAndGet(current.size());
+        } catch (RuntimeException ex) {
+            failed.addAndGet(current.size());
+            LOGGER.debug("Failed to write {} puts behind.", current.size(), ex);
+        }
+        for (Write<K, V> write : current) {
+            pending.remove(write.key, write);
+        }
+    }
+
+    private static final class Write<K, V> {
+
+        private final K key;
+
+        private final V value;
+
+        private final Collection<String> tags;
+
+        private Write(K key, V value, Collection<String> tags) {
+            this.key = key;
+            this.value = value;
+            this.tags = tags;
+        }
+    }
+}
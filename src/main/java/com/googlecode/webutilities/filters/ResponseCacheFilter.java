@@ -17,22 +17,33 @@
 package com.googlecode.webutilities.filters;
 
 import com.googlecode.webutilities.common.Constants;
+import com.googlecode.webutilities.common.TeeResponseWrapper;
 import com.googlecode.webutilities.common.WebUtilitiesResponseWrapper;
 import com.googlecode.webutilities.common.cache.Cache;
 import com.googlecode.webutilities.common.cache.CacheConfig;
 import com.googlecode.webutilities.common.cache.CacheFactory;
+import com.googlecode.webutilities.common.cache.CacheKeyFormat;
 import com.googlecode.webutilities.common.cache.CachedResponse;
 import com.googlecode.webutilities.filters.common.AbstractFilter;
 import com.googlecode.webutilities.servlets.JSCSSMergeServlet;
+import com.googlecode.webutilities.util.ResourceMetadata;
+import com.googlecode.webutilities.util.ResourceWatcher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.servlet.*;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static com.googlecode.webutilities.common.Constants.DEFAULT_CACHE_CONTROL;
 import static com.googlecode.webutilities.common.Constants.DEFAULT_EXPIRES_MINUTES;
@@ -74,6 +85,64 @@ import static com.googlecode.webutilities.util.Utils.*;
  * <p>
  * And you are all done!
  * </p>
+ * <p>
+ * Cache key is the request URI, optionally followed by the query string, headers and parameters listed in
+ * <b>cacheKeyFormat</b> init param (eg. <code>queryString, header=Accept-Language, parameter=id</code>). Set
+ * <b>hashCacheKey</b> init param to true to use fixed width 128 bit hash of that as the key instead.
+ * </p>
+ * <p>
+ * Set <b>coalesceRequests</b> init param to true so that when many requests miss the cache for the same key at once,
+ * only the first one renders the response and others wait for it (up to <b>coalesceTimeout</b> milliseconds, 5000 by
+ * default) and are served from what it cached. If it times out or nothing gets cached, they render it themselves.
+ * </p>
+ * <p>
+ * When the resources of a cached response change, it is normally dropped and the request waits for it to be rendered
+ * again. With <b>staleWhileRevalidate</b> init param (seconds) the stale response is sent right away instead, if the
+ * resources changed no longer ago than that, and is then rendered again (after the stale one is sent, so the client
+ * doesn't wait for it) and cached. With <b>staleIfError</b> init param (seconds) the stale response is sent if
+ * rendering it again throws or returns 5xx status. Such responses have <code>X-ResponseCacheFilter: STALE</code> header.
+ * </p>
+ * <p>
+ * Responses are cached in memory by default, as soft references unless <b>cacheMaxWeight</b> init param (bytes) bounds
+ * the cache, optionally with <b>cacheExpireAfterAccess</b> (seconds) and <b>cacheTinyLfu</b> (admit new responses to
+ * a full cache only if they are asked for more than once). Set <b>cacheProvider</b> init param to <code>OFF_HEAP</code>
+ * to keep the bodies in direct memory instead, bound by <b>cacheMaxOffHeapBytes</b> (64 MB by default), or to
+ * <code>MEMCACHED</code>, <code>REDIS</code> or <code>COUCHBASE</code> (with <b>cacheHost</b> and <b>cachePort</b>)
+ * to share them across servers (for <code>MEMCACHED</code>, <b>cacheHost</b> can list several <code>host:port</code>
+ * servers, and <b>cacheBinaryProtocol</b> turns on binary protocol). Gets from those that take longer than
+ * <b>cacheOperationTimeout</b> (millis, 500 by default) are taken as misses. Set <b>cacheLocalTier</b> init param to true to keep recently used ones of those in
+ * memory too (up to <b>cacheLocalMaxWeight</b> bytes, 16 MB by default, for <b>cacheLocalTtl</b> seconds, 60 by
+ * default, or <b>reloadTime</b> if shorter), so hits don't go over the network. Set <b>cacheCompressThreshold</b>
+ * init param (bytes) to keep bodies of at least that size Deflate compressed in the cache, to save memory and network
+ * transfer on text content at the cost of inflating them on each hit. Set <b>cacheWriteBehind</b> init param to true to
+ * write responses to the distributed caches in background, after they are sent, through a queue of
+ * <b>cacheWriteBehindQueueSize</b> (1000 by default) puts that drops the oldest ones when full.
+ * </p>
+ * <p>
+ * Set <b>storeCompressed</b> init param to true to send cached text responses gzip or deflate encoded to the clients
+ * that accept it, with <code>Vary: Accept-Encoding</code>. Encoded copy is made on first such hit and cached along, so
+ * <code>CompressionFilter</code> in front doesn't compress the same content on every hit (it leaves encoded responses
+ * as is).
+ * </p>
+ * <p>
+ * On a miss, response is streamed to the client as it is rendered and a copy of it is kept for the cache, up to
+ * <b>maxCacheableSize</b> init param (bytes, unbound if 0); larger responses are sent but not cached. As headers set
+ * after the response is committed don't reach the client, <code>X-Cache</code> header of large responses may stay
+ * <code>NOT_FOUND</code> though they were added. Set <b>streamResponse</b> init param to false to render the whole
+ * response before sending it. Responses that could be replaced by a stale one (<b>staleIfError</b>) are always
+ * rendered whole.
+ * </p>
+ * <p>
+ * Cached responses are dropped when the underlying files change. Set <b>watchResources</b> init param to true to learn
+ * that from a file system watch service instead of checking the files on each request.
+ * </p>
+ * <p>
+ * Cached responses are tagged with the resources they were built from, the directories of their URI and the webapp,
+ * so that they can be dropped selectively ({@link #invalidateResource(String)}, {@link #invalidatePrefix(String)}),
+ * without flushing a distributed cache other webapps share. <code>_resetcache_</code> request parameter with a value
+ * starting with <code>/</code> drops the responses built from that resource, or under that URI prefix if it ends with
+ * <code>/</code>. Otherwise it drops all the responses of the webapp, as does <b>resetTime</b>.
+ * </p>
  * <p>    `
  * Visit http://code.google.com/p/webutilities/wiki/ResponseCacheFilter for more details.
  *
@@ -85,7 +154,7 @@ public class ResponseCacheFilter extends AbstractFilter {
 
     public static final String CACHE_HEADER = "X-ResponseCacheFilter";
 
-    public enum CacheState {FOUND, NOT_FOUND, ADDED, SKIPPED}
+    public enum CacheState {FOUND, NOT_FOUND, ADDED, SKIPPED, STALE}
 
     private Cache<String, CachedResponse> cache;
 
@@ -93,7 +162,7 @@ public class ResponseCacheFilter extends AbstractFilter {
 
     private long lastResetTime;
 
-    private String cacheKeyFormat;
+    private CacheKeyFormat cacheKeyFormat;
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ResponseCacheFilter.class.getName());
 
@@ -103,12 +172,80 @@ public class ResponseCacheFilter extends AbstractFilter {
 
     private static final String INIT_PARAM_CACHE_PORT = "cachePort"; //Port for distributed cache
 
+    private static final String INIT_PARAM_CACHE_BINARY_PROTOCOL = "cacheBinaryProtocol"; //Binary protocol for MEMCACHED
+
+    private static final String INIT_PARAM_CACHE_OPERATION_TIMEOUT = "cacheOperationTimeout"; //Millis to wait for distributed cache
+
+    private static final String INIT_PARAM_CACHE_COMPRESS_THRESHOLD = "cacheCompressThreshold"; //Bytes from which bodies are kept compressed, off if 0
+
+    private static final String INIT_PARAM_CACHE_WRITE_BEHIND = "cacheWriteBehind"; //Write to distributed cache in background
+
+    private static final String INIT_PARAM_CACHE_WRITE_BEHIND_QUEUE_SIZE = "cacheWriteBehindQueueSize"; //Puts waiting to be written behind
+
+    private static final String INIT_PARAM_CACHE_MAX_OFF_HEAP_BYTES = "cacheMaxOffHeapBytes"; //Memory limit of OFF_HEAP cache
+
+    private static final String INIT_PARAM_CACHE_MAX_WEIGHT = "cacheMaxWeight"; //Bytes DEFAULT cache holds, unbound (soft values) if 0
+
+    private static final String INIT_PARAM_CACHE_EXPIRE_AFTER_ACCESS = "cacheExpireAfterAccess"; //Seconds
+
+    private static final String INIT_PARAM_CACHE_TINY_LFU = "cacheTinyLfu"; //Frequency based admission for DEFAULT cache
+
+    private static final String INIT_PARAM_CACHE_LOCAL_TIER = "cacheLocalTier"; //In memory cache in front of distributed cache
+
+    private static final String INIT_PARAM_CACHE_LOCAL_MAX_WEIGHT = "cacheLocalMaxWeight"; //Bytes the in memory tier holds
+
+    private static final String INIT_PARAM_CACHE_LOCAL_TTL = "cacheLocalTtl"; //Seconds a response lives in the in memory tier
+
     private static final String INIT_PARAM_RELOAD_TIME = "reloadTime";
 
     private static final String INIT_PARAM_RESET_TIME = "resetTime";
 
     private static final String INIT_PARAM_CAHE_KEY_FORMAT = "cacheKeyFormat"; //Comma separated list of attributes to be used in the order to form the cache key
 
+    private static final String INIT_PARAM_HASH_CACHE_KEY = "hashCacheKey"; //Use 128 bit hash of the key instead of the key itself
+
+    private static final String INIT_PARAM_WATCH_RESOURCES = "watchResources";
+
+    private static final String INIT_PARAM_COALESCE_REQUESTS = "coalesceRequests"; //Only first miss per key renders, others wait for it
+
+    private static final String INIT_PARAM_COALESCE_TIMEOUT = "coalesceTimeout"; //Millis to wait for the first miss before rendering anyway
+
+    private static final int DEFAULT_COALESCE_TIMEOUT = 5000;
+
+    private static final String INIT_PARAM_STALE_WHILE_REVALIDATE = "staleWhileRevalidate"; //Seconds a stale response can be served while it is refreshed
+
+    private static final String INIT_PARAM_STALE_IF_ERROR = "staleIfError"; //Seconds a stale response can be served if refreshing it fails
+
+    private static final String INIT_PARAM_STORE_COMPRESSED = "storeCompressed"; //Keep gzip/deflate encoded copies of cached responses
+
+    private static final String INIT_PARAM_STREAM_RESPONSE = "streamResponse"; //Send response as it is rendered instead of after
+
+    private static final String INIT_PARAM_MAX_CACHEABLE_SIZE = "maxCacheableSize"; //Bytes of the largest response that is cached, unbound if 0
+
+    private boolean watchingResources = false;
+
+    private boolean coalesceRequests = false;
+
+    private int coalesceTimeout = DEFAULT_COALESCE_TIMEOUT;
+
+    private int staleWhileRevalidate = 0;
+
+    private int staleIfError = 0;
+
+    private boolean storeCompressed = false;
+
+    private boolean streamResponse = true;
+
+    private int maxCacheableSize = 0;
+
+    private final ConcurrentHashMap<String, CountDownLatch> inFlight = new ConcurrentHashMap<>();
+
+    private static final String TAG_APP = "app:"; //context path of the webapp
+
+    private static final String TAG_URI_PREFIX = "uri:"; //each directory of the request URI, ending with /
+
+    private static final String TAG_RESOURCE = "res:"; //each resource the response is built from
+
     private static final String DEFAULT_CACHE_KEY_FORMAT = "URI"; //eg. "queryString, header=X-Requested-By, parameter=username". URI is always part of key
 
     @Override
@@ -118,10 +255,27 @@ public class ResponseCacheFilter extends AbstractFilter {
         int reloadTime = readInt(filterConfig.getInitParameter(INIT_PARAM_RELOAD_TIME), 0);
 
         this.resetTime = readInt(filterConfig.getInitParameter(INIT_PARAM_RESET_TIME), resetTime);
-        this.cacheKeyFormat = readString(filterConfig.getInitParameter(INIT_PARAM_CAHE_KEY_FORMAT), DEFAULT_CACHE_KEY_FORMAT);
+        String keyFormat = readString(filterConfig.getInitParameter(INIT_PARAM_CAHE_KEY_FORMAT), DEFAULT_CACHE_KEY_FORMAT);
+        boolean hashCacheKey = readBoolean(filterConfig.getInitParameter(INIT_PARAM_HASH_CACHE_KEY), false);
+        this.cacheKeyFormat = CacheKeyFormat.compile(keyFormat, hashCacheKey);
 
         lastResetTime = new Date().getTime();
 
+        if (this.watchingResources) {
+            ResourceWatcher.release();
+        }
+        this.watchingResources = readBoolean(filterConfig.getInitParameter(INIT_PARAM_WATCH_RESOURCES), false)
+                && ResourceWatcher.acquire();
+
+        this.coalesceRequests = readBoolean(filterConfig.getInitParameter(INIT_PARAM_COALESCE_REQUESTS), false);
+        this.coalesceTimeout = readInt(filterConfig.getInitParameter(INIT_PARAM_COALESCE_TIMEOUT), DEFAULT_COALESCE_TIMEOUT);
+
+        this.staleWhileRevalidate = readInt(filterConfig.getInitParameter(INIT_PARAM_STALE_WHILE_REVALIDATE), 0);
+        this.staleIfError = readInt(filterConfig.getInitParameter(INIT_PARAM_STALE_IF_ERROR), 0);
+        this.storeCompressed = readBoolean(filterConfig.getInitParameter(INIT_PARAM_STORE_COMPRESSED), false);
+        this.streamResponse = readBoolean(filterConfig.getInitParameter(INIT_PARAM_STREAM_RESPONSE), true);
+        this.maxCacheableSize = readInt(filterConfig.getInitParameter(INIT_PARAM_MAX_CACHEABLE_SIZE), 0);
+
         CacheConfig<String, CachedResponse> cacheConfig = new CacheConfig<>();
 
         String providerValue = readString(filterConfig.getInitParameter(INIT_PARAM_CACHE_PROVIDER), null);
@@ -133,6 +287,23 @@ public class ResponseCacheFilter extends AbstractFilter {
         cacheConfig.setHostname(cacheHost);
         int cachePort = readInt(filterConfig.getInitParameter(INIT_PARAM_CACHE_PORT), 0);
         cacheConfig.setPortNumber(cachePort);
+        cacheConfig.setBinaryProtocol(readBoolean(filterConfig.getInitParameter(INIT_PARAM_CACHE_BINARY_PROTOCOL), false));
+        cacheConfig.setOperationTimeout(readInt(filterConfig.getInitParameter(INIT_PARAM_CACHE_OPERATION_TIMEOUT),
+                CacheConfig.DEFAULT_OPERATION_TIMEOUT));
+        cacheConfig.setMaxOffHeapBytes(readLong(filterConfig.getInitParameter(INIT_PARAM_CACHE_MAX_OFF_HEAP_BYTES),
+                CacheConfig.DEFAULT_MAX_OFF_HEAP_BYTES));
+        cacheConfig.setMaximumWeight(readLong(filterConfig.getInitParameter(INIT_PARAM_CACHE_MAX_WEIGHT), 0));
+        cacheConfig.setExpireAfterAccess(readInt(filterConfig.getInitParameter(INIT_PARAM_CACHE_EXPIRE_AFTER_ACCESS), 0));
+        cacheConfig.setTinyLfu(readBoolean(filterConfig.getInitParameter(INIT_PARAM_CACHE_TINY_LFU), false));
+        cacheConfig.setLocalTier(readBoolean(filterConfig.getInitParameter(INIT_PARAM_CACHE_LOCAL_TIER), false));
+        cacheConfig.setLocalMaximumWeight(readLong(filterConfig.getInitParameter(INIT_PARAM_CACHE_LOCAL_MAX_WEIGHT),
+                CacheConfig.DEFAULT_LOCAL_MAXIMUM_WEIGHT));
+        cacheConfig.setLocalTtl(readInt(filterConfig.getInitParameter(INIT_PARAM_CACHE_LOCAL_TTL), CacheConfig.DEFAULT_LOCAL_TTL));
+        cacheConfig.setCompressThreshold(readInt(filterConfig.getInitParameter(INIT_PARAM_CACHE_COMPRESS_THRESHOLD), 0));
+        cacheConfig.setWriteBehind(readBoolean(filterConfig.getInitParameter(INIT_PARAM_CACHE_WRITE_BEHIND), false));
+        cacheConfig.setWriteBehindQueueSize(readInt(filterConfig.getInitParameter(INIT_PARAM_CACHE_WRITE_BEHIND_QUEUE_SIZE),
+                CacheConfig.DEFAULT_WRITE_BEHIND_QUEUE_SIZE));
+        cacheConfig.setReloadTime(reloadTime);
 
         if (!CacheFactory.isCacheProvider(cache, cacheConfig.getProvider())) {
             try {
@@ -144,6 +315,28 @@ public class ResponseCacheFilter extends AbstractFilter {
         }
 
         LOGGER.debug("Cache Filter initialized with: " +
+                        "{}:{},\n" +
+                        "{}:{},\n" +
+                        "{}:{},\n" +
+                        "{}:{},\n" +
+                        "{}:{},\n" +
+                        "{}:{},\n" +
+                        "{}:{},\n" +
+                        "{}:{},\n" +
+                        "{}:{},\n" +
+                        "{}:{},\n" +
+                        "{}:{},\n" +
+                        "{}:{},\n" +
+                        "{}:{},\n" +
+                        "{}:{},\n" +
+                        "{}:{},\n" +
+                        "{}:{},\n" +
+                        "{}:{},\n" +
+                        "{}:{},\n" +
+                        "{}:{},\n" +
+                        "{}:{},\n" +
+                        "{}:{},\n" +
+                        "{}:{},\n" +
                         "{}:{},\n" +
                         "{}:{},\n" +
                         "{}:{},\n" +
@@ -152,8 +345,30 @@ public class ResponseCacheFilter extends AbstractFilter {
                 INIT_PARAM_CACHE_PROVIDER, providerValue,
                 INIT_PARAM_CACHE_HOST, cacheHost,
                 INIT_PARAM_CACHE_PORT, String.valueOf(cachePort),
+                INIT_PARAM_CACHE_BINARY_PROTOCOL, String.valueOf(cacheConfig.isBinaryProtocol()),
+                INIT_PARAM_CACHE_OPERATION_TIMEOUT, String.valueOf(cacheConfig.getOperationTimeout()),
+                INIT_PARAM_CACHE_MAX_OFF_HEAP_BYTES, String.valueOf(cacheConfig.getMaxOffHeapBytes()),
+                INIT_PARAM_CACHE_MAX_WEIGHT, String.valueOf(cacheConfig.getMaximumWeight()),
+                INIT_PARAM_CACHE_EXPIRE_AFTER_ACCESS, String.valueOf(cacheConfig.getExpireAfterAccess()),
+                INIT_PARAM_CACHE_TINY_LFU, String.valueOf(cacheConfig.isTinyLfu()),
+                INIT_PARAM_CACHE_LOCAL_TIER, String.valueOf(cacheConfig.isLocalTier()),
+                INIT_PARAM_CACHE_LOCAL_MAX_WEIGHT, String.valueOf(cacheConfig.getLocalMaximumWeight()),
+                INIT_PARAM_CACHE_LOCAL_TTL, String.valueOf(cacheConfig.getLocalTtl()),
+                INIT_PARAM_CACHE_COMPRESS_THRESHOLD, String.valueOf(cacheConfig.getCompressThreshold()),
+                INIT_PARAM_CACHE_WRITE_BEHIND, String.valueOf(cacheConfig.isWriteBehind()),
+                INIT_PARAM_CACHE_WRITE_BEHIND_QUEUE_SIZE, String.valueOf(cacheConfig.getWriteBehindQueueSize()),
                 INIT_PARAM_RELOAD_TIME, String.valueOf(reloadTime),
-                INIT_PARAM_RESET_TIME, String.valueOf(resetTime));
+                INIT_PARAM_RESET_TIME, String.valueOf(resetTime),
+                INIT_PARAM_CAHE_KEY_FORMAT, keyFormat,
+                INIT_PARAM_HASH_CACHE_KEY, String.valueOf(hashCacheKey),
+                INIT_PARAM_WATCH_RESOURCES, String.valueOf(watchingResources),
+                INIT_PARAM_COALESCE_REQUESTS, String.valueOf(coalesceRequests),
+                INIT_PARAM_COALESCE_TIMEOUT, String.valueOf(coalesceTimeout),
+                INIT_PARAM_STALE_WHILE_REVALIDATE, String.valueOf(staleWhileRevalidate),
+                INIT_PARAM_STALE_IF_ERROR, String.valueOf(staleIfError),
+                INIT_PARAM_STORE_COMPRESSED, String.valueOf(storeCompressed),
+                INIT_PARAM_STREAM_RESPONSE, String.valueOf(streamResponse),
+                INIT_PARAM_MAX_CACHEABLE_SIZE, String.valueOf(maxCacheableSize));
     }
 
     public Cache<String, CachedResponse> getCache() {
@@ -171,7 +386,6 @@ public class ResponseCacheFilter extends AbstractFilter {
         HttpServletResponse httpServletResponse = (HttpServletResponse) servletResponse;
 
         String url = httpServletRequest.getRequestURI();
-        String cacheKey = generateCacheKeyForTheRequest(httpServletRequest);
 
         //httpServletResponse.setHeader(CACHE_HEADER, CacheState.SKIPPED.toString());
 
@@ -185,6 +399,7 @@ public class ResponseCacheFilter extends AbstractFilter {
             return;
         }
 
+        String cacheKey = generateCacheKeyForTheRequest(httpServletRequest);
 
         long now = new Date().getTime();
 
@@ -202,13 +417,22 @@ public class ResponseCacheFilter extends AbstractFilter {
             cache.invalidate(cacheKey);
         }
 
-        boolean resetCache = httpServletRequest.getParameter(Constants.PARAM_RESET_CACHE) != null ||
-                resetTime > 0 && (now - lastResetTime) / 1000 > resetTime;
+        String resetScope = httpServletRequest.getParameter(Constants.PARAM_RESET_CACHE);
+        boolean resetCache = resetScope != null || resetTime > 0 && (now - lastResetTime) / 1000 > resetTime;
 
         if (resetCache) {
-            LOGGER.trace("Resetting whole Cache for {} due to URL parameter.", url);
-            cache.invalidateAll(); // fixme: we don't need reset since cache values are soft referenced.
-            lastResetTime = now;
+            if (resetScope != null && resetScope.startsWith("/")) {
+                LOGGER.trace("Resetting Cache of {} due to URL parameter.", resetScope);
+                if (resetScope.endsWith("/")) {
+                    this.invalidatePrefix(resetScope);
+                } else {
+                    this.invalidateResource(resetScope);
+                }
+            } else {
+                LOGGER.trace("Resetting whole Cache for {} due to URL parameter.", url);
+                cache.invalidateTag(TAG_APP + httpServletRequest.getContextPath()); //only this webapp's responses, others may share the cache
+                lastResetTime = now;
+            }
         }
 
         boolean skipCache = httpServletRequest.getParameter(Constants.PARAM_DEBUG) != null || httpServletRequest.getParameter(Constants.PARAM_SKIP_CACHE) != null;
@@ -227,7 +451,8 @@ public class ResponseCacheFilter extends AbstractFilter {
             extensionOrPath = requestedResources.get(0);//non grouped i.e. non css/js file, we refer it's path in that case
         }
 
-        JSCSSMergeServlet.ResourceStatus status = JSCSSMergeServlet.isNotModified(context, httpServletRequest, requestedResources, false);
+        ResourceMetadata metadata = ResourceMetadata.snapshot(context);
+        JSCSSMergeServlet.ResourceStatus status = JSCSSMergeServlet.isNotModified(metadata, httpServletRequest, requestedResources, false);
         if (status.isNotModified()) {
             LOGGER.trace("Resources Not Modified. Sending 304.");
             //cache.invalidate(cacheKey);
@@ -237,11 +462,19 @@ public class ResponseCacheFilter extends AbstractFilter {
         }
 
         boolean cacheFound = false;
+        boolean store = !expireCache && !resetCache;
+        CachedResponse stale = null;
+        long staleSeconds = 0;
 
         if (cachedResponse != null) {
-            if (requestedResources != null && isAnyResourceModifiedSince(requestedResources, cachedResponse.getTime(), context)) {
+            if (requestedResources != null && isAnyResourceModifiedSince(requestedResources, cachedResponse.getTime(), metadata)) {
                 LOGGER.trace("Some resources have been modified since last cache: {}", url);
-                cache.invalidate(cacheKey);
+                if (store && (staleWhileRevalidate > 0 || staleIfError > 0)) {
+                    stale = cachedResponse; //kept in cache till the fresh one replaces it
+                    staleSeconds = (now - getLastModifiedFor(requestedResources, metadata)) / 1000;
+                } else {
+                    cache.invalidate(cacheKey);
+                }
                 cacheFound = false;
             } else {
                 LOGGER.trace("Found valid cached response.");
@@ -252,35 +485,192 @@ public class ResponseCacheFilter extends AbstractFilter {
         if (cacheFound) {
             LOGGER.debug("Returning Cached response.");
             httpServletResponse.setHeader(CACHE_HEADER, CacheState.FOUND.toString()); //Set header before getWriter
-            cachedResponse.toResponse(httpServletResponse);
-        } else {
-            LOGGER.trace("Cache not found or invalidated");
-            httpServletResponse.setHeader(CACHE_HEADER, CacheState.NOT_FOUND.toString()); //Set header before getWriter
-            WebUtilitiesResponseWrapper wrapper = new WebUtilitiesResponseWrapper(httpServletResponse);
+            this.sendCached(httpServletRequest, httpServletResponse, cacheKey, cachedResponse, requestedResources);
+            return;
+        }
+
+        if (stale != null && staleSeconds < 0) { //modified in the future (clock skew), its age is unknown
+            stale = null;
+        }
+        if (stale != null && staleWhileRevalidate > 0 && staleSeconds <= staleWhileRevalidate) {
+            LOGGER.debug("Returning stale response and revalidating it.");
+            httpServletResponse.setHeader(CACHE_HEADER, CacheState.STALE.toString()); //Set header before getWriter
+            this.sendCached(httpServletRequest, httpServletResponse, cacheKey, stale, requestedResources);
+            this.revalidate(servletRequest, httpServletResponse, filterChain, cacheKey, requestedResources, metadata);
+            return;
+        }
+        CachedResponse fallback = stale != null && staleSeconds <= staleIfError ? stale : null;
+
+        LOGGER.trace("Cache not found or invalidated");
+        CountDownLatch flight = null;
+        if (coalesceRequests && store) {
+            CountDownLatch latch = new CountDownLatch(1);
+            CountDownLatch leader = inFlight.putIfAbsent(cacheKey, latch);
+            if (leader == null) {
+                flight = latch;
+            } else {
+                cachedResponse = this.awaitFlight(leader, cacheKey, url);
+                if (cachedResponse != null && !isAnyResourceModifiedSince(requestedResources, cachedResponse.getTime(), metadata)) {
+                    LOGGER.debug("Returning response cached by concurrent request.");
+                    httpServletResponse.setHeader(CACHE_HEADER, CacheState.FOUND.toString()); //Set header before getWriter
+                    this.sendCached(httpServletRequest, httpServletResponse, cacheKey, cachedResponse, requestedResources);
+                    return;
+                }
+            }
+        }
+        try {
+            this.renderAndCache(servletRequest, httpServletResponse, filterChain, cacheKey, requestedResources, metadata, store, fallback);
+        } finally {
+            if (flight != null) {
+                inFlight.remove(cacheKey, flight);
+                flight.countDown();
+            }
+        }
+    }
+
+    private void renderAndCache(ServletRequest servletRequest, HttpServletResponse httpServletResponse, FilterChain filterChain,
+                                String cacheKey, List<String> requestedResources, ResourceMetadata metadata, boolean store,
+                                CachedResponse fallback) throws IOException, ServletException {
+        String url = ((HttpServletRequest) servletRequest).getRequestURI();
+        httpServletResponse.setHeader(CACHE_HEADER, CacheState.NOT_FOUND.toString()); //Set header before getWriter
+        int maxCaptureBytes = maxCacheableSize > 0 ? maxCacheableSize : Integer.MAX_VALUE;
+        WebUtilitiesResponseWrapper wrapper = streamResponse && fallback == null //fallback needs the response held back
+                ? new TeeResponseWrapper(httpServletResponse, store ? maxCaptureBytes : 0)
+                : new WebUtilitiesResponseWrapper(httpServletResponse);
+        try {
             filterChain.doFilter(servletRequest, wrapper);
+        } catch (IOException | ServletException | RuntimeException ex) {
+            if (fallback == null || httpServletResponse.isCommitted()) {
+                throw ex;
+            }
+            LOGGER.debug("Returning stale response as rendering {} failed. {}", url, ex);
+            this.sendStale((HttpServletRequest) servletRequest, httpServletResponse, cacheKey, fallback, requestedResources);
+            return;
+        }
 
-            // some filters return no status code, but we believe that it is "200 OK"
-            if (wrapper.getStatus() == 0) {
-                wrapper.setStatus(200);
+        // some filters return no status code, but we believe that it is "200 OK"
+        if (wrapper.getStatus() == 0) {
+            wrapper.setStatus(200);
+        }
+        if (fallback != null && wrapper.getStatus() >= 500 && !httpServletResponse.isCommitted()) {
+            LOGGER.debug("Returning stale response as rendering {} returned {}.", url, wrapper.getStatus());
+            this.sendStale((HttpServletRequest) servletRequest, httpServletResponse, cacheKey, fallback, requestedResources);
+            return;
+        }
+        CachedResponse toCache = null;
+        if (isMIMEAccepted(wrapper.getContentType()) && store && wrapper.getStatus() == 200
+                && wrapper.getSize() <= maxCaptureBytes) { //Cache only 200 status response, not larger than max
+            try {
+                toCache = new CachedResponse(getLastModifiedFor(requestedResources, metadata), wrapper);
+                httpServletResponse.setHeader(CACHE_HEADER, CacheState.ADDED.toString()); //Set header before getWriter
+            } catch (Exception ex) {
+                LOGGER.debug("Failed to add cache for: {}. {}", url, ex);
             }
-            if (isMIMEAccepted(wrapper.getContentType()) && !expireCache && !resetCache && wrapper.getStatus() == 200) { //Cache only 200 status response
+
+        } else {
+            LOGGER.trace("Cache NOT added for: {}", url);
+            LOGGER.trace("is MIME not accepted: {}", isMIMEAccepted(wrapper.getContentType()));
+            LOGGER.trace("is store skipped (expire/reset cache): {}", !store);
+            LOGGER.trace("is larger than max cacheable size: {}", store && wrapper.getSize() > maxCaptureBytes);
+        }
+        try {
+            wrapper.fill(httpServletResponse);
+        } finally {
+            if (toCache != null) { //after the response is sent, client doesn't wait on the cache
                 try {
-                    cache.put(cacheKey, new CachedResponse(getLastModifiedFor(requestedResources, context), wrapper));
+                    cache.put(cacheKey, toCache, tagsFor((HttpServletRequest) servletRequest, requestedResources));
                     LOGGER.debug("Cache added for: {}", url);
-                    httpServletResponse.setHeader(CACHE_HEADER, CacheState.ADDED.toString()); //Set header before getWriter
                 } catch (Exception ex) {
                     LOGGER.debug("Failed to add cache for: {}. {}", url, ex);
                 }
+            }
+        }
+    }
+
+    private void sendStale(HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse, String cacheKey,
+                           CachedResponse stale, List<String> requestedResources) {
+        httpServletResponse.reset(); //drop whatever the failed rendering has set
+        httpServletResponse.setHeader(CACHE_HEADER, CacheState.STALE.toString()); //Set header before getWriter
+        this.sendCached(httpServletRequest, httpServletResponse, cacheKey, stale, requestedResources);
+    }
+
+    /**
+     * Sends the cached response, gzip/deflate encoded if storeCompressed is on and client accepts it. When the encoded
+     * body is made for the first time, response is put back in the cache so that remote caches keep it too.
+     */
+    private void sendCached(HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse, String cacheKey,
+                            CachedResponse cachedResponse, List<String> requestedResources) {
+        if (!storeCompressed) {
+            cachedResponse.toResponse(httpServletResponse);
+            return;
+        }
+        if (cachedResponse.toResponse(httpServletResponse, httpServletRequest.getHeader(Constants.HTTP_ACCEPT_ENCODING_HEADER))) {
+            try {
+                cache.put(cacheKey, cachedResponse, tagsFor(httpServletRequest, requestedResources)); //keeps it tagged
+            } catch (Exception ex) {
+                LOGGER.debug("Failed to store encoded cache for: {}. {}", httpServletRequest.getRequestURI(), ex);
+            }
+        }
+    }
 
+    /**
+     * Renders the response again after the stale one has been sent, and caches it. Only one request per key does it,
+     * others just get the stale response till then.
+     */
+    private void revalidate(ServletRequest servletRequest, HttpServletResponse httpServletResponse, FilterChain filterChain,
+                            String cacheKey, List<String> requestedResources, ResourceMetadata metadata) {
+        String url = ((HttpServletRequest) servletRequest).getRequestURI();
+        CountDownLatch latch = new CountDownLatch(1);
+        if (inFlight.putIfAbsent(cacheKey, latch) != null) {
+            LOGGER.trace("Already being revalidated: {}", url);
+            return;
+        }
+        try {
+            WebUtilitiesResponseWrapper wrapper = new WebUtilitiesResponseWrapper(new DetachedResponse(httpServletResponse));
+            filterChain.doFilter(servletRequest, wrapper);
+            if (wrapper.getStatus() == 0) {
+                wrapper.setStatus(200);
+            }
+            int maxCaptureBytes = maxCacheableSize > 0 ? maxCacheableSize : Integer.MAX_VALUE;
+            if (wrapper.getSize() > maxCaptureBytes) {
+                cache.invalidate(cacheKey); //stale one must not be served instead of it anymore
+                LOGGER.debug("Cache NOT revalidated for: {}, larger than max cacheable size", url);
+            } else if (isMIMEAccepted(wrapper.getContentType()) && wrapper.getStatus() == 200) {
+                cache.put(cacheKey, new CachedResponse(getLastModifiedFor(requestedResources, metadata), wrapper),
+                        tagsFor((HttpServletRequest) servletRequest, requestedResources));
+                LOGGER.debug("Cache revalidated for: {}", url);
             } else {
-                LOGGER.trace("Cache NOT added for: {}", url);
-                LOGGER.trace("is MIME not accepted: {}", isMIMEAccepted(wrapper.getContentType()));
-                LOGGER.trace("is expireCache: {}", expireCache);
-                LOGGER.trace("is resetCache: {}", resetCache);
+                LOGGER.debug("Cache NOT revalidated for: {}, status: {}", url, wrapper.getStatus());
             }
-            wrapper.fill(httpServletResponse);
+        } catch (Exception ex) {
+            LOGGER.debug("Failed to revalidate cache for: {}, keeping stale response. {}", url, ex);
+        } finally {
+            inFlight.remove(cacheKey, latch);
+            latch.countDown();
         }
+    }
 
+    /**
+     * Waits for the concurrent request that is rendering the same key, and reads what it cached
+     *
+     * @return cached response, null if it timed out or nothing was cached
+     */
+    private CachedResponse awaitFlight(CountDownLatch leader, String cacheKey, String url) {
+        try {
+            if (!leader.await(coalesceTimeout, TimeUnit.MILLISECONDS)) {
+                LOGGER.debug("Timed out waiting for concurrent request of {}, rendering it.", url);
+                return null;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        try {
+            return cache.get(cacheKey);
+        } catch (Exception ex) {
+            LOGGER.trace("Failed to read from Cache for {}. {}", url, ex);
+            return null;
+        }
     }
 
     /**
@@ -296,29 +686,23 @@ public class ResponseCacheFilter extends AbstractFilter {
      * - "header=Content-Type, header=Vary"
      * - "parameter=format, parameter=id, header=Vary"
      *
+     * The format is compiled once in init, see {@link CacheKeyFormat}. With hashCacheKey init param set to true the key
+     * is 128 bit hash (32 hex chars) of the above.
+     *
      * @param request HttpServletRequest
      * @return key generated Cache key as per the rule
      */
     protected String generateCacheKeyForTheRequest(HttpServletRequest request) {
-        StringBuilder cacheKey = new StringBuilder();
-        cacheKey.append(request.getRequestURI());
-        String[] keyAttributes = this.cacheKeyFormat.split(",");
-        for (String attr : keyAttributes) {
-            String keyAttr = attr.trim().toLowerCase();
-            if (keyAttr.equalsIgnoreCase("queryString") && request.getQueryString() != null) {
-                cacheKey.append("+").append(request.getQueryString());
-            } else if (keyAttr.startsWith("header=")) {
-                cacheKey.append("+").append(request.getHeader(keyAttr.substring(7).trim()));
-            } else if (keyAttr.startsWith("parameter=")) {
-                cacheKey.append("+").append(request.getHeader(keyAttr.substring(9).trim()));
-            }
-        }
-        return cacheKey.toString();
+        return this.cacheKeyFormat.keyFor(request);
     }
 
     @Override
     public void destroy() {
         super.destroy();
+        if (this.watchingResources) {
+            ResourceWatcher.release();
+            this.watchingResources = false;
+        }
         if (this.cache != null) {
             this.cache.cleanup();
             this.cache = null;
@@ -330,6 +714,157 @@ public class ResponseCacheFilter extends AbstractFilter {
             this.cache.invalidateAll();
         }
     }
+
+    /**
+     * Drops cached responses built from the resource
+     *
+     * @param resourcePath - webapp relative path of the resource, eg. /js/a.js
+     */
+    public void invalidateResource(String resourcePath) {
+        if (this.cache != null) {
+            this.cache.invalidateTag(TAG_RESOURCE + resourcePath);
+        }
+    }
+
+    /**
+     * Drops cached responses of the request URIs under the prefix
+     *
+     * @param uriPrefix - request URI prefix (with context path), up to a /, eg. /webapp/js/
+     */
+    public void invalidatePrefix(String uriPrefix) {
+        if (this.cache != null) {
+            this.cache.invalidateTag(TAG_URI_PREFIX + uriPrefix.substring(0, uriPrefix.lastIndexOf('/') + 1));
+        }
+    }
+
+    /**
+     * @return tags of the response: webapp, each directory of the URI and each resource
+     */
+    private static List<String> tagsFor(HttpServletRequest request, List<String> requestedResources) {
+        List<String> tags = new ArrayList<>();
+        tags.add(TAG_APP + request.getContextPath());
+        String uri = request.getRequestURI();
+        for (int slash = uri.indexOf('/'); slash >= 0; slash = uri.indexOf('/', slash + 1)) {
+            tags.add(TAG_URI_PREFIX + uri.substring(0, slash + 1));
+        }
+        if (requestedResources != null) {
+            for (String resource : requestedResources) {
+                tags.add(TAG_RESOURCE + resource);
+            }
+        }
+        return tags;
+    }
+
+    /**
+     * Response that is not sent anywhere, to render into after the real response has been sent
+     */
+    private static class DetachedResponse extends HttpServletResponseWrapper {
+
+        private String characterEncoding;
+
+        private Locale locale;
+
+        DetachedResponse(HttpServletResponse response) {
+            super(response);
+        }
+
+        @Override
+        public void addCookie(Cookie cookie) {
+        }
+
+        @Override
+        public void addDateHeader(String name, long date) {
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+        }
+
+        @Override
+        public void addIntHeader(String name, int value) {
+        }
+
+        @Override
+        public void setDateHeader(String name, long date) {
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+        }
+
+        @Override
+        public void setIntHeader(String name, int value) {
+        }
+
+        @Override
+        public void setStatus(int sc) {
+        }
+
+        @Override
+        public void sendError(int sc) {
+        }
+
+        @Override
+        public void sendError(int sc, String msg) {
+        }
+
+        @Override
+        public void sendRedirect(String location) {
+        }
+
+        @Override
+        public void setContentType(String type) {
+        }
+
+        @Override
+        public void setContentLength(int len) {
+        }
+
+        @Override
+        public void setContentLengthLong(long len) {
+        }
+
+        @Override
+        public void setCharacterEncoding(String charset) {
+            this.characterEncoding = charset;
+        }
+
+        @Override
+        public String getCharacterEncoding() {
+            return characterEncoding != null ? characterEncoding : super.getCharacterEncoding();
+        }
+
+        @Override
+        public void setLocale(Locale locale) {
+            this.locale = locale;
+        }
+
+        @Override
+        public Locale getLocale() {
+            return locale != null ? locale : super.getLocale();
+        }
+
+        @Override
+        public void setBufferSize(int size) {
+        }
+
+        @Override
+        public void flushBuffer() {
+        }
+
+        @Override
+        public void reset() {
+        }
+
+        @Override
+        public void resetBuffer() {
+        }
+
+        @Override
+        public boolean isCommitted() {
+            return false;
+        }
+    }
 }
 
 
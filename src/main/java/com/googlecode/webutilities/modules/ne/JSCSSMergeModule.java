@@ -18,6 +18,7 @@ package com.googlecode.webutilities.modules.ne;
 
 import com.googlecode.webutilities.modules.infra.ModuleRequest;
 import com.googlecode.webutilities.modules.infra.ModuleResponse;
+import com.googlecode.webutilities.util.CSSRewritePlan;
 import com.googlecode.webutilities.util.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,7 +29,7 @@ import javax.servlet.http.HttpServletResponse;
 import java.io.*;
 import java.util.Date;
 import java.util.List;
-import java.util.regex.Matcher;
+import java.util.function.UnaryOperator;
 
 import static com.googlecode.webutilities.common.Constants.*;
 
@@ -240,47 +241,23 @@ class JSCSSMergeDirective implements PreChainDirective {
      * @throws java.io.IOException - throws exception in case something woes wrong (IO read/write)
      */
     private void processCSS(String contextPath, String cssFilePath, InputStream inputStream, OutputStream outputStream) throws IOException {
-        BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(inputStream));
-        String line;
-        StringBuffer buffer = new StringBuffer();
-        while ((line = bufferedReader.readLine()) != null) {
-            buffer.setLength(0);
-            buffer.append(line);
-            line = this.processCSSLine(context, contextPath, cssFilePath, buffer);
-            outputStream.write((line + "\n").getBytes());
-        }
-    }
-
-    /**
-     * @param context     - ServletContext
-     * @param contextPath - context path or custom configured context path
-     * @param cssFilePath - css file path
-     * @param line        - one single line in a css file
-     * @return processed string with appropriate replacement of image URLs if any
-     */
-    private String processCSSLine(ServletContext context, String contextPath, String cssFilePath, StringBuffer line) {
-        Matcher matcher = CSS_IMG_URL_PATTERN.matcher(line);
         String cssRealPath = context.getRealPath(cssFilePath);
-        while (matcher.find()) {
-            String refImgPath = matcher.group(1);
-            if (!Utils.isProtocolURL(refImgPath)) { //ignore absolute protocol paths
-                String resolvedImgPath = refImgPath;
-                if (!refImgPath.startsWith("/")) {
-                    resolvedImgPath = Utils.buildProperPath(Utils.getParentPath(cssFilePath), refImgPath);
-                }
-                String imgRealPath = context.getRealPath(resolvedImgPath);
-                String fingerPrint = Utils.buildETagForResource(resolvedImgPath, context);
-                int offset = line.indexOf(refImgPath);
-                line.replace(
-                        offset, //from
-                        offset + refImgPath.length(), //to
-                        contextPath + Utils.addFingerPrint(fingerPrint, resolvedImgPath)
-                );
-
-                Utils.updateReferenceMap(cssRealPath, imgRealPath);
+        String cssParentPath = Utils.getParentPath(cssFilePath);
+        UnaryOperator<String> pathResolver = refImgPath -> {
+            if (Utils.isProtocolURL(refImgPath)) { //ignore absolute protocol paths
+                return null;
             }
-        }
-        return line.toString();
+            return refImgPath.startsWith("/") ? refImgPath : Utils.buildProperPath(cssParentPath, refImgPath);
+        };
+        File cssFile = cssRealPath != null ? new File(cssRealPath) : null;
+        CSSRewritePlan plan = cssFile != null && cssFile.isFile() ? CSSRewritePlan.forFile(cssFilePath, cssFile, pathResolver)
+                : CSSRewritePlan.of(new InputStreamReader(inputStream, DEFAULT_CHARSET), pathResolver);
+        plan.writeTo(outputStream, resolvedImgPath -> {
+            String imgRealPath = context.getRealPath(resolvedImgPath);
+            String fingerPrint = Utils.buildETagForResource(resolvedImgPath, context);
+            Utils.updateReferenceMap(cssRealPath, imgRealPath);
+            return contextPath + Utils.addFingerPrint(fingerPrint, resolvedImgPath);
+        });
     }
 
     /**
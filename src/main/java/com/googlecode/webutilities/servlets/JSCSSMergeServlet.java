@@ -15,6 +15,13 @@
  */
 package com.googlecode.webutilities.servlets;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.googlecode.webutilities.util.CSSRewritePlan;
+import com.googlecode.webutilities.util.HttpDateCodec;
+import com.googlecode.webutilities.util.ResourceMetadata;
+import com.googlecode.webutilities.util.ResourceWatcher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -25,9 +32,16 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.*;
-import java.util.Date;
-import java.util.List;
-import java.util.regex.Matcher;
+import java.net.MalformedURLException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.UnaryOperator;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
 
 import static com.googlecode.webutilities.common.Constants.*;
 import static com.googlecode.webutilities.util.Utils.*;
@@ -100,13 +114,44 @@ import static com.googlecode.webutilities.util.Utils.*;
  * <pre>
  *  <b>expiresMinutes</b> - Relative number of minutes (added to current time) to be set as Expires header
  *  <b>useCache</b> - to cache the earlier merged contents and serve from cache. Default true.
+ *  <b>maxCacheSizeInKB</b> - upper bound (in KB) on the merged contents kept in the cache. Default 10240 (10 MB). Bundles bigger than a quarter of it, and single files sent as they are, are streamed instead.
+ *  <b>prebuiltBundles</b> - white space separated list of bundles (eg. /js/a,b,c.js /css/x,y.css) to be merged at startup.
+ *  <b>prebuiltBundlesManifest</b> - path of a file in the webapp listing such bundles, one per line (# for comments).
+ *  <b>prebuiltBundlesDir</b> - directory to write prebuilt bundles to. Default is the webapp temp directory.
+ *  <b>parallelLoadThreads</b> - number of threads to read the files of a bundle concurrently. Default 0 (read one after other).
+ *  <b>parallelLoadThreshold</b> - minimum number of files in a bundle to read them concurrently. Default 4.
+ *  <b>contentHashETags</b> - build ETags and url fingerprints from contents of files instead of their last modified and size. Default false, or value of contentHashETags context param.
+ *  <b>watchResources</b> - watch directories of the served files for changes instead of checking files on each request. Default false.
  *  <b>overrideExistingHeaders</b> - override headers if they exist. Default true.
  * </pre>
+ * <h3>Prebuilt Bundles</h3>
+ * <p>Bundles listed with prebuiltBundles or prebuiltBundlesManifest are merged (and CSS urls corrected) once when servlet
+ * initializes and written to disk along with a gzip variant. Requests for them are then served straight from these files,
+ * gzip variant if client accepts it, without any merging or compression work. A prebuilt bundle is rebuilt if any of its
+ * files changes.
+ * </p>
+ * <h3>Parallel Loading</h3>
+ * <p>With parallelLoadThreads set, files of bundles having at least parallelLoadThreshold files are read (and CSS
+ * processed) concurrently on a pool of that many threads, virtual threads if JVM supports them. Merged contents are still
+ * written in the order files are listed in the bundle. Useful when files are on slow or network file system.
+ * </p>
+ * <h3>HEAD and Range requests</h3>
+ * <p>HEAD requests are answered from the cached (or prebuilt) bundle, or else from file attributes, without merging.
+ * A single byte range (<code>Range: bytes=...</code>, honouring <code>If-Range</code>) is served with 206 Partial Content.
+ * Multiple ranges are not supported and get the whole contents.
+ * </p>
+ * <h3>Watching Resources</h3>
+ * <p>With watchResources set to true, last modified and size of the served files (and of the images referred by CSS) are
+ * kept in memory and updated by a file system watch service (see <code>ResourceWatcher</code>), so requests for
+ * unchanged files don't touch the file system at all to find out whether they have changed.
+ * </p>
  * <h3>Dependency</h3>
  * <p>Servlet and JSP api (mostly provided by servlet container eg. Tomcat).</p>
  * <p><b>servlet-api.jar</b> - Must be already present in your webapp classpath</p>
  * <h3>Notes on Cache</h3>
  * <p>If you have not set useCache parameter to false then cache will be used and contents will be always served from cache if found.
+ * A cached entry is dropped as soon as the last modified time or size of any of the merged files (or of the images referred
+ * by merged CSS) changes.
  * Sometimes you may not want to use cache or you may want to evict the cache then using URL parameters you can do that.
  * </p>
  * <h4>URL Parameters to skip or evict the cache</h4>
@@ -152,6 +197,24 @@ public class JSCSSMergeServlet extends HttpServlet {
 
     public static final String INIT_PARAM_OVERRIDE_EXISTING_HEADERS = "override";
 
+    public static final String INIT_PARAM_USE_CACHE = "useCache";
+
+    public static final String INIT_PARAM_MAX_CACHE_SIZE_IN_KB = "maxCacheSizeInKB";
+
+    public static final String INIT_PARAM_PREBUILT_BUNDLES = "prebuiltBundles";
+
+    public static final String INIT_PARAM_PREBUILT_BUNDLES_MANIFEST = "prebuiltBundlesManifest";
+
+    public static final String INIT_PARAM_PREBUILT_BUNDLES_DIR = "prebuiltBundlesDir";
+
+    public static final String INIT_PARAM_PARALLEL_LOAD_THREADS = "parallelLoadThreads";
+
+    public static final String INIT_PARAM_PARALLEL_LOAD_THRESHOLD = "parallelLoadThreshold";
+
+    public static final String INIT_PARAM_WATCH_RESOURCES = "watchResources";
+
+    public static final String INIT_PARAM_CONTENT_HASH_E_TAGS = "contentHashETags";
+
     private long expiresMinutes = DEFAULT_EXPIRES_MINUTES; //default value 7 days
 
     private String cacheControl = DEFAULT_CACHE_CONTROL; //default
@@ -164,10 +227,36 @@ public class JSCSSMergeServlet extends HttpServlet {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(JSCSSMergeServlet.class.getName());
 
+    private static final int BUNDLE_CACHE_SEGMENTS = 4; //Guava bounds the weight of each segment separately
+
+    private static final ThreadLocal<byte[]> COPY_BUFFER = ThreadLocal.withInitial(() -> new byte[64 * 1024]);
+
     private String customContextPathForCSSUrls; // filling this will replace the default value: request.getContextPath()
 
     private boolean turnOffUrlFingerPrinting = false; //default enabled fingerprinting
 
+    private boolean useCache = true; //default
+
+    private long maxCacheSizeInKB = 10 * 1024; //default 10 MB
+
+    private Cache<String, MergedBundle> bundleCache;
+
+    private File prebuiltBundlesDir;
+
+    private final Map<String, PrebuiltBundle> prebuiltBundles = new ConcurrentHashMap<>();
+
+    private final Map<String, Object> rebuildLocks = new ConcurrentHashMap<>(); //one rebuild at a time per bundle
+
+    private int parallelLoadThreads = 0; //default sequential
+
+    private int parallelLoadThreshold = 4; //default
+
+    private transient ExecutorService loaderExecutor;
+
+    private boolean watchingResources = false;
+
+    private boolean contentHashETags = false; //default last modified and size based ETags
+
     @Override
     public void init(ServletConfig config) throws ServletException {
         super.init(config);
@@ -178,30 +267,241 @@ public class JSCSSMergeServlet extends HttpServlet {
         this.turnOffUrlFingerPrinting = readBoolean(config.getInitParameter(INIT_PARAM_TURN_OFF_URL_FINGERPRINTING), this.turnOffUrlFingerPrinting);
         this.customContextPathForCSSUrls = config.getInitParameter(INIT_PARAM_CUSTOM_CONTEXT_PATH_FOR_CSS_URLS);
         this.overrideExistingHeaders = readBoolean(config.getInitParameter(INIT_PARAM_OVERRIDE_EXISTING_HEADERS), this.overrideExistingHeaders);
-        LOGGER.debug("Servlet initialized: {\n\t{}:{},\n\t{}:{},\n\t{}:{},\n\t{}:{}\n\t{}:{}\n:{}\n}",
+        this.useCache = readBoolean(config.getInitParameter(INIT_PARAM_USE_CACHE), this.useCache);
+        this.maxCacheSizeInKB = readLong(config.getInitParameter(INIT_PARAM_MAX_CACHE_SIZE_IN_KB), this.maxCacheSizeInKB);
+        this.bundleCache = CacheBuilder.newBuilder()
+                .concurrencyLevel(BUNDLE_CACHE_SEGMENTS)
+                .maximumWeight(this.maxCacheSizeInKB * 1024)
+                .weigher((String key, MergedBundle bundle) -> bundle.data.length)
+                .build();
+        this.parallelLoadThreads = (int) readLong(config.getInitParameter(INIT_PARAM_PARALLEL_LOAD_THREADS), this.parallelLoadThreads);
+        this.parallelLoadThreshold = (int) readLong(config.getInitParameter(INIT_PARAM_PARALLEL_LOAD_THRESHOLD), this.parallelLoadThreshold);
+        this.contentHashETags = readBoolean(config.getInitParameter(INIT_PARAM_CONTENT_HASH_E_TAGS),
+                ResourceMetadata.isContentHashETags(config.getServletContext()));
+        this.shutdownLoaderExecutor();
+        this.stopWatchingResources();
+        if (readBoolean(config.getInitParameter(INIT_PARAM_WATCH_RESOURCES), false)) {
+            this.watchingResources = ResourceWatcher.acquire();
+        }
+        if (this.parallelLoadThreads > 0) {
+            ThreadFactoryBuilder threadFactoryBuilder = new ThreadFactoryBuilder().setNameFormat("JSCSSMergeServlet-loader-%d");
+            ThreadFactory virtualThreadFactory = virtualThreadFactory();
+            this.loaderExecutor = Executors.newFixedThreadPool(this.parallelLoadThreads, virtualThreadFactory != null
+                    ? threadFactoryBuilder.setThreadFactory(virtualThreadFactory).build()
+                    : threadFactoryBuilder.setDaemon(true).build());
+        }
+        LOGGER.debug("Servlet initialized: {\n\t{}:{},\n\t{}:{},\n\t{}:{},\n\t{}:{}\n\t{}:{}\n:{}\n\t{}:{}\n\t{}:{}\n}",
                 INIT_PARAM_EXPIRES_MINUTES, String.valueOf(this.expiresMinutes),
                 INIT_PARAM_CACHE_CONTROL, this.cacheControl,
                 INIT_PARAM_AUTO_CORRECT_URLS_IN_CSS, String.valueOf(this.autoCorrectUrlsInCSS),
                 INIT_PARAM_TURN_OFF_E_TAG, String.valueOf(this.turnOffETag),
                 INIT_PARAM_TURN_OFF_URL_FINGERPRINTING, String.valueOf(this.turnOffUrlFingerPrinting),
-                INIT_PARAM_OVERRIDE_EXISTING_HEADERS, String.valueOf(this.overrideExistingHeaders)
+                INIT_PARAM_OVERRIDE_EXISTING_HEADERS, String.valueOf(this.overrideExistingHeaders),
+                INIT_PARAM_USE_CACHE, String.valueOf(this.useCache),
+                INIT_PARAM_MAX_CACHE_SIZE_IN_KB, String.valueOf(this.maxCacheSizeInKB)
         );
+        LOGGER.debug("{}:{}, {}:{}, {}:{}, {}:{}", INIT_PARAM_PARALLEL_LOAD_THREADS, this.parallelLoadThreads,
+                INIT_PARAM_PARALLEL_LOAD_THRESHOLD, this.parallelLoadThreshold,
+                INIT_PARAM_CONTENT_HASH_E_TAGS, this.contentHashETags,
+                INIT_PARAM_WATCH_RESOURCES, this.watchingResources);
+        this.prebuildBundles(config);
+    }
+
+    @Override
+    public void destroy() {
+        this.shutdownLoaderExecutor();
+        this.stopWatchingResources();
+        super.destroy();
+    }
+
+    private void stopWatchingResources() {
+        if (this.watchingResources) {
+            ResourceWatcher.release();
+            this.watchingResources = false;
+        }
+    }
+
+    private void shutdownLoaderExecutor() {
+        if (this.loaderExecutor != null) {
+            this.loaderExecutor.shutdownNow();
+            this.loaderExecutor = null;
+        }
     }
 
     /**
-     * @param extensionOrFile  - .css or .js etc. (lower case) or the absolute path of the file in case of image files
-     * @param resourcesToMerge - from request
-     * @param hashForETag      - from request
-     * @param resp             - response object
+     * @return factory of virtual threads if running JVM has them (Java 21+), null otherwise
      */
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Merges and writes to disk all the bundles configured with prebuiltBundles and prebuiltBundlesManifest init params
+     *
+     * @param config - servlet config
+     */
+    private void prebuildBundles(ServletConfig config) {
+        this.prebuiltBundles.clear();
+        List<String> bundles = new ArrayList<>();
+        String bundlesParam = config.getInitParameter(INIT_PARAM_PREBUILT_BUNDLES);
+        if (bundlesParam != null) {
+            bundles.addAll(Arrays.asList(bundlesParam.trim().split("\\s+")));
+        }
+        String manifest = config.getInitParameter(INIT_PARAM_PREBUILT_BUNDLES_MANIFEST);
+        if (manifest != null) {
+            InputStream is = this.getServletContext().getResourceAsStream(manifest);
+            if (is == null) {
+                LOGGER.warn("Prebuilt bundles manifest not found: {}", manifest);
+            } else {
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(is, DEFAULT_CHARSET))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        line = line.trim();
+                        if (!line.isEmpty() && !line.startsWith("#")) {
+                            bundles.add(line);
+                        }
+                    }
+                } catch (IOException ex) {
+                    LOGGER.error("Failed to read prebuilt bundles manifest: {}", manifest, ex);
+                }
+            }
+        }
+        bundles.removeIf(String::isEmpty);
+        if (bundles.isEmpty()) return;
+
+        String dir = config.getInitParameter(INIT_PARAM_PREBUILT_BUNDLES_DIR);
+        if (dir != null) {
+            this.prebuiltBundlesDir = new File(dir);
+        } else {
+            Object tempDir = this.getServletContext().getAttribute(ServletContext.TEMPDIR);
+            this.prebuiltBundlesDir = new File(tempDir instanceof File ? (File) tempDir : new File(System.getProperty("java.io.tmpdir")),
+                    "webutilities-bundles");
+        }
+        if (!this.prebuiltBundlesDir.isDirectory() && !this.prebuiltBundlesDir.mkdirs()) {
+            LOGGER.warn("Unable to create prebuilt bundles directory: {}", this.prebuiltBundlesDir);
+            return;
+        }
+        for (String bundle : bundles) {
+            this.prebuildBundle(bundle);
+        }
+        LOGGER.debug("Prebuilt {} bundles in {}", this.prebuiltBundles.size(), this.prebuiltBundlesDir);
+    }
+
+    /**
+     * @param bundle - bundle URI relative to context eg. /js/a,b,c.js
+     * @return the prebuilt bundle, or null if it could not be built
+     */
+    private PrebuiltBundle prebuildBundle(String bundle) {
+        ServletContext context = this.getServletContext();
+        List<String> resourcesToMerge = findResourcesToMerge("", bundle);
+        String contextPathForCss = customContextPathForCSSUrls != null ?
+                customContextPathForCSSUrls : context.getContextPath();
+        String bundleKey = contextPathForCss + resourcesToMerge;
+        ResourceMetadata metadata = ResourceMetadata.snapshot(context, this.contentHashETags);
+        String eTag = this.turnOffETag ? null : buildETagForResources(resourcesToMerge, metadata);
+        Map<String, long[]> versions = this.versionsOf(resourcesToMerge, metadata);
+        if (versions == null) {
+            LOGGER.warn("Not prebuilding {}, some resources are not available as files.", bundle);
+            return null;
+        }
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ProcessedResult processedResult = this.processResources(contextPathForCss, outputStream, resourcesToMerge, metadata);
+        if (processedResult.getNumberOfMissingResources() == resourcesToMerge.size()) {
+            LOGGER.warn("Not prebuilding {}, all resources are not found.", bundle);
+            return null;
+        }
+        if (processedResult.hasErrors()) {
+            LOGGER.warn("Not prebuilding {}, some resources failed to be read.", bundle);
+            return null;
+        }
+        for (String imageRealPath : processedResult.getReferencedImages()) {
+            versions.put(imageRealPath, versionOf(imageRealPath, metadata));
+        }
+        byte[] data = outputStream.toByteArray();
+        String fileName = hexDigestString(bundleKey.getBytes()) + detectExtension(bundle);
+        try {
+            File file = writeAtomically(new File(this.prebuiltBundlesDir, fileName), data);
+            ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(gzipped) {
+                {
+                    def.setLevel(Deflater.BEST_COMPRESSION);
+                }
+            }) {
+                gzipOutputStream.write(data);
+            }
+            File gzipFile = null;
+            if (gzipped.size() < data.length) {
+                gzipFile = writeAtomically(new File(this.prebuiltBundlesDir, fileName + ".gz"), gzipped.toByteArray());
+            }
+            PrebuiltBundle prebuiltBundle = new PrebuiltBundle(bundle, file, gzipFile, eTag,
+                    getLastModifiedFor(resourcesToMerge, metadata), versions);
+            this.prebuiltBundles.put(bundleKey, prebuiltBundle);
+            return prebuiltBundle;
+        } catch (IOException ex) {
+            LOGGER.error("Failed to write prebuilt bundle: {}", bundle, ex);
+            return null;
+        }
+    }
+
+    private static File writeAtomically(File file, byte[] data) throws IOException {
+        File temp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+        Files.write(temp.toPath(), data);
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return file;
+    }
+
+    /**
+     * @param bundleKey - key of the merged contents
+     * @param metadata  - resources metadata snapshot of the request
+     * @return prebuilt bundle, rebuilt first if any of its files has changed, or null if there is none
+     */
+    private PrebuiltBundle getValidPrebuiltBundle(String bundleKey, ResourceMetadata metadata) {
+        PrebuiltBundle prebuiltBundle = this.prebuiltBundles.get(bundleKey);
+        if (prebuiltBundle == null || !prebuiltBundle.isModified(metadata)) return prebuiltBundle;
+        synchronized (this.rebuildLocks.computeIfAbsent(bundleKey, key -> new Object())) {
+            PrebuiltBundle current = this.prebuiltBundles.get(bundleKey);
+            if (current != prebuiltBundle) { //rebuilt (or failed to) by a concurrent request while waiting
+                return current == null || current.isModified(metadata) ? null : current;
+            }
+            LOGGER.debug("Rebuilding modified bundle: {}", prebuiltBundle.bundle);
+            this.prebuiltBundles.remove(bundleKey);
+            return this.prebuildBundle(prebuiltBundle.bundle);
+        }
+    }
 
-    private void addAppropriateResponseHeaders(String extensionOrFile, List<String> resourcesToMerge, String hashForETag, HttpServletResponse resp) {
+    /**
+     * @param request - HttpServletRequest
+     * @return true if Accept-Encoding header allows gzip
+     */
+    private static boolean acceptsGzip(HttpServletRequest request) {
+        String acceptEncoding = request.getHeader(HTTP_ACCEPT_ENCODING_HEADER);
+        if (acceptEncoding == null) return false;
+        for (String accepts : acceptEncoding.trim().split("\\s*,\\s*")) {
+            String[] encodingAndQ = accepts.split("\\s*;\\s*q\\s*=\\s*");
+            if ((CONTENT_ENCODING_GZIP.equals(encodingAndQ[0]) || "*".equals(encodingAndQ[0]))) {
+                return encodingAndQ.length == 1 || !encodingAndQ[1].matches("0(\\.0*)?");
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param extensionOrFile - .css or .js etc. (lower case) or the absolute path of the file in case of image files
+     * @param lastModifiedFor - maximum of last modified values of the resources
+     * @param hashForETag     - from request
+     * @param resp            - response object
+     */
+    private void addAppropriateResponseHeaders(String extensionOrFile, long lastModifiedFor, String hashForETag, HttpServletResponse resp) {
         String mime = selectMimeForExtension(extensionOrFile);
         if (mime != null) {
             LOGGER.trace("Setting MIME to {}", mime);
             resp.setContentType(mime);
         }
-        long lastModifiedFor = getLastModifiedFor(resourcesToMerge, this.getServletContext());
 
         if (this.overrideExistingHeaders) {
             resp.setDateHeader(HEADER_EXPIRES, new Date().getTime() + expiresMinutes * 60 * 1000);
@@ -218,6 +518,7 @@ public class JSCSSMergeServlet extends HttpServlet {
                 resp.addHeader(HTTP_ETAG_HEADER, hashForETag);
             }
         }
+        resp.setHeader(HTTP_ACCEPT_RANGES_HEADER, "bytes");
         resp.addHeader(HEADER_X_OPTIMIZED_BY, X_OPTIMIZED_BY_VALUE);
         LOGGER.trace("Added expires, last-modified & ETag headers");
     }
@@ -228,6 +529,28 @@ public class JSCSSMergeServlet extends HttpServlet {
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp)
             throws ServletException, IOException {
+        this.serve(req, resp, false);
+    }
+
+    /* (non-Javadoc)
+    * @see javax.servlet.http.HttpServlet#doHead(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
+    */
+    @Override
+    protected void doHead(HttpServletRequest req, HttpServletResponse resp)
+            throws ServletException, IOException {
+        this.serve(req, resp, true);
+    }
+
+    /**
+     * Serves the merged contents, or for HEAD only their headers (from cached bundles or file attributes, without
+     * merging). Single byte range (Range header, honouring If-Range) is served with 206 Partial Content.
+     *
+     * @param req  - request
+     * @param resp - response
+     * @param head - true if only headers are to be sent
+     * @throws IOException - thrown in case anything (IO read/write) goes wrong
+     */
+    private void serve(HttpServletRequest req, HttpServletResponse resp, boolean head) throws IOException {
 
         String url = this.getURL(req);
 
@@ -239,8 +562,57 @@ public class JSCSSMergeServlet extends HttpServlet {
             extensionOrPath = resourcesToMerge.get(0);//non grouped i.e. non css/js file, we refer it's path in that case
         }
 
+        String contextPathForCss = customContextPathForCSSUrls != null ?
+                customContextPathForCSSUrls : req.getContextPath();
+
+        if (req.getParameter(PARAM_EXPIRE_CACHE) != null) {
+            LOGGER.trace("Expiring the merged contents cache due to URL parameter.");
+            this.bundleCache.invalidateAll();
+        }
+        ResourceMetadata metadata = ResourceMetadata.snapshot(this.getServletContext(), this.contentHashETags);
+        boolean skipCache = !this.useCache || req.getParameter(PARAM_SKIP_CACHE) != null || req.getParameter(PARAM_DEBUG) != null;
+        String bundleKey = contextPathForCss + resourcesToMerge;
+
+        PrebuiltBundle prebuiltBundle = skipCache ? null : this.getValidPrebuiltBundle(bundleKey, metadata);
+        if (prebuiltBundle != null) {
+            LOGGER.trace("Serving prebuilt bundle.");
+            ByteRange range = head ? null : ByteRange.of(req, prebuiltBundle.eTag, prebuiltBundle.lastModified);
+            boolean gzip = range == null && prebuiltBundle.gzipFile != null && acceptsGzip(req); //ranges are of plain contents
+            String eTag = gzip && prebuiltBundle.eTag != null ? prebuiltBundle.eTag + "-gzip" : prebuiltBundle.eTag;
+            if (prebuiltBundle.isNotModified(req)) {
+                LOGGER.trace("Resources Not Modified. Sending 304.");
+                JSCSSMergeServlet.sendNotModified(resp, extensionOrPath, eTag, this.expiresMinutes, this.cacheControl, this.overrideExistingHeaders);
+                return;
+            }
+            this.addAppropriateResponseHeaders(extensionOrPath, prebuiltBundle.lastModified, eTag, resp);
+            if (prebuiltBundle.gzipFile != null) {
+                resp.addHeader(HTTP_VARY_HEADER, HTTP_ACCEPT_ENCODING_HEADER);
+            }
+            if (gzip) {
+                resp.setHeader(HTTP_CONTENT_ENCODING_HEADER, CONTENT_ENCODING_GZIP);
+            }
+            JSCSSMergeServlet.send(resp, range, null, gzip ? prebuiltBundle.gzipFile : prebuiltBundle.file, head);
+            LOGGER.debug("Finished processing Request : {}", url);
+            return;
+        }
+
+        MergedBundle bundle = skipCache ? null : this.getValidBundle(bundleKey, metadata);
+        if (bundle != null) {
+            LOGGER.trace("Serving merged contents from cache.");
+            if (bundle.isNotModified(req)) {
+                LOGGER.trace("Resources Not Modified. Sending 304.");
+                JSCSSMergeServlet.sendNotModified(resp, extensionOrPath, bundle.eTag, this.expiresMinutes, this.cacheControl, this.overrideExistingHeaders);
+                return;
+            }
+            this.addAppropriateResponseHeaders(extensionOrPath, bundle.lastModified, bundle.eTag, resp);
+            ByteRange range = head ? null : ByteRange.of(req, bundle.eTag, bundle.lastModified);
+            JSCSSMergeServlet.send(resp, range, bundle.data, null, head);
+            LOGGER.debug("Finished processing Request : {}", url);
+            return;
+        }
+
         //If not modified, return 304 and stop
-        ResourceStatus status = JSCSSMergeServlet.isNotModified(this.getServletContext(), req, resourcesToMerge, this.turnOffETag);
+        ResourceStatus status = JSCSSMergeServlet.isNotModified(metadata, req, resourcesToMerge, this.turnOffETag);
         if (status.isNotModified()) {
             LOGGER.trace("Resources Not Modified. Sending 304.");
             String ETag = !this.turnOffETag ? status.getActualETag() : null;
@@ -248,14 +620,30 @@ public class JSCSSMergeServlet extends HttpServlet {
             return;
         }
 
+        if (head) {
+            this.sendHeaders(resp, resourcesToMerge, extensionOrPath, status, metadata);
+            LOGGER.debug("Finished processing Request : {}", url);
+            return;
+        }
 
         //Add appropriate headers
-        this.addAppropriateResponseHeaders(extensionOrPath, resourcesToMerge, status.getActualETag(), resp);
-
-        OutputStream outputStream = resp.getOutputStream();
-        String contextPathForCss = customContextPathForCSSUrls != null ?
-                customContextPathForCSSUrls : req.getContextPath();
-        ProcessedResult processedResult = this.processResources(contextPathForCss, outputStream, resourcesToMerge);
+        long lastModified = getLastModifiedFor(resourcesToMerge, metadata);
+        this.addAppropriateResponseHeaders(extensionOrPath, lastModified, status.getActualETag(), resp);
+
+        ByteRange range = ByteRange.of(req, status.getActualETag(), lastModified);
+        File singleFile = this.singleFileOf(resourcesToMerge, metadata); //sent as is, nothing to cache
+        if (singleFile != null && range != null) {
+            JSCSSMergeServlet.send(resp, range, null, singleFile, false); //only the range is read
+            LOGGER.debug("Finished processing Request : {}", url);
+            return;
+        }
+        Map<String, long[]> versions = skipCache || singleFile != null ? null : this.versionsOf(resourcesToMerge, metadata);
+        if (versions != null && !this.fitsBundleCache(versions)) {
+            LOGGER.trace("Merged contents are too big for the cache, streaming them.");
+            versions = null;
+        }
+        OutputStream outputStream = versions != null || range != null ? new ByteArrayOutputStream() : resp.getOutputStream();
+        ProcessedResult processedResult = this.processResources(contextPathForCss, outputStream, resourcesToMerge, metadata);
         int resourcesNotFound = processedResult.getNumberOfMissingResources();
 
         if (resourcesNotFound > 0 && resourcesNotFound == resourcesToMerge.size()) { //all resources not found
@@ -263,6 +651,24 @@ public class JSCSSMergeServlet extends HttpServlet {
             LOGGER.warn("All resources are not found. Sending 404.");
             return;
         }
+        if (outputStream instanceof ByteArrayOutputStream) {
+            if (processedResult.hasErrors()) { //nothing is sent yet, so don't send (nor cache) incomplete contents
+                LOGGER.error("Failed to read some of the resources. Sending 500.");
+                resp.reset(); //expires and cache control headers must not make the error cacheable
+                resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                return;
+            }
+            byte[] data = ((ByteArrayOutputStream) outputStream).toByteArray();
+            if (versions != null) {
+                for (String imageRealPath : processedResult.getReferencedImages()) {
+                    versions.put(imageRealPath, versionOf(imageRealPath, metadata));
+                }
+                this.bundleCache.put(bundleKey, new MergedBundle(data, status.getActualETag(), lastModified, versions));
+            }
+            JSCSSMergeServlet.send(resp, range, data, null, false);
+            LOGGER.debug("Finished processing Request : {}", url);
+            return;
+        }
         if (outputStream != null) {
             try {
                 resp.setStatus(HttpServletResponse.SC_OK);
@@ -275,6 +681,142 @@ public class JSCSSMergeServlet extends HttpServlet {
         LOGGER.debug("Finished processing Request : {}", url);
     }
 
+    /**
+     * Sends headers for HEAD request using file attributes only. Content-Length is sent only if it is known without
+     * merging i.e. for single file whose contents are sent as is.
+     *
+     * @param resp             - response
+     * @param resourcesToMerge - list of resources relative paths
+     * @param extensionOrPath  - .css or .js etc. or path of the file in case of other files
+     * @param status           - status of the resources
+     * @param metadata         - resources metadata snapshot
+     * @throws IOException - thrown in case anything (IO read/write) goes wrong
+     */
+    private void sendHeaders(HttpServletResponse resp, List<String> resourcesToMerge, String extensionOrPath,
+                             ResourceStatus status, ResourceMetadata metadata) throws IOException {
+        ServletContext context = this.getServletContext();
+        int resourcesNotFound = 0;
+        for (String resourcePath : resourcesToMerge) {
+            ResourceMetadata.FileStat stat = metadata.of(resourcePath);
+            if (stat == null || !stat.isFile()) {
+                try {
+                    if (context.getResource(resourcePath) == null) {
+                        resourcesNotFound++;
+                    }
+                } catch (MalformedURLException ex) {
+                    resourcesNotFound++;
+                }
+            }
+        }
+        if (resourcesNotFound == resourcesToMerge.size()) { //all resources not found
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        this.addAppropriateResponseHeaders(extensionOrPath, getLastModifiedFor(resourcesToMerge, metadata), status.getActualETag(), resp);
+        if (this.singleFileOf(resourcesToMerge, metadata) != null) {
+            resp.setHeader(HTTP_CONTENT_LENGTH_HEADER, String.valueOf(metadata.of(resourcesToMerge.get(0)).getLength()));
+        }
+        resp.setStatus(HttpServletResponse.SC_OK);
+    }
+
+    /**
+     * @param resourcesToMerge - list of resources relative paths
+     * @param metadata         - resources metadata snapshot
+     * @return the file if only one resource is requested and its contents are sent as they are, null otherwise
+     */
+    private File singleFileOf(List<String> resourcesToMerge, ResourceMetadata metadata) {
+        if (resourcesToMerge.size() != 1) return null;
+        String resourcePath = resourcesToMerge.get(0);
+        return this.isCSS(resourcePath) && autoCorrectUrlsInCSS ? null : fileOf(metadata.of(resourcePath));
+    }
+
+    /**
+     * @param versions - real path to version (last modified and length) of the resources
+     * @return true if merged contents of the resources are small enough to be kept in the bundle cache
+     */
+    private boolean fitsBundleCache(Map<String, long[]> versions) {
+        long length = 0;
+        for (long[] version : versions.values()) {
+            length += version[1];
+        }
+        return length <= this.maxCacheSizeInKB * 1024 / BUNDLE_CACHE_SEGMENTS;
+    }
+
+    /**
+     * Sends whole contents, or only the requested range of them with 206 (or 416 if range can't be satisfied)
+     *
+     * @param resp  - response
+     * @param range - requested range, null for whole contents
+     * @param data  - contents, null if they are to be read from file
+     * @param file  - file to read contents from when data is null
+     * @param head  - true if only headers are to be sent
+     * @throws IOException - thrown in case anything (IO read/write) goes wrong
+     */
+    private static void send(HttpServletResponse resp, ByteRange range, byte[] data, File file, boolean head) throws IOException {
+        long length = data != null ? data.length : file.length();
+        long start = 0;
+        long count = length;
+        if (range != null) {
+            long[] startAndEnd = range.resolve(length);
+            if (startAndEnd == null) {
+                LOGGER.trace("Range not satisfiable. Sending 416.");
+                resp.setHeader(HTTP_CONTENT_RANGE_HEADER, "bytes */" + length);
+                resp.setHeader(HTTP_CONTENT_LENGTH_HEADER, "0");
+                resp.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            }
+            start = startAndEnd[0];
+            count = startAndEnd[1] - start + 1;
+            resp.setHeader(HTTP_CONTENT_RANGE_HEADER, "bytes " + start + "-" + startAndEnd[1] + "/" + length);
+            resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        } else {
+            resp.setStatus(HttpServletResponse.SC_OK);
+        }
+        resp.setHeader(HTTP_CONTENT_LENGTH_HEADER, String.valueOf(count));
+        if (head) return;
+        OutputStream outputStream = resp.getOutputStream();
+        if (data != null) {
+            outputStream.write(data, (int) start, (int) count);
+        } else {
+            copy(file, start, count, outputStream);
+        }
+        outputStream.close();
+    }
+
+    /**
+     * @param bundleKey - key of the merged contents in cache
+     * @param metadata  - resources metadata snapshot of the request
+     * @return cached merged contents, or null if not cached or any of the underlying files has changed since
+     */
+    private MergedBundle getValidBundle(String bundleKey, ResourceMetadata metadata) {
+        MergedBundle bundle = this.bundleCache.getIfPresent(bundleKey);
+        if (bundle != null && bundle.isModified(metadata)) {
+            this.bundleCache.invalidate(bundleKey);
+            return null;
+        }
+        return bundle;
+    }
+
+    /**
+     * @param resourcesToMerge - list of resources relative paths
+     * @param metadata         - resources metadata snapshot
+     * @return real path to version map, or null if any of the resources is not backed by a real file
+     */
+    private Map<String, long[]> versionsOf(List<String> resourcesToMerge, ResourceMetadata metadata) {
+        Map<String, long[]> versions = new HashMap<>();
+        for (String resourcePath : resourcesToMerge) {
+            String realPath = metadata.realPathOf(resourcePath);
+            if (realPath == null) return null; //can't tell when it changes, so can't cache
+            versions.put(realPath, versionOf(realPath, metadata));
+        }
+        return versions;
+    }
+
+    private static long[] versionOf(String realPath, ResourceMetadata metadata) {
+        ResourceMetadata.FileStat stat = metadata.stat(realPath);
+        return new long[]{stat.getLastModified(), stat.getLength()};
+    }
+
     public static void sendNotModified(HttpServletResponse response, String extensionOrFile, String hashForETag,
                                        long expiresMinutes, String cacheControl) {
         sendNotModified(response, extensionOrFile, hashForETag, expiresMinutes, cacheControl, false);
@@ -336,20 +878,31 @@ public class JSCSSMergeServlet extends HttpServlet {
      * @return true if not modified based on if-None-Match and If-Modified-Since
      */
     public static ResourceStatus isNotModified(ServletContext context, HttpServletRequest request, List<String> resourcesToMerge, boolean turnOffETag) {
+        return isNotModified(ResourceMetadata.snapshot(context), request, resourcesToMerge, turnOffETag);
+    }
+
+    /**
+     * @param metadata         - resources metadata snapshot
+     * @param request          - HttpServletRequest
+     * @param resourcesToMerge - list of resources relative paths
+     * @param turnOffETag      - Whether to turn off ETag
+     * @return true if not modified based on if-None-Match and If-Modified-Since
+     */
+    public static ResourceStatus isNotModified(ResourceMetadata metadata, HttpServletRequest request, List<String> resourcesToMerge, boolean turnOffETag) {
         //If-Modified-Since
         String ifModifiedSince = request.getHeader(HTTP_IF_MODIFIED_SINCE);
         if (ifModifiedSince != null) {
-            Date date = readDateFromHeader(ifModifiedSince);
-            if (date != null) {
-                if (!isAnyResourceModifiedSince(resourcesToMerge, date.getTime(), context)) {
+            long since = readTimeFromHeader(ifModifiedSince);
+            if (since != HttpDateCodec.INVALID) {
+                if (!isAnyResourceModifiedSince(resourcesToMerge, since, metadata)) {
                     return new ResourceStatus(null, true);
                 }
             }
         }
         //If-None-match
         String requestETag = request.getHeader(HTTP_IF_NONE_MATCH_HEADER);
-        String actualETag = turnOffETag ? null : buildETagForResources(resourcesToMerge, context);
-        if (!turnOffETag && !isAnyResourceETagModified(resourcesToMerge, requestETag, actualETag, context)) {
+        String actualETag = turnOffETag ? null : buildETagForResources(resourcesToMerge, metadata);
+        if (!turnOffETag && !isAnyResourceETagModified(resourcesToMerge, requestETag, actualETag, metadata)) {
             return new ResourceStatus(actualETag, true);
         }
         return new ResourceStatus(actualETag, false);
@@ -359,130 +912,342 @@ public class JSCSSMergeServlet extends HttpServlet {
      * @param contextPath      HttpServletRequest context path
      * @param outputStream     - OutputStream
      * @param resourcesToMerge list of resources to merge
+     * @param metadata         - resources metadata snapshot
      * @return number of non existing, unprocessed resources
      */
 
-    private ProcessedResult processResources(String contextPath, OutputStream outputStream, List<String> resourcesToMerge) {
+    private ProcessedResult processResources(String contextPath, OutputStream outputStream, List<String> resourcesToMerge,
+                                             ResourceMetadata metadata) {
 
         int missingResourcesCount = 0;
 
         long contentLength = 0;
 
+        boolean errors = false;
+
+        Map<String, ImageReference> imageReferences = new ConcurrentHashMap<>();
+
         ServletContext context = this.getServletContext();
+        List<Future<byte[]>> loadedResources = this.loadInParallel(contextPath, resourcesToMerge, imageReferences, metadata);
         boolean addNewLine = false;
-        for (String resourcePath : resourcesToMerge) {
+        byte[] newLineBytes = "\n".getBytes();
+        for (int i = 0; i < resourcesToMerge.size(); i++) {
+            String resourcePath = resourcesToMerge.get(i);
 
             LOGGER.trace("Processing resource : {}", resourcePath);
 
             InputStream is = null;
-            byte[] newLineBytes = "\n".getBytes();
+            boolean processAsCSS = this.isCSS(resourcePath) && autoCorrectUrlsInCSS; //Need to deal with images url in CSS
             try {
-                is = context.getResourceAsStream(resourcePath);
-                if (is == null) {
-                    missingResourcesCount++;
-                    continue;
-                }
-                if (this.isCSS(resourcePath) && autoCorrectUrlsInCSS) { //Need to deal with images url in CSS
-
-                    contentLength += this.processCSS(contextPath, resourcePath, is, outputStream);
-
-                } else {
-                    byte[] buffer = new byte[128];
-                    int c;
-                    //Add extra new line to avoid merging issues when there is single line comment in the end of file
-                    if (addNewLine) {
-                        outputStream.write(newLineBytes);
-                        contentLength += newLineBytes.length;
+                byte[] loaded = null;
+                File file = null;
+                if (loadedResources != null) {
+                    loaded = loadedResources.get(i).get();
+                    if (loaded == null) {
+                        missingResourcesCount++;
+                        continue;
                     }
-                    while ((c = is.read(buffer)) != -1) {
-                        outputStream.write(buffer, 0, c);
-                        contentLength += c;
+                } else {
+                    file = fileOf(metadata.of(resourcePath));
+                    if (file == null) {
+                        is = context.getResourceAsStream(resourcePath);
+                        if (is == null) {
+                            missingResourcesCount++;
+                            continue;
+                        }
                     }
-                    addNewLine = true;
                 }
+                //Add extra new line to avoid merging issues when there is single line comment in the end of file
+                if (!processAsCSS && addNewLine) {
+                    outputStream.write(newLineBytes);
+                    contentLength += newLineBytes.length;
+                }
+                if (loaded != null) {
+                    outputStream.write(loaded);
+                    contentLength += loaded.length;
+                } else {
+                    contentLength += this.processResource(contextPath, resourcePath, processAsCSS, file, is, outputStream, imageReferences, metadata);
+                }
+                addNewLine = addNewLine || !processAsCSS;
             } catch (IOException e) {
                 LOGGER.error("Error while reading resource : {}", resourcePath);
-                LOGGER.error("IOException: ", e);
+                LOGGER.error("Exception: ", e);
+                errors = true;
+            } catch (ExecutionException e) {
+                LOGGER.error("Error while reading resource in parallel : {}", resourcePath);
+                LOGGER.error("Exception: ", e.getCause());
+                errors = true;
+            } catch (InterruptedException e) {
+                LOGGER.error("Interrupted while reading resource : {}", resourcePath);
+                Thread.currentThread().interrupt();
+                errors = true;
+                break;
+            } finally {
+                try {
+                    if (is != null) {
+                        is.close();
+                    }
+                } catch (IOException ex) {
+                    LOGGER.warn("Failed to close stream:", ex);
+                }
+                try {
+                    outputStream.flush();
+                } catch (IOException ex) {
+                    LOGGER.error("Failed to flush out: {}", outputStream);
+                }
             }
 
-            try {
-                is.close();
-            } catch (IOException ex) {
-                LOGGER.warn("Failed to close stream:", ex);
+        }
+        if (loadedResources != null) {
+            loadedResources.forEach(future -> future.cancel(true));
+        }
+        Set<String> referencedImages = new HashSet<>();
+        for (ImageReference imageReference : imageReferences.values()) {
+            if (imageReference.realPath != null) {
+                referencedImages.add(imageReference.realPath);
             }
-            try {
-                outputStream.flush();
-            } catch (IOException ex) {
-                LOGGER.error("Failed to flush out: {}", outputStream);
+        }
+        return new ProcessedResult(missingResourcesCount, contentLength, referencedImages, errors);
+    }
+
+    /**
+     * Submits reading (and processing) of each resource to the loader executor
+     *
+     * @param contextPath      HttpServletRequest context path
+     * @param resourcesToMerge list of resources to merge
+     * @param imageReferences  - images referred by the css, shared by all the resources
+     * @param metadata         - resources metadata snapshot
+     * @return contents of each resource (null if missing) in the same order, or null if they are not to be read in parallel
+     */
+    private List<Future<byte[]>> loadInParallel(String contextPath, List<String> resourcesToMerge,
+                                                Map<String, ImageReference> imageReferences, ResourceMetadata metadata) {
+        ExecutorService executor = this.loaderExecutor;
+        if (executor == null || resourcesToMerge.size() < Math.max(2, this.parallelLoadThreshold)) {
+            return null;
+        }
+        ServletContext context = this.getServletContext();
+        List<Future<byte[]>> loadedResources = new ArrayList<>(resourcesToMerge.size());
+        try {
+            for (String resourcePath : resourcesToMerge) {
+                boolean processAsCSS = this.isCSS(resourcePath) && autoCorrectUrlsInCSS;
+                loadedResources.add(executor.submit(() -> {
+                    File file = fileOf(metadata.of(resourcePath));
+                    InputStream is = file == null ? context.getResourceAsStream(resourcePath) : null;
+                    if (file == null && is == null) {
+                        return null;
+                    }
+                    try (InputStream in = is) {
+                        ByteArrayOutputStream buffer = new ByteArrayOutputStream(file != null ? (int) Math.min(file.length() + 64, 1 << 20) : 8192);
+                        this.processResource(contextPath, resourcePath, processAsCSS, file, in, buffer, imageReferences, metadata);
+                        return buffer.toByteArray();
+                    }
+                }));
             }
+        } catch (RejectedExecutionException ex) {
+            LOGGER.debug("Loader executor rejected, reading resources one after other", ex);
+            loadedResources.forEach(future -> future.cancel(true));
+            return null;
+        }
+        return loadedResources;
+    }
 
+    /**
+     * @param contextPath     HttpServletRequest context path
+     * @param resourcePath    - resource path
+     * @param processAsCSS    - whether image urls in it need to be corrected
+     * @param file            - resource file, can be null
+     * @param inputStream     - input stream, used only if file is null
+     * @param outputStream    - output stream
+     * @param imageReferences - images referred by the css processed so far in this request, keyed by resolved path
+     * @param metadata        - resources metadata snapshot
+     * @return number of bytes written
+     * @throws IOException - thrown in case anything (IO read/write) goes wrong
+     */
+    private long processResource(String contextPath, String resourcePath, boolean processAsCSS, File file, InputStream inputStream,
+                                 OutputStream outputStream, Map<String, ImageReference> imageReferences,
+                                 ResourceMetadata metadata) throws IOException {
+        if (processAsCSS) {
+            return this.processCSS(contextPath, resourcePath, file, inputStream, outputStream, imageReferences, metadata);
         }
-        return new ProcessedResult(missingResourcesCount, contentLength);
+        return file != null ? copy(file, outputStream) : copy(inputStream, outputStream);
     }
 
-    protected boolean isCSS(String resourcePath) {
-        return resourcePath != null && resourcePath.endsWith(EXT_CSS);
+    /**
+     * @param stat - attributes of the resource, can be null
+     * @return the file if it is a regular file, null otherwise
+     */
+    private static File fileOf(ResourceMetadata.FileStat stat) {
+        return stat != null && stat.isFile() ? new File(stat.getRealPath()) : null;
+    }
+
+    /**
+     * Copies the file through the per thread copy buffer. Servlet output streams are not channels, so there is no
+     * {@link FileChannel#transferTo} to use here.
+     *
+     * @param file         - file to copy
+     * @param outputStream - output stream
+     * @return number of bytes copied
+     * @throws IOException - thrown in case anything (IO read/write) goes wrong
+     */
+    private static long copy(File file, OutputStream outputStream) throws IOException {
+        return copy(file, 0, Long.MAX_VALUE, outputStream);
+    }
+
+    /**
+     * @param file         - file to copy from
+     * @param from         - position in file to start copying from
+     * @param count        - max number of bytes to copy
+     * @param outputStream - output stream
+     * @return number of bytes copied
+     * @throws IOException - thrown in case anything (IO read/write) goes wrong
+     */
+    private static long copy(File file, long from, long count, OutputStream outputStream) throws IOException {
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            long end = Math.min(channel.size(), from + Math.min(count, Long.MAX_VALUE - from));
+            byte[] buffer = COPY_BUFFER.get();
+            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+            long position = from;
+            channel.position(from);
+            while (position < end) {
+                byteBuffer.limit((int) Math.min(buffer.length, end - position));
+                int c = channel.read(byteBuffer);
+                if (c == -1) break;
+                outputStream.write(buffer, 0, c);
+                position += c;
+                byteBuffer.clear();
+            }
+            return position - from;
+        }
     }
 
     /**
-     * @param cssFilePath  - css file path
-     * @param contextPath  - context path or custom configured context path
      * @param inputStream  - input stream
      * @param outputStream - output stream
+     * @return number of bytes copied
      * @throws IOException - thrown in case anything (IO read/write) goes wrong
      */
-    private long processCSS(String contextPath, String cssFilePath, InputStream inputStream, OutputStream outputStream) throws IOException {
-        ServletContext context = this.getServletContext();
-        BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(inputStream, DEFAULT_CHARSET));
-        String line;
-        long bytesWritten = 0;
-        StringBuffer buffer = new StringBuffer();
-        while ((line = bufferedReader.readLine()) != null) {
-            buffer.setLength(0);
-            buffer.append(line);
-            line = this.processCSSLine(context, contextPath, cssFilePath, buffer);
-            byte[] bytes = (line + "\n").getBytes(DEFAULT_CHARSET);
-            outputStream.write(bytes);
-            bytesWritten += bytes.length;
+    private static long copy(InputStream inputStream, OutputStream outputStream) throws IOException {
+        byte[] buffer = COPY_BUFFER.get();
+        long copied = 0;
+        int c;
+        while ((c = inputStream.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, c);
+            copied += c;
         }
-        return bytesWritten;
+        return copied;
+    }
+
+    protected boolean isCSS(String resourcePath) {
+        return resourcePath != null && resourcePath.endsWith(EXT_CSS);
     }
 
     /**
-     * @param context     - ServletContext
-     * @param contextPath - APP context path or any custom configured context path
-     * @param cssFilePath - css file path
-     * @param input        - single line css file
-     * @return - processed line with img path if it had any replaced to appropriate path
+     * @param cssFilePath     - css file path
+     * @param contextPath     - context path or custom configured context path
+     * @param file            - css file, if it is available as file, its parsed form is cached
+     * @param inputStream     - input stream, used only if file is null
+     * @param outputStream    - output stream
+     * @param imageReferences - images referred by the css processed so far in this request, keyed by resolved path
+     * @param metadata        - resources metadata snapshot
+     * @throws IOException - thrown in case anything (IO read/write) goes wrong
      */
-    private String processCSSLine(ServletContext context, String contextPath, String cssFilePath, StringBuffer input) {
-        Matcher matcher = CSS_IMG_URL_PATTERN.matcher(input);
-        String cssRealPath = context.getRealPath(cssFilePath);
-        StringBuffer output = new StringBuffer();
-        while (matcher.find()) {
-            String refImgPath = matcher.group(1);
-            if (!isProtocolURL(refImgPath)) { //ignore absolute protocol paths
-                String fullMatch = matcher.group(0);
-                LOGGER.debug("before match {}", fullMatch);
-                String resolvedImgPath = refImgPath;
-                if (!refImgPath.startsWith("/")) {
-                    resolvedImgPath = buildProperPath(getParentPath(cssFilePath), refImgPath);
-                }
-                String imgRealPath = context.getRealPath(resolvedImgPath);
-                updateReferenceMap(cssRealPath, imgRealPath);
+    private long processCSS(String contextPath, String cssFilePath, File file, InputStream inputStream, OutputStream outputStream,
+                            Map<String, ImageReference> imageReferences, ResourceMetadata metadata) throws IOException {
+        String cssRealPath = metadata.realPathOf(cssFilePath);
+        String cssParentPath = getParentPath(cssFilePath);
+        UnaryOperator<String> pathResolver = refImgPath -> {
+            if (isProtocolURL(refImgPath)) { //ignore absolute protocol paths
+                return null;
+            }
+            return refImgPath.startsWith("/") ? refImgPath : buildProperPath(cssParentPath, refImgPath);
+        };
+        CSSRewritePlan plan = file != null ? CSSRewritePlan.forFile(cssFilePath, metadata.stat(file.getPath()), pathResolver)
+                : CSSRewritePlan.of(new InputStreamReader(inputStream, DEFAULT_CHARSET), pathResolver);
+        Set<String> imagesReferredByThisCSS = new HashSet<>();
+        return plan.writeTo(outputStream, resolvedImgPath -> {
+            ImageReference imageReference = imageReferences.get(resolvedImgPath);
+            if (imageReference == null) {
+                String imgRealPath = metadata.realPathOf(resolvedImgPath);
                 LOGGER.trace("before path {}", resolvedImgPath);
                 String fullPath = contextPath + (this.turnOffUrlFingerPrinting ? resolvedImgPath
-                        : addFingerPrint(buildETagForResource(resolvedImgPath, context),
+                        : addFingerPrint(buildETagForResource(resolvedImgPath, metadata),
                         resolvedImgPath));
                 LOGGER.trace("after path {}", fullPath);
-                String matchReplace = fullMatch.replace(refImgPath, fullPath);
-                LOGGER.debug("after replace {}", matchReplace);
-                matcher.appendReplacement(output, matchReplace);
+                imageReference = new ImageReference(imgRealPath, fullPath);
+                imageReferences.put(resolvedImgPath, imageReference);
+            }
+            if (imagesReferredByThisCSS.add(resolvedImgPath)) {
+                updateReferenceMap(cssRealPath, imageReference.realPath, metadata);
+            }
+            return imageReference.url;
+        });
+    }
+
+    /**
+     * Single byte range requested with Range header
+     */
+    static final class ByteRange {
+
+        private final long first; //-1 for suffix range
+
+        private final long last; //-1 if open ended, number of bytes for suffix range
+
+        private ByteRange(long first, long last) {
+            this.first = first;
+            this.last = last;
+        }
+
+        /**
+         * @param request      - HttpServletRequest
+         * @param eTag         - current ETag of the contents, can be null
+         * @param lastModified - current last modified of the contents
+         * @return requested range, or null if whole contents are to be sent (no Range, If-Range not matching,
+         * multiple or invalid ranges)
+         */
+        static ByteRange of(HttpServletRequest request, String eTag, long lastModified) {
+            String range = request.getHeader(HTTP_RANGE_HEADER);
+            if (range == null || !range.startsWith("bytes=")) return null;
+            String ifRange = request.getHeader(HTTP_IF_RANGE_HEADER);
+            if (ifRange != null && !ByteRange.matches(ifRange.trim(), eTag, lastModified)) {
+                LOGGER.trace("If-Range doesn't match, ignoring Range.");
+                return null;
+            }
+            String spec = range.substring("bytes=".length()).trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0 || spec.indexOf(',') >= 0) return null; //only single range is supported
+            try {
+                String first = spec.substring(0, dash).trim();
+                String last = spec.substring(dash + 1).trim();
+                if (first.isEmpty()) {
+                    return last.isEmpty() ? null : new ByteRange(-1, Long.parseLong(last));
+                }
+                ByteRange byteRange = new ByteRange(Long.parseLong(first), last.isEmpty() ? -1 : Long.parseLong(last));
+                return byteRange.last != -1 && byteRange.last < byteRange.first ? null : byteRange;
+            } catch (NumberFormatException ex) {
+                return null;
             }
         }
-        matcher.appendTail(output);
-        input.setLength(0);
-        return output.toString();
+
+        private static boolean matches(String ifRange, String eTag, long lastModified) {
+            if (ifRange.indexOf(' ') < 0) { //entity tag, dates have spaces
+                return eTag != null && (ifRange.equals(eTag) || ifRange.equals("\"" + eTag + "\""));
+            }
+            long date = readTimeFromHeader(ifRange);
+            // compare w/o milliseconds as header dates don't have them
+            return date != HttpDateCodec.INVALID && lastModified / 1000 * 1000 == date;
+        }
+
+        /**
+         * @param length - length of the contents
+         * @return first and last (inclusive) position of the range in the contents, null if not satisfiable
+         */
+        long[] resolve(long length) {
+            if (first == -1) {
+                return last > 0 && length > 0 ? new long[]{Math.max(0, length - last), length - 1} : null;
+            }
+            if (first >= length) return null;
+            return new long[]{first, last == -1 ? length - 1 : Math.min(last, length - 1)};
+        }
     }
 
     /**
@@ -515,9 +1280,15 @@ public class JSCSSMergeServlet extends HttpServlet {
 
         private long contentLength;
 
-        private ProcessedResult(int numberOfMissingResources, long contentLength) {
+        private Set<String> referencedImages;
+
+        private boolean errors;
+
+        private ProcessedResult(int numberOfMissingResources, long contentLength, Set<String> referencedImages, boolean errors) {
             this.numberOfMissingResources = numberOfMissingResources;
             this.contentLength = contentLength;
+            this.referencedImages = referencedImages;
+            this.errors = errors;
         }
 
         public int getNumberOfMissingResources() {
@@ -527,6 +1298,104 @@ public class JSCSSMergeServlet extends HttpServlet {
         public long getContentLength() {
             return contentLength;
         }
+
+        public Set<String> getReferencedImages() {
+            return referencedImages;
+        }
+
+        /**
+         * @return true if some resource failed to be read, i.e. the merged contents are incomplete
+         */
+        public boolean hasErrors() {
+            return errors;
+        }
+    }
+
+    /**
+     * Image referred by CSS along with the url it is rewritten to
+     */
+    private static class ImageReference {
+
+        private final String realPath;
+
+        private final String url;
+
+        private ImageReference(String realPath, String url) {
+            this.realPath = realPath;
+            this.url = url;
+        }
+    }
+
+    /**
+     * Merged contents along with the headers to serve them, kept in cache
+     */
+    private static class MergedBundle {
+
+        final byte[] data; //null if prebuilt
+
+        final String eTag;
+
+        final long lastModified;
+
+        final Map<String, long[]> versions; //real path -> {last modified, size} when merged
+
+        private MergedBundle(byte[] data, String eTag, long lastModified, Map<String, long[]> versions) {
+            this.data = data;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.versions = versions;
+        }
+
+        /**
+         * @param metadata - resources metadata snapshot
+         * @return true if any of the files has changed since merged
+         */
+        boolean isModified(ResourceMetadata metadata) {
+            for (Map.Entry<String, long[]> entry : this.versions.entrySet()) {
+                if (!Arrays.equals(entry.getValue(), versionOf(entry.getKey(), metadata))) {
+                    LOGGER.trace("{} modified since merged.", entry.getKey());
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Same checks as {@link JSCSSMergeServlet#isNotModified} but using the cached last modified and ETag
+         *
+         * @param request - HttpServletRequest
+         * @return true if not modified based on If-None-Match and If-Modified-Since
+         */
+        boolean isNotModified(HttpServletRequest request) {
+            String ifModifiedSince = request.getHeader(HTTP_IF_MODIFIED_SINCE);
+            if (ifModifiedSince != null) {
+                long since = readTimeFromHeader(ifModifiedSince);
+                // compare w/o milliseconds as header dates don't have them
+                if (since != HttpDateCodec.INVALID && this.lastModified / 1000 * 1000 <= since) {
+                    return true;
+                }
+            }
+            String requestETag = request.getHeader(HTTP_IF_NONE_MATCH_HEADER);
+            return requestETag != null && this.eTag != null && requestETag.replace("-gzip", "").equals(this.eTag);
+        }
     }
-}
 
+    /**
+     * Merged contents written to disk when servlet initialized
+     */
+    private static class PrebuiltBundle extends MergedBundle {
+
+        private final String bundle;
+
+        private final File file;
+
+        private final File gzipFile; //null if gzip doesn't make it smaller
+
+        private PrebuiltBundle(String bundle, File file, File gzipFile, String eTag, long lastModified, Map<String, long[]> versions) {
+            super(null, eTag, lastModified, versions);
+            this.bundle = bundle;
+            this.file = file;
+            this.gzipFile = gzipFile;
+        }
+    }
+}
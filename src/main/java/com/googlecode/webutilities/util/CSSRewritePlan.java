@@ -0,0 +1,159 @@
+/*
+ * Copyright 2010-2016 Rajendra Patil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.webutilities.util;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+import static com.googlecode.webutilities.common.Constants.DEFAULT_CHARSET;
+
+/**
+ * Parsed form of a CSS file, ready to be written with its image urls rewritten.
+ * <p>
+ * Holds the CSS bytes with url(...) paths cut out, the byte offsets they were cut at and the paths they resolved to.
+ * Writing it is just splicing these bytes with the url for each path, so the CSS is never scanned again until the file
+ * changes. Plans for files are cached by real path and checked against file's last modified and size.
+ * </p>
+ *
+ * @author rpatil
+ * @version 1.0
+ */
+public final class CSSRewritePlan {
+
+    private static final Charset CHARSET = Charset.forName(DEFAULT_CHARSET);
+
+    private static final long MAX_CACHED_BYTES = 16 * 1024 * 1024; //16 MB
+
+    private static final Cache<String, CSSRewritePlan> PLANS = CacheBuilder.newBuilder()
+            .maximumWeight(MAX_CACHED_BYTES)
+            .weigher((String realPath, CSSRewritePlan plan) -> plan.bytes.length)
+            .build();
+
+    private final byte[] bytes;
+
+    private final int[] offsets;
+
+    private final String[] paths;
+
+    private String cssFilePath;
+
+    private long lastModified;
+
+    private long size;
+
+    private CSSRewritePlan(byte[] bytes, int[] offsets, String[] paths) {
+        this.bytes = bytes;
+        this.offsets = offsets;
+        this.paths = paths;
+    }
+
+    /**
+     * @param reader       - css to parse
+     * @param pathResolver - gets path of each url(...), returns resolved path or null to keep the url as is
+     * @return plan for the css
+     * @throws IOException - thrown in case anything (IO read/write) goes wrong
+     */
+    public static CSSRewritePlan of(Reader reader, UnaryOperator<String> pathResolver) throws IOException {
+        ByteArrayOutputStream literal = new ByteArrayOutputStream();
+        Writer writer = new OutputStreamWriter(literal, CHARSET);
+        List<Integer> offsets = new ArrayList<>();
+        List<String> paths = new ArrayList<>();
+        CSSUrlRewriter.rewrite(reader, writer, path -> {
+            String resolvedPath = pathResolver.apply(path);
+            if (resolvedPath == null) return null;
+            try {
+                writer.flush();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            offsets.add(literal.size());
+            paths.add(resolvedPath);
+            return "";
+        });
+        int[] offsetsArray = new int[offsets.size()];
+        for (int i = 0; i < offsetsArray.length; i++) {
+            offsetsArray[i] = offsets.get(i);
+        }
+        return new CSSRewritePlan(literal.toByteArray(), offsetsArray, paths.toArray(new String[paths.size()]));
+    }
+
+    /**
+     * @param cssFilePath  - webapp relative path of the css, paths resolved against it are part of the plan
+     * @param file         - css file
+     * @param pathResolver - gets path of each url(...), returns resolved path or null to keep the url as is
+     * @return cached plan if file hasn't changed since, otherwise newly parsed one
+     * @throws IOException - thrown in case anything (IO read/write) goes wrong
+     */
+    public static CSSRewritePlan forFile(String cssFilePath, File file, UnaryOperator<String> pathResolver) throws IOException {
+        return forFile(cssFilePath, file.getPath(), file.lastModified(), file.length(), pathResolver);
+    }
+
+    /**
+     * @param cssFilePath  - webapp relative path of the css, paths resolved against it are part of the plan
+     * @param stat         - attributes of the css file
+     * @param pathResolver - gets path of each url(...), returns resolved path or null to keep the url as is
+     * @return cached plan if file hasn't changed since, otherwise newly parsed one
+     * @throws IOException - thrown in case anything (IO read/write) goes wrong
+     */
+    public static CSSRewritePlan forFile(String cssFilePath, ResourceMetadata.FileStat stat, UnaryOperator<String> pathResolver) throws IOException {
+        return forFile(cssFilePath, stat.getRealPath(), stat.getLastModified(), stat.getLength(), pathResolver);
+    }
+
+    private static CSSRewritePlan forFile(String cssFilePath, String realPath, long lastModified, long size,
+                                          UnaryOperator<String> pathResolver) throws IOException {
+        CSSRewritePlan plan = PLANS.getIfPresent(realPath);
+        if (plan != null && plan.lastModified == lastModified && plan.size == size && cssFilePath.equals(plan.cssFilePath)) {
+            return plan;
+        }
+        try (Reader reader = new InputStreamReader(new FileInputStream(realPath), CHARSET)) {
+            plan = CSSRewritePlan.of(reader, pathResolver);
+        }
+        plan.cssFilePath = cssFilePath;
+        plan.lastModified = lastModified;
+        plan.size = size;
+        PLANS.put(realPath, plan);
+        return plan;
+    }
+
+    /**
+     * @param outputStream - output stream
+     * @param urlFor       - gets each resolved path, returns the url to write for it
+     * @return number of bytes written
+     * @throws IOException - thrown in case anything (IO read/write) goes wrong
+     */
+    public long writeTo(OutputStream outputStream, UnaryOperator<String> urlFor) throws IOException {
+        long written = 0;
+        int from = 0;
+        for (int i = 0; i < offsets.length; i++) {
+            outputStream.write(bytes, from, offsets[i] - from);
+            written += offsets[i] - from;
+            String url = urlFor.apply(paths[i]);
+            byte[] urlBytes = (url != null ? url : paths[i]).getBytes(CHARSET);
+            outputStream.write(urlBytes);
+            written += urlBytes.length;
+            from = offsets[i];
+        }
+        outputStream.write(bytes, from, bytes.length - from);
+        return written + bytes.length - from;
+    }
+}
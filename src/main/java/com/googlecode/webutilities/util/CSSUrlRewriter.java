@@ -0,0 +1,235 @@
+/*
+ * Copyright 2010-2016 Rajendra Patil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.webutilities.util;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.function.UnaryOperator;
+
+/**
+ * Single pass rewriter for <code>url(...)</code> references in CSS.
+ * <p>
+ * Reads the CSS in chunks and copies it to the writer, replacing the path of every <code>url(...)</code> with
+ * whatever the given resolver returns for it. Matches the same references as
+ * {@link com.googlecode.webutilities.common.Constants#CSS_IMG_URL_PATTERN} but without decoding CSS line by line.
+ * Line terminators are normalized to <code>\n</code> and the output always ends with one, same as the earlier
+ * line based processing did.
+ * </p>
+ *
+ * @author rpatil
+ * @version 1.0
+ */
+public final class CSSUrlRewriter {
+
+    private static final int NO_MATCH = -1;
+
+    private static final int NEED_MORE = -2;
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private static final char[] URL = {'u', 'r', 'l'};
+
+    private final Reader reader;
+
+    private final Writer writer;
+
+    private final UnaryOperator<String> resolver;
+
+    private char[] buffer = new char[BUFFER_SIZE];
+
+    private int length; //number of chars in buffer
+
+    private boolean eof;
+
+    private int pathStart;
+
+    private int pathEnd;
+
+    private boolean lastWasCR;
+
+    private char lastWritten;
+
+    private boolean written;
+
+    private CSSUrlRewriter(Reader reader, Writer writer, UnaryOperator<String> resolver) {
+        this.reader = reader;
+        this.writer = writer;
+        this.resolver = resolver;
+    }
+
+    /**
+     * @param reader   - css to read from
+     * @param writer   - to write the rewritten css to, flushed but not closed
+     * @param resolver - gets path of each url(...), returns replacement path or null to keep it as is. All the css
+     *                 before the path has already been written to the writer when it is called.
+     * @throws IOException - thrown in case anything (IO read/write) goes wrong
+     */
+    public static void rewrite(Reader reader, Writer writer, UnaryOperator<String> resolver) throws IOException {
+        new CSSUrlRewriter(reader, writer, resolver).rewrite();
+    }
+
+    private void rewrite() throws IOException {
+        int position = 0;
+        int literalStart = 0;
+        this.fill();
+        while (true) {
+            int candidate = position;
+            while (candidate < length && buffer[candidate] != 'u' && buffer[candidate] != 'U') {
+                candidate++;
+            }
+            if (candidate >= length) {
+                this.writeLiteral(literalStart, length);
+                if (eof) break;
+                length = 0;
+                position = literalStart = 0;
+                this.fill();
+                continue;
+            }
+            int end = this.matchUrl(candidate);
+            if (end == NEED_MORE) {
+                // keep the partial token and read more
+                this.writeLiteral(literalStart, candidate);
+                length -= candidate;
+                System.arraycopy(buffer, candidate, buffer, 0, length);
+                position = literalStart = 0;
+                if (length == buffer.length) {
+                    char[] grown = new char[buffer.length * 2];
+                    System.arraycopy(buffer, 0, grown, 0, length);
+                    buffer = grown;
+                }
+                this.fill();
+            } else if (end == NO_MATCH) {
+                position = candidate + 1;
+            } else {
+                if (pathEnd > pathStart) {
+                    // everything before the path is written when resolver is called
+                    this.writeLiteral(literalStart, pathStart);
+                    literalStart = pathStart;
+                    String replacement = resolver.apply(new String(buffer, pathStart, pathEnd - pathStart));
+                    if (replacement != null) {
+                        this.write(replacement);
+                        literalStart = pathEnd;
+                    }
+                }
+                position = end;
+            }
+        }
+        if (written && lastWritten != '\n') {
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+
+    private void fill() throws IOException {
+        while (!eof && length < buffer.length) {
+            int read = reader.read(buffer, length, buffer.length - length);
+            if (read == -1) {
+                eof = true;
+            } else {
+                length += read;
+            }
+        }
+    }
+
+    /**
+     * Matches <code>url\s*(\s*['"]?path['"]?\s*)</code> where path has none of <code>('|")</code>
+     *
+     * @param start - index of u in buffer
+     * @return index after the closing parenthesis, NO_MATCH or NEED_MORE if buffer ends before it could be decided
+     */
+    private int matchUrl(int start) {
+        int i = start;
+        for (char c : URL) {
+            if (i == length) return eof ? NO_MATCH : NEED_MORE;
+            if (Character.toLowerCase(buffer[i++]) != c) return NO_MATCH;
+        }
+        i = this.skipWhitespace(i);
+        if (i == length) return eof ? NO_MATCH : NEED_MORE;
+        if (buffer[i++] != '(') return NO_MATCH;
+        i = this.skipWhitespace(i);
+        if (i < length && (buffer[i] == '\'' || buffer[i] == '"')) {
+            i++;
+        }
+        int from = i;
+        while (i < length && "('|\")".indexOf(buffer[i]) < 0) {
+            i++;
+        }
+        if (i == length) return eof ? NO_MATCH : NEED_MORE;
+        int to = i;
+        while (to > from && isWhitespace(buffer[to - 1])) {
+            to--;
+        }
+        if (buffer[i] == '\'' || buffer[i] == '"') {
+            i++;
+        }
+        i = this.skipWhitespace(i);
+        if (i == length) return eof ? NO_MATCH : NEED_MORE;
+        if (buffer[i] != ')') return NO_MATCH;
+        pathStart = from;
+        pathEnd = to;
+        return i + 1;
+    }
+
+    private int skipWhitespace(int i) {
+        while (i < length && isWhitespace(buffer[i])) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == '\u000B';
+    }
+
+    /**
+     * Writes buffer[from, to) converting \r\n and \r to \n
+     */
+    private void writeLiteral(int from, int to) throws IOException {
+        int runStart = from;
+        for (int i = from; i < to; i++) {
+            char c = buffer[i];
+            if (c == '\r') {
+                writer.write(buffer, runStart, i - runStart);
+                writer.write('\n');
+                runStart = i + 1;
+                lastWasCR = true;
+            } else {
+                if (c == '\n' && lastWasCR && i == runStart) {
+                    runStart = i + 1; //already written for \r
+                }
+                lastWasCR = false;
+            }
+        }
+        if (to > runStart) {
+            writer.write(buffer, runStart, to - runStart);
+        }
+        if (to > from) {
+            lastWritten = buffer[to - 1] == '\r' ? '\n' : buffer[to - 1];
+            written = true;
+        }
+    }
+
+    private void write(String string) throws IOException {
+        writer.write(string);
+        if (!string.isEmpty()) {
+            lastWritten = string.charAt(string.length() - 1);
+            written = true;
+            lastWasCR = false;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2010-2016 Rajendra Patil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.webutilities.util;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Index of content digests of files, keyed by real path and checked against last modified and size of the file.
+ * <p>
+ * Digest is SHA-256 of the file bytes, cut to 128 bits and hex encoded (same length as the MD5 based ETags). As it only
+ * depends on the bytes, it stays the same across deploys and touches, and each file is read for it only once per
+ * version (last modified and size) of the file.
+ * </p>
+ *
+ * @author rpatil
+ * @version 1.0
+ */
+public final class DigestIndex {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DigestIndex.class.getName());
+
+    private static final String ALGORITHM = "SHA-256";
+
+    private static final int DIGEST_LENGTH = 16; //bytes
+
+    private static final Cache<String, Digest> DIGESTS = CacheBuilder.newBuilder()
+            .maximumSize(10000)
+            .build();
+
+    private DigestIndex() {
+    } //non instantiable
+
+    /**
+     * @param stat - attributes of the file
+     * @return hex digest of the file contents, null if it is not a file or can't be read
+     */
+    public static String digestOf(ResourceMetadata.FileStat stat) {
+        if (stat == null || !stat.isFile()) return null;
+        Digest digest = DIGESTS.getIfPresent(stat.getRealPath());
+        if (digest != null && digest.lastModified == stat.getLastModified() && digest.size == stat.getLength()) {
+            return digest.hex;
+        }
+        MessageDigest messageDigest = newMessageDigest();
+        try (FileChannel channel = FileChannel.open(Paths.get(stat.getRealPath()), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(Math.max(stat.getLength(), 1), 64 * 1024));
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                messageDigest.update(buffer);
+                buffer.clear();
+            }
+        } catch (IOException ex) {
+            LOGGER.warn("Failed to read {} for digest.", stat.getRealPath(), ex);
+            return null;
+        }
+        digest = new Digest(stat.getLastModified(), stat.getLength(), hex(messageDigest.digest()));
+        DIGESTS.put(stat.getRealPath(), digest);
+        return digest.hex;
+    }
+
+    /**
+     * @param data - bytes to digest
+     * @return hex digest of the bytes
+     */
+    public static String digestOf(byte[] data) {
+        return hex(newMessageDigest().digest(data));
+    }
+
+    private static MessageDigest newMessageDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ALGORITHM + " is not available", ex); //every JRE must have it
+        }
+    }
+
+    private static String hex(byte[] digest) {
+        final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
+        char[] hex = new char[2 * DIGEST_LENGTH];
+        for (int i = 0; i < DIGEST_LENGTH; ++i) {
+            hex[2 * i] = HEX_CHARS[(digest[i] & 0xF0) >>> 4];
+            hex[2 * i + 1] = HEX_CHARS[digest[i] & 0x0F];
+        }
+        return new String(hex);
+    }
+
+    private static final class Digest {
+
+        private final long lastModified;
+
+        private final long size;
+
+        private final String hex;
+
+        private Digest(long lastModified, long size, String hex) {
+            this.lastModified = lastModified;
+            this.size = size;
+            this.hex = hex;
+        }
+    }
+}
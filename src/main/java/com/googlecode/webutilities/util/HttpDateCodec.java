@@ -0,0 +1,254 @@
+/*
+ * Copyright 2010-2016 Rajendra Patil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.webutilities.util;
+
+import java.time.Instant;
+import java.time.Month;
+import java.time.Year;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/**
+ * Thread safe parser and formatter of HTTP dates.
+ * <p>
+ * Parses all three formats of RFC 7231 (IMF-fixdate <code>Sun, 06 Nov 1994 08:49:37 GMT</code>, obsolete RFC 850
+ * <code>Sunday, 06-Nov-94 08:49:37 GMT</code> and asctime <code>Sun Nov  6 08:49:37 1994</code>) in one pass, without
+ * trying formats one after other or throwing exceptions for the ones that don't match. Formats as IMF-fixdate.
+ * Recently parsed and formatted values are remembered in small direct mapped tables, as same few dates (Last-Modified
+ * of the resources, Expires of this second) show up again and again.
+ * </p>
+ *
+ * @author rpatil
+ * @version 1.0
+ */
+public final class HttpDateCodec {
+
+    /**
+     * Returned by {@link #parse(String)} when the string is not an HTTP date
+     */
+    public static final long INVALID = Long.MIN_VALUE;
+
+    private static final DateTimeFormatter IMF_FIXDATE = DateTimeFormatter
+            .ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US)
+            .withZone(ZoneOffset.UTC);
+
+    private static final String[] MONTHS = {"jan", "feb", "mar", "apr", "may", "jun", "jul", "aug", "sep", "oct", "nov", "dec"};
+
+    private static final int CURRENT_YEAR = Year.now(ZoneOffset.UTC).getValue();
+
+    private static final int TABLE_SIZE = 256; //power of 2
+
+    private static final Parsed[] PARSED = new Parsed[TABLE_SIZE];
+
+    private static final Formatted[] FORMATTED = new Formatted[TABLE_SIZE];
+
+    private HttpDateCodec() {
+    } //non instantiable
+
+    /**
+     * @param time - milliseconds since epoch
+     * @return IMF-fixdate for the time (milliseconds are dropped)
+     */
+    public static String format(long time) {
+        long seconds = Math.floorDiv(time, 1000L);
+        int slot = (int) (seconds ^ (seconds >>> 32)) & (TABLE_SIZE - 1);
+        Formatted formatted = FORMATTED[slot];
+        if (formatted == null || formatted.seconds != seconds) {
+            formatted = new Formatted(seconds, IMF_FIXDATE.format(Instant.ofEpochSecond(seconds)));
+            FORMATTED[slot] = formatted;
+        }
+        return formatted.value;
+    }
+
+    /**
+     * @param value - HTTP date in any of RFC 7231 formats, anything after the date (eg. <code>; length=123</code> sent
+     *              by some browsers) is ignored
+     * @return milliseconds since epoch, or {@link #INVALID} if value is not an HTTP date
+     */
+    public static long parse(String value) {
+        if (value == null) return INVALID;
+        int slot = value.hashCode() & (TABLE_SIZE - 1);
+        Parsed parsed = PARSED[slot];
+        if (parsed != null && parsed.value.equals(value)) {
+            return parsed.time;
+        }
+        long time = new Parser(value).parse();
+        if (time != INVALID) {
+            PARSED[slot] = new Parsed(value, time);
+        }
+        return time;
+    }
+
+    private static final class Parsed {
+
+        private final String value;
+
+        private final long time;
+
+        private Parsed(String value, long time) {
+            this.value = value;
+            this.time = time;
+        }
+    }
+
+    private static final class Formatted {
+
+        private final long seconds;
+
+        private final String value;
+
+        private Formatted(long seconds, String value) {
+            this.seconds = seconds;
+            this.value = value;
+        }
+    }
+
+    private static final class Parser {
+
+        private final String value;
+
+        private int position;
+
+        private int day, month, year, hour, minute, second, offsetSeconds;
+
+        private Parser(String value) {
+            this.value = value.trim();
+        }
+
+        private long parse() {
+            int comma = value.indexOf(',');
+            boolean parsed;
+            if (comma > 0) {
+                position = comma + 1;
+                this.skipSpaces();
+                day = this.number(1, 2);
+                if (this.skip(' ')) { // IMF-fixdate: 06 Nov 1994 08:49:37 GMT
+                    parsed = day >= 0 && this.month() && this.skip(' ') && (year = this.number(4, 4)) >= 0;
+                } else { // RFC 850: 06-Nov-94 08:49:37 GMT
+                    parsed = day >= 0 && this.skip('-') && this.month() && this.skip('-') && (year = this.year()) >= 0;
+                }
+                parsed = parsed && this.skip(' ') && this.time() && this.zone();
+            } else { // asctime: Sun Nov  6 08:49:37 1994
+                position = 3;
+                parsed = this.skip(' ') && this.month() && this.skip(' ') && this.skipSpaces()
+                        && (day = this.number(1, 2)) >= 0 && this.skip(' ') && this.time() && this.skip(' ')
+                        && (year = this.number(4, 4)) >= 0;
+            }
+            if (!parsed || day < 1 || day > Month.of(month).length(Year.isLeap(year))) {
+                return INVALID;
+            }
+            long epochSeconds = daysFromCivil(year, month, day) * 86400L + hour * 3600L + minute * 60L + second - offsetSeconds;
+            return epochSeconds * 1000L;
+        }
+
+        private boolean skip(char c) {
+            if (position < value.length() && value.charAt(position) == c) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private boolean skipSpaces() {
+            while (position < value.length() && value.charAt(position) == ' ') {
+                position++;
+            }
+            return true;
+        }
+
+        /**
+         * @return the number of min to max digits at current position, -1 if there isn't one
+         */
+        private int number(int minDigits, int maxDigits) {
+            int number = 0;
+            int digits = 0;
+            while (digits < maxDigits && position < value.length()) {
+                char c = value.charAt(position);
+                if (c < '0' || c > '9') break;
+                number = number * 10 + (c - '0');
+                digits++;
+                position++;
+            }
+            return digits >= minDigits ? number : -1;
+        }
+
+        private boolean month() {
+            if (position + 3 > value.length()) return false;
+            for (int i = 0; i < MONTHS.length; i++) {
+                if (value.regionMatches(true, position, MONTHS[i], 0, 3)) {
+                    month = i + 1;
+                    position += 3;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Two digit year of RFC 850 is taken in the past century if it would otherwise be more than 50 years in future
+         */
+        private int year() {
+            int start = position;
+            int number = this.number(2, 4);
+            if (number < 0 || position - start == 4) return number;
+            if (position - start != 2) return -1;
+            int fullYear = CURRENT_YEAR / 100 * 100 + number;
+            return fullYear > CURRENT_YEAR + 50 ? fullYear - 100 : fullYear;
+        }
+
+        private boolean time() {
+            return (hour = this.number(2, 2)) >= 0 && hour < 24 && this.skip(':')
+                    && (minute = this.number(2, 2)) >= 0 && minute < 60 && this.skip(':')
+                    && (second = this.number(2, 2)) >= 0 && second <= 60;
+        }
+
+        /**
+         * GMT as required, but also UTC, UT, Z and numeric offsets sent by some clients
+         */
+        private boolean zone() {
+            this.skipSpaces();
+            if (position >= value.length()) return true;
+            if (value.regionMatches(true, position, "GMT", 0, 3) || value.regionMatches(true, position, "UTC", 0, 3)) {
+                position += 3;
+            } else if (value.regionMatches(true, position, "UT", 0, 2)) {
+                position += 2;
+            } else if (value.charAt(position) == 'Z') {
+                position++;
+            }
+            if (position < value.length() && (value.charAt(position) == '+' || value.charAt(position) == '-')) {
+                int sign = value.charAt(position++) == '-' ? -1 : 1;
+                int hhmm = this.number(4, 4);
+                if (hhmm < 0) return false;
+                offsetSeconds = sign * ((hhmm / 100) * 3600 + (hhmm % 100) * 60);
+            }
+            return position >= value.length() || !Character.isLetterOrDigit(value.charAt(position));
+        }
+    }
+
+    /**
+     * @return days since 1970-01-01 for the date of proleptic Gregorian calendar
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = (y >= 0 ? y : y - 399) / 400;
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2010-2016 Rajendra Patil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.webutilities.util;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import javax.servlet.ServletContext;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Snapshot of real paths and file attributes of the resources used while serving one request.
+ * <p>
+ * Each resource path is resolved to real path and each file is stat'ed (once, reading all its attributes together) at
+ * most once for the snapshot, no matter how many times the ETag, last modified or CSS image checks look at it.
+ * File attributes are also shared across requests for a short time (1 second by default, see
+ * <code>webutilities.resourceMetadataTTLMillis</code> system property, 0 to turn off) so that concurrent requests for
+ * the same resources don't stat them again either. When {@link ResourceWatcher} is running, attributes come from its
+ * version table instead and the shared ones are not used.
+ * </p>
+ * <p>
+ * Snapshot also tells whether ETags (and fingerprints) are to be built from the contents of the files
+ * ({@link DigestIndex}) rather than their last modified and size. It is off unless turned on for the snapshot, or for
+ * the whole webapp with <code>contentHashETags</code> context param.
+ * </p>
+ *
+ * @author rpatil
+ * @version 1.0
+ */
+public final class ResourceMetadata {
+
+    public static final String TTL_MILLIS_PROPERTY = "webutilities.resourceMetadataTTLMillis";
+
+    public static final String CONTEXT_PARAM_CONTENT_HASH_ETAGS = "contentHashETags";
+
+    private static final long TTL_MILLIS = Long.getLong(TTL_MILLIS_PROPERTY, 1000L);
+
+    private static final Cache<String, FileStat> SHARED = CacheBuilder.newBuilder()
+            .maximumSize(10000)
+            .expireAfterWrite(Math.max(TTL_MILLIS, 0), TimeUnit.MILLISECONDS)
+            .build();
+
+    private static final String NO_REAL_PATH = "";
+
+    private final ServletContext context;
+
+    private final boolean contentHashETags;
+
+    private final Map<String, String> realPaths = new ConcurrentHashMap<>();
+
+    private final Map<String, FileStat> stats = new ConcurrentHashMap<>();
+
+    private ResourceMetadata(ServletContext context, boolean contentHashETags) {
+        this.context = context;
+        this.contentHashETags = contentHashETags;
+    }
+
+    /**
+     * @param context - servlet context to resolve real paths with, can be null if only real paths will be looked up
+     * @return new empty snapshot
+     */
+    public static ResourceMetadata snapshot(ServletContext context) {
+        return new ResourceMetadata(context, isContentHashETags(context));
+    }
+
+    /**
+     * @param context          - servlet context to resolve real paths with
+     * @param contentHashETags - whether to build ETags from the contents of the files
+     * @return new empty snapshot
+     */
+    public static ResourceMetadata snapshot(ServletContext context, boolean contentHashETags) {
+        return new ResourceMetadata(context, contentHashETags);
+    }
+
+    /**
+     * @param context - servlet context, can be null
+     * @return true if webapp is configured to build ETags from the contents of the files
+     */
+    public static boolean isContentHashETags(ServletContext context) {
+        return context != null && Utils.readBoolean(context.getInitParameter(CONTEXT_PARAM_CONTENT_HASH_ETAGS), false);
+    }
+
+    public boolean isContentHashETags() {
+        return contentHashETags;
+    }
+
+    /**
+     * @param relativePath - webapp relative path of the resource
+     * @return real path of the resource, null if it is not available as a file
+     */
+    public String realPathOf(String relativePath) {
+        if (context == null || relativePath == null) return null;
+        String realPath = realPaths.get(relativePath);
+        if (realPath == null) {
+            realPath = context.getRealPath(relativePath);
+            realPaths.put(relativePath, realPath != null ? realPath : NO_REAL_PATH);
+        }
+        return realPath == null || NO_REAL_PATH.equals(realPath) ? null : realPath;
+    }
+
+    /**
+     * @param relativePath - webapp relative path of the resource
+     * @return attributes of the resource file, null if it has no real path
+     */
+    public FileStat of(String relativePath) {
+        return this.stat(this.realPathOf(relativePath));
+    }
+
+    /**
+     * @param realPath - real path of the file, can be null
+     * @return attributes of the file, null if real path is null
+     */
+    public FileStat stat(String realPath) {
+        if (realPath == null) return null;
+        FileStat stat = stats.get(realPath);
+        if (stat == null) {
+            ResourceWatcher watcher = ResourceWatcher.get();
+            stat = watcher != null ? watcher.stat(realPath) : null;
+            if (stat == null && TTL_MILLIS > 0) {
+                stat = SHARED.getIfPresent(realPath);
+            }
+            if (stat == null) {
+                stat = FileStat.read(realPath);
+                if (TTL_MILLIS > 0) {
+                    SHARED.put(realPath, stat);
+                }
+            }
+            stats.put(realPath, stat);
+        }
+        return stat;
+    }
+
+    /**
+     * Sets last modified of the file to now, and refreshes its attributes in this snapshot and the shared ones
+     *
+     * @param realPath - real path of the file
+     * @return true if last modified could be set, false otherwise
+     */
+    public boolean touch(String realPath) {
+        boolean touched = new File(realPath).setLastModified(System.currentTimeMillis());
+        ResourceWatcher watcher = ResourceWatcher.get();
+        if (watcher != null) {
+            watcher.invalidate(realPath);
+        }
+        FileStat stat = FileStat.read(realPath);
+        stats.put(realPath, stat);
+        if (TTL_MILLIS > 0) {
+            SHARED.put(realPath, stat);
+        }
+        return touched;
+    }
+
+    /**
+     * Attributes of a file as read at one point of time
+     */
+    public static final class FileStat {
+
+        private final String realPath;
+
+        private final boolean exists;
+
+        private final boolean regularFile;
+
+        private final long lastModified;
+
+        private final long length;
+
+        private FileStat(String realPath, boolean exists, boolean regularFile, long lastModified, long length) {
+            this.realPath = realPath;
+            this.exists = exists;
+            this.regularFile = regularFile;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+
+        static FileStat read(String realPath) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(Paths.get(realPath), BasicFileAttributes.class);
+                return new FileStat(realPath, true, attributes.isRegularFile(),
+                        attributes.lastModifiedTime().toMillis(), attributes.size());
+            } catch (IOException | RuntimeException ex) {
+                return new FileStat(realPath, false, false, 0L, 0L);
+            }
+        }
+
+        public String getRealPath() {
+            return realPath;
+        }
+
+        public boolean exists() {
+            return exists;
+        }
+
+        public boolean isFile() {
+            return regularFile;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public long getLength() {
+            return length;
+        }
+    }
+}
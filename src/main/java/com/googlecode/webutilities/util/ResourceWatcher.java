@@ -0,0 +1,190 @@
+/*
+ * Copyright 2010-2016 Rajendra Patil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.webutilities.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Version table of resource files kept up to date by a {@link WatchService}.
+ * <p>
+ * Directory of a file is registered with the watch service the first time any file in it is looked up, and the file
+ * attributes are read once and then served from memory until the watch service reports the file (or the directory)
+ * changed. So freshness checks on resources that haven't changed don't touch the file system at all, while changes are
+ * still picked up as soon as the watch service reports them.
+ * </p>
+ * <p>
+ * There is one watcher per class loader (webapp), started by the first component that {@link #acquire()}s it and
+ * stopped when all of them have {@link #release()}d it. While it is running, {@link ResourceMetadata} consults it
+ * instead of the disk, so all the freshness checks in {@link Utils} (and their users like <code>URLTag</code>) use it.
+ * </p>
+ *
+ * @author rpatil
+ * @version 1.0
+ */
+public final class ResourceWatcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ResourceWatcher.class.getName());
+
+    private static volatile ResourceWatcher instance;
+
+    private static int users;
+
+    private final WatchService watchService;
+
+    private final Thread thread;
+
+    private final Map<Path, WatchKey> directories = new ConcurrentHashMap<>();
+
+    private final Set<Path> unwatchable = ConcurrentHashMap.newKeySet();
+
+    private final Map<Path, ResourceMetadata.FileStat> versions = new ConcurrentHashMap<>();
+
+    private volatile boolean running = true;
+
+    private ResourceWatcher(WatchService watchService) {
+        this.watchService = watchService;
+        this.thread = new Thread(this::processEvents, "webutilities-resource-watcher");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Starts the watcher if it is not already running
+     *
+     * @return true if the watcher is running, false if it couldn't be started
+     */
+    public static synchronized boolean acquire() {
+        if (instance == null) {
+            try {
+                instance = new ResourceWatcher(FileSystems.getDefault().newWatchService());
+                instance.thread.start();
+                LOGGER.debug("Resource watcher started.");
+            } catch (IOException | UnsupportedOperationException ex) {
+                LOGGER.warn("Unable to start resource watcher, falling back to checking files on each request.", ex);
+                return false;
+            }
+        }
+        users++;
+        return true;
+    }
+
+    /**
+     * Stops the watcher if no one else is using it
+     */
+    public static synchronized void release() {
+        if (instance != null && --users <= 0) {
+            instance.close();
+            instance = null;
+            users = 0;
+        }
+    }
+
+    /**
+     * @return running watcher, null if none
+     */
+    static ResourceWatcher get() {
+        return instance;
+    }
+
+    /**
+     * @param realPath - real path of the file
+     * @return attributes of the file from the version table, null if its directory can't be watched
+     */
+    ResourceMetadata.FileStat stat(String realPath) {
+        Path path = Paths.get(realPath).toAbsolutePath().normalize();
+        Path directory = path.getParent();
+        if (directory == null || !this.watch(directory)) {
+            return null;
+        }
+        return versions.computeIfAbsent(path, p -> ResourceMetadata.FileStat.read(realPath));
+    }
+
+    /**
+     * Drops the file from version table, so that it is read again on next look up
+     *
+     * @param realPath - real path of the file
+     */
+    void invalidate(String realPath) {
+        versions.remove(Paths.get(realPath).toAbsolutePath().normalize());
+    }
+
+    private boolean watch(Path directory) {
+        if (directories.containsKey(directory)) return true;
+        if (unwatchable.contains(directory)) return false;
+        synchronized (directories) {
+            if (directories.containsKey(directory)) return true;
+            try {
+                directories.put(directory, directory.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE));
+                LOGGER.trace("Watching {}", directory);
+                return true;
+            } catch (IOException | RuntimeException ex) {
+                LOGGER.debug("Unable to watch {}", directory, ex);
+                unwatchable.add(directory);
+                return false;
+            }
+        }
+    }
+
+    private void processEvents() {
+        while (running) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException ex) {
+                break;
+            }
+            Path directory = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW) {
+                    LOGGER.trace("Events lost for {}, dropping all its versions", directory);
+                    versions.keySet().removeIf(path -> directory.equals(path.getParent()));
+                } else {
+                    Path path = directory.resolve((Path) event.context());
+                    LOGGER.trace("{} {}", event.kind(), path);
+                    versions.remove(path);
+                    if (directories.containsKey(path)) { //watched sub directory itself changed
+                        versions.keySet().removeIf(p -> path.equals(p.getParent()));
+                    }
+                }
+            }
+            if (!key.reset()) {
+                LOGGER.trace("{} is no more watched", directory);
+                directories.remove(directory);
+                versions.keySet().removeIf(path -> directory.equals(path.getParent()));
+            }
+        }
+    }
+
+    private void close() {
+        running = false;
+        try {
+            watchService.close();
+        } catch (IOException ex) {
+            LOGGER.debug("Failed to close watch service", ex);
+        }
+        thread.interrupt();
+        LOGGER.debug("Resource watcher stopped.");
+    }
+}
@@ -24,8 +24,8 @@ import java.io.*;
 import java.net.URLConnection;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.regex.Matcher;
 
 import static com.googlecode.webutilities.common.Constants.*;
@@ -184,16 +184,12 @@ public final class Utils {
     /**
      * Calculates simple hash using file size and last modified time.
      *
-     * @param resourceRealPath - file path, whose has to be calculated
+     * @param resource - file attributes, whose has to be calculated
      * @return - hash string as lastmodified#size
      */
-    private static String simpleHashOf(String resourceRealPath) {
-        if (resourceRealPath == null) return null;
-        File resource = new File(resourceRealPath);
-        if (!resource.exists()) return null;
-        long lastModified = resource.lastModified();
-        long size = resource.length();
-        return String.format("%s#%s", lastModified, size);
+    private static String simpleHashOf(ResourceMetadata.FileStat resource) {
+        if (resource == null || !resource.exists()) return null;
+        return resource.getLastModified() + "#" + resource.getLength();
     }
 
     /**
@@ -245,12 +241,21 @@ public final class Utils {
      * @return true if any of the resources is modified since given time, false otherwise
      */
     public static boolean isAnyResourceModifiedSince(List<String> resources, long sinceTime, ServletContext servletContext) {
+        return isAnyResourceModifiedSince(resources, sinceTime, ResourceMetadata.snapshot(servletContext));
+    }
+
+    /**
+     * @param resources - list of resources paths
+     * @param sinceTime - long value to compare against
+     * @param metadata  - resources metadata snapshot
+     * @return true if any of the resources is modified since given time, false otherwise
+     */
+    public static boolean isAnyResourceModifiedSince(List<String> resources, long sinceTime, ResourceMetadata metadata) {
         for (String resourcePath : resources) {
-            resourcePath = servletContext.getRealPath(resourcePath);
-            if (resourcePath == null) continue;
-            File resource = new File(resourcePath);
+            ResourceMetadata.FileStat resource = metadata.of(resourcePath);
+            if (resource == null) continue;
             // simulate as if it's header date (w/o milliseconds)
-            long lastModified = readDateFromHeader(forHeaderDate(resource.lastModified())).getTime();
+            long lastModified = resource.getLastModified() / 1000 * 1000;
             if (lastModified > sinceTime) {
                 return true;
             }
@@ -264,12 +269,20 @@ public final class Utils {
      * @return long - maximum of last modified values of the resources
      */
     public static long getLastModifiedFor(List<String> resources, ServletContext servletContext) {
+        return getLastModifiedFor(resources, ResourceMetadata.snapshot(servletContext));
+    }
+
+    /**
+     * @param resources - list of resources paths
+     * @param metadata  - resources metadata snapshot
+     * @return long - maximum of last modified values of the resources
+     */
+    public static long getLastModifiedFor(List<String> resources, ResourceMetadata metadata) {
         long lastModified = 0;
         for (String resourcePath : resources) {
-            resourcePath = servletContext.getRealPath(resourcePath);
-            if (resourcePath == null) continue;
-            File resource = new File(resourcePath);
-            long resourceLastModified = resource.lastModified();
+            ResourceMetadata.FileStat resource = metadata.of(resourcePath);
+            if (resource == null) continue;
+            long resourceLastModified = resource.getLastModified();
             if (resourceLastModified > lastModified) {
                 lastModified = resourceLastModified;
             }
@@ -285,8 +298,19 @@ public final class Utils {
      * @return true if any resource ETag is modified, false otherwise.
      */
     public static boolean isAnyResourceETagModified(List<String> resources, String requestETag, String actualETag, ServletContext servletContext) {
+        return isAnyResourceETagModified(resources, requestETag, actualETag, ResourceMetadata.snapshot(servletContext));
+    }
+
+    /**
+     * @param resources   - list of resources
+     * @param requestETag - request ETag from If-None-Match header
+     * @param actualETag  - current ETag of a resource (can be null)
+     * @param metadata    - resources metadata snapshot
+     * @return true if any resource ETag is modified, false otherwise.
+     */
+    public static boolean isAnyResourceETagModified(List<String> resources, String requestETag, String actualETag, ResourceMetadata metadata) {
         if (actualETag == null && requestETag != null) {
-            actualETag = buildETagForResources(resources, servletContext);
+            actualETag = buildETagForResources(resources, metadata);
         }
         if (requestETag != null && actualETag != null) {
             requestETag = requestETag.replace("-gzip", "");//might have been added by gzip filter
@@ -302,9 +326,18 @@ public final class Utils {
      * @return - String as ETag calculated using simple hash based on size and last modified of all resources
      */
     public static String buildETagForResources(List<String> resourcesRelativePath, ServletContext context) {
+        return buildETagForResources(resourcesRelativePath, ResourceMetadata.snapshot(context));
+    }
+
+    /**
+     * @param resourcesRelativePath - list of resources
+     * @param metadata              - resources metadata snapshot
+     * @return - String as ETag calculated using simple hash based on size and last modified of all resources
+     */
+    public static String buildETagForResources(List<String> resourcesRelativePath, ResourceMetadata metadata) {
         String hashForETag = "";
         for (String relativePath : resourcesRelativePath) {
-            String hash = buildETagForResource(relativePath, context);
+            String hash = buildETagForResource(relativePath, metadata);
             hashForETag = hashForETag + (hash != null ? hash : "");
         }
         return hashForETag.length() > 0 ? (resourcesRelativePath.size() > 2 ? hexDigestString(hashForETag.getBytes()) : hashForETag) : null;
@@ -316,22 +349,29 @@ public final class Utils {
      * @return true if all goes well and paths are touched, false otherwise
      */
     public static boolean updateReferenceMap(String cssFilePath, String imgFilePath) {
+        return updateReferenceMap(cssFilePath, imgFilePath, ResourceMetadata.snapshot(null));
+    }
+
+    /**
+     * @param cssFilePath - css file path
+     * @param imgFilePath - img file path
+     * @param metadata    - resources metadata snapshot
+     * @return true if all goes well and paths are touched, false otherwise
+     */
+    public static boolean updateReferenceMap(String cssFilePath, String imgFilePath, ResourceMetadata metadata) {
         if (imgFilePath != null) {
-            File imgFile = new File(imgFilePath);
+            ResourceMetadata.FileStat imgFile = metadata.stat(imgFilePath);
             List<String> referencesList = CSS_IMG_REFERENCES.get(cssFilePath);
-            if (imgFile.isFile() && imgFile.exists()) {
+            if (imgFile.isFile()) {
                 if (referencesList == null) {
-                    referencesList = new LinkedList<>();
-                    referencesList.add(imgFilePath);
-                    CSS_IMG_REFERENCES.put(cssFilePath, referencesList);
+                    referencesList = CSS_IMG_REFERENCES.computeIfAbsent(cssFilePath, k -> new CopyOnWriteArrayList<>());
                 }
                 if (!referencesList.contains(imgFilePath)) {
                     referencesList.add(imgFilePath);
                 }
-                File cssFile = new File(cssFilePath);
-                if (cssFile.lastModified() < imgFile.lastModified()) { //means img got modified after css
+                if (metadata.stat(cssFilePath).getLastModified() < imgFile.getLastModified()) { //means img got modified after css
                     //so touch css file
-                    return cssFile.setLastModified(new Date().getTime());
+                    return metadata.touch(cssFilePath);
                 }
             } else if (referencesList != null) {
                 referencesList.remove(imgFilePath);
@@ -350,22 +390,31 @@ public final class Utils {
      * @return ETag string
      */
     public static String buildETagForResource(String relativePath, ServletContext context) {
+        return buildETagForResource(relativePath, ResourceMetadata.snapshot(context));
+    }
+
+    /**
+     * @param relativePath - relative path of res
+     * @param metadata     - resources metadata snapshot
+     * @return ETag string
+     */
+    public static String buildETagForResource(String relativePath, ResourceMetadata metadata) {
         String hashForETag = ":";
-        String realPath = context.getRealPath(relativePath);
+        String realPath = metadata.realPathOf(relativePath);
         if (realPath == null) return null;
-        File realFile = new File(realPath);
-        if (!realFile.isFile() || !realFile.exists()) return null;
+        ResourceMetadata.FileStat realFile = metadata.stat(realPath);
+        if (!realFile.isFile()) return null;
         if (realPath.endsWith(EXT_CSS)) { // check if any image references by this css has been modified or not
-            long cssLastModified = realFile.lastModified();
+            long cssLastModified = realFile.getLastModified();
 
-            final List<String> referencedImages = new ArrayList<>(CSS_IMG_REFERENCES.getOrDefault(realPath,Collections.emptyList()));
+            final List<String> referencedImages = CSS_IMG_REFERENCES.getOrDefault(realPath, Collections.emptyList());
             if (!referencedImages.isEmpty()) {
                 for (String referenceImage : referencedImages) {
-                    File imgFile = new File(referenceImage);
-                    if (imgFile.isFile() && imgFile.exists()) {
-                        if (cssLastModified < imgFile.lastModified()) { //means ref img got modified after css
+                    ResourceMetadata.FileStat imgFile = metadata.stat(referenceImage);
+                    if (imgFile.isFile()) {
+                        if (cssLastModified < imgFile.getLastModified()) { //means ref img got modified after css
                             //so touch css file
-                            realFile.setLastModified(new Date().getTime());
+                            metadata.touch(realPath);
                             break;
                         }
                     }
@@ -373,9 +422,7 @@ public final class Utils {
 
             } else {
 
-                BufferedReader bufferedReader;
-                try {
-                    bufferedReader = new BufferedReader(new FileReader(realPath));
+                try (BufferedReader bufferedReader = new BufferedReader(new FileReader(realPath))) {
                     String line;
                     while ((line = bufferedReader.readLine()) != null) {
                         Matcher matcher = CSS_IMG_URL_PATTERN.matcher(line);
@@ -387,7 +434,7 @@ public final class Utils {
                                     resolvedImgPath = Utils.buildProperPath(Utils.getParentPath(realPath), refImgPath);
                                 }
 
-                                if (updateReferenceMap(realPath, resolvedImgPath)) {
+                                if (updateReferenceMap(realPath, resolvedImgPath, metadata)) {
                                     break;
                                 }
 
@@ -401,54 +448,65 @@ public final class Utils {
                 }
             }
         }
-        String hash = Utils.simpleHashOf(realPath);
+        if (metadata.isContentHashETags()) {
+            return Utils.contentHashOf(realPath, metadata);
+        }
+        String hash = Utils.simpleHashOf(metadata.stat(realPath));
         hashForETag = hashForETag + (hash != null ? ":" + hash : "");
         return hashForETag.length() > 0 ? hexDigestString(hashForETag.getBytes()) : null;
     }
 
     /**
-     * @param headerDateString - from request header
-     * @return Date object after reading from header string
+     * Calculates hash from the contents of the file, and for css also from the contents of images it refers.
+     *
+     * @param realPath - real path of the file
+     * @param metadata - resources metadata snapshot
+     * @return hex digest of the contents, null if file can't be read
      */
-    public static Date readDateFromHeader(String headerDateString) {
-
-        SimpleDateFormat simpleDateFormat = new SimpleDateFormat(DATE_PATTERN_HTTP_HEADER, DEFAULT_LOCALE_US);
-        try {
-            return simpleDateFormat.parse(headerDateString);
-        } catch (Exception e) {
-            LOGGER.warn("Date parsing using HTTP header pattern failed.");
-        }
-
-        //try another rfc1123
-        simpleDateFormat = new SimpleDateFormat(DATE_PATTERN_RFC_1123, DEFAULT_LOCALE_US);
-        try {
-            return simpleDateFormat.parse(headerDateString);
-        } catch (Exception e) {
-            LOGGER.warn("Date parsing using RFC_1123 pattern failed.");
+    private static String contentHashOf(String realPath, ResourceMetadata metadata) {
+        String digest = DigestIndex.digestOf(metadata.stat(realPath));
+        if (digest == null || !realPath.endsWith(EXT_CSS)) return digest;
+        List<String> referencedImages = new ArrayList<>(CSS_IMG_REFERENCES.getOrDefault(realPath, Collections.emptyList()));
+        if (referencedImages.isEmpty()) return digest;
+        Collections.sort(referencedImages); //same order every time
+        StringBuilder digests = new StringBuilder(digest);
+        for (String referencedImage : referencedImages) {
+            String imageDigest = DigestIndex.digestOf(metadata.stat(referencedImage));
+            if (imageDigest != null) {
+                digests.append(':').append(imageDigest);
+            }
         }
+        return DigestIndex.digestOf(digests.toString().getBytes());
+    }
 
-        //try another rfc1036
-        simpleDateFormat = new SimpleDateFormat(DATE_PATTERN_RFC_1036, DEFAULT_LOCALE_US);
-        try {
-            return simpleDateFormat.parse(headerDateString);
-        } catch (Exception e) {
-            LOGGER.warn("Date parsing using RFC_1036 pattern failed.");
-        }
+    /**
+     * @param headerDateString - from request header
+     * @return Date object after reading from header string, null if it is not an HTTP date
+     */
+    public static Date readDateFromHeader(String headerDateString) {
+        long time = readTimeFromHeader(headerDateString);
+        return time != HttpDateCodec.INVALID ? new Date(time) : null;
+    }
 
-        //try another ansi
-        simpleDateFormat = new SimpleDateFormat(DATE_PATTERN_ANSI_C, DEFAULT_LOCALE_US);
-        try {
-            return simpleDateFormat.parse(headerDateString);
-        } catch (Exception e) {
-            LOGGER.warn("Date is not even ANSI C pattern.");
+    /**
+     * @param headerDateString - from request header
+     * @return milliseconds since epoch after reading from header string, {@link HttpDateCodec#INVALID} if it is not an
+     * HTTP date
+     */
+    public static long readTimeFromHeader(String headerDateString) {
+        long time = HttpDateCodec.parse(headerDateString);
+        if (time == HttpDateCodec.INVALID && headerDateString != null) {
+            LOGGER.debug("Not an HTTP date: {}", headerDateString);
         }
-
-        return null;
+        return time;
     }
 
+    /**
+     * @param time - milliseconds since epoch
+     * @return HTTP date (IMF-fixdate, always GMT) for the time
+     */
     public static String forHeaderDate(long time) {
-        SimpleDateFormat simpleDateFormat = new SimpleDateFormat(DATE_PATTERN_HTTP_HEADER, DEFAULT_LOCALE_US);
-        return simpleDateFormat.format(time);
+        return HttpDateCodec.format(time);
     }
 
     public static String hexDigestString(byte[] data) {
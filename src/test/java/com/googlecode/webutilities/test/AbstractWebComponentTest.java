@@ -151,7 +151,7 @@ public abstract class AbstractWebComponentTest {
         if (headers != null && !headers.trim().equals("")) {
             String[] headersString = headers.split("&");
             for (String header : headersString) {
-                String[] nameValue = header.split("=");
+                String[] nameValue = header.split("=", 2);
                 if (nameValue.length == 2 && nameValue[1].contains("hashOf")) {
                     String res = nameValue[1].replaceAll(".*hashOf\\s*\\((.*)\\).*", "$1");
                     nameValue[1] = Utils.buildETagForResource(res, webMockObjectFactory.getMockServletContext());
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2010-2016 Rajendra Patil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.webutilities.test.common;
+
+import com.googlecode.webutilities.common.WebUtilitiesResponseWrapper;
+import com.googlecode.webutilities.common.cache.Cache;
+import com.googlecode.webutilities.common.cache.CacheConfig;
+import com.googlecode.webutilities.common.cache.CacheFactory;
+import com.googlecode.webutilities.common.cache.CachedResponse;
+import com.googlecode.webutilities.common.cache.CachedResponseCodec;
+import com.googlecode.webutilities.common.cache.impl.CompressingCache;
+import com.mockrunner.mock.web.MockHttpServletResponse;
+import com.mockrunner.mock.web.MockServletOutputStream;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Compressed bodies of cached responses, and how they are kept in the binary format
+ */
+public class CachedResponseCompressionTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int THRESHOLD = 1024;
+
+    @Test
+    public void testBodyAboveThresholdIsDeflated() throws Exception {
+        byte[] body = script(200);
+        CachedResponse response = response(body);
+
+        CachedResponse compressed = response.compressed(THRESHOLD);
+        Assert.assertEquals(CachedResponse.BODY_CODEC_DEFLATE, compressed.getBodyCodec());
+        Assert.assertTrue(compressed.getBodies()[0].length < body.length);
+
+        CachedResponse decompressed = compressed.decompressed();
+        Assert.assertNull(decompressed.getBodyCodec());
+        Assert.assertArrayEquals(body, decompressed.getBodies()[0]);
+        Assert.assertArrayEquals(body, this.sent(decompressed));
+    }
+
+    @Test
+    public void testBodyBelowThresholdIsAsRendered() throws Exception {
+        byte[] body = "var small = true;".getBytes(UTF_8);
+        CachedResponse response = response(body);
+
+        CachedResponse compressed = response.compressed(THRESHOLD);
+        Assert.assertSame(response, compressed);
+        Assert.assertNull(compressed.getBodyCodec());
+        Assert.assertSame(compressed, compressed.decompressed());
+
+        byte[] bytes = CachedResponseCodec.encode(compressed);
+        Assert.assertEquals(1, bytes[2]); //format version
+        CachedResponse decoded = CachedResponseCodec.decode(bytes);
+        Assert.assertNotNull(decoded);
+        Assert.assertNull(decoded.getBodyCodec());
+        Assert.assertArrayEquals(body, decoded.getBodies()[0]);
+    }
+
+    @Test
+    public void testEncodedBodiesSurviveCompression() throws Exception {
+        byte[] body = script(200);
+        CachedResponse response = response(body);
+        Assert.assertTrue(response.toResponse(new MockHttpServletResponse(), "gzip"));
+        Assert.assertTrue(response.toResponse(new MockHttpServletResponse(), "deflate"));
+        byte[][] bodies = response.getBodies();
+        Assert.assertNotNull(bodies[1]);
+        Assert.assertNotNull(bodies[2]);
+
+        CachedResponse compressed = CachedResponseCodec.decode(CachedResponseCodec.encode(response.compressed(THRESHOLD)));
+        Assert.assertNotNull(compressed);
+        Assert.assertEquals(CachedResponse.BODY_CODEC_DEFLATE, compressed.getBodyCodec());
+        CachedResponse decompressed = compressed.decompressed();
+        Assert.assertArrayEquals(body, decompressed.getBodies()[0]);
+        Assert.assertArrayEquals(bodies[1], decompressed.getBodies()[1]);
+        Assert.assertArrayEquals(bodies[2], decompressed.getBodies()[2]);
+        Assert.assertFalse(decompressed.toResponse(new MockHttpServletResponse(), "gzip")); //not made again
+    }
+
+    @Test
+    public void testFormatVersions() throws Exception {
+        byte[] body = script(200);
+        byte[] bytes = CachedResponseCodec.encode(response(body).compressed(THRESHOLD));
+        Assert.assertEquals(2, bytes[2]); //compressed body version
+
+        CachedResponse decoded = CachedResponseCodec.decode(bytes);
+        Assert.assertNotNull(decoded);
+        Assert.assertEquals(CachedResponse.BODY_CODEC_DEFLATE, decoded.getBodyCodec());
+        Assert.assertArrayEquals(body, decoded.decompressed().getBodies()[0]);
+
+        byte[] unknown = Arrays.copyOf(bytes, bytes.length);
+        unknown[2] = 3;
+        Assert.assertNull(CachedResponseCodec.decode(unknown));
+        Assert.assertNull(CachedResponseCodec.toObject(unknown));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testCompressingCache() throws Exception {
+        CacheConfig<String, CachedResponse> config = new CacheConfig<>();
+        config.setCompressThreshold(THRESHOLD);
+        Cache<String, CachedResponse> cache = CacheFactory.getCache(config);
+        try {
+            Assert.assertTrue(cache instanceof CompressingCache);
+            Cache<String, CachedResponse> delegate = ((CompressingCache<String, CachedResponse>) cache).getDelegate();
+            byte[] large = script(200);
+            byte[] small = "var small = true;".getBytes(UTF_8);
+            cache.put("large", response(large));
+            cache.put("small", response(small));
+
+            Assert.assertEquals(CachedResponse.BODY_CODEC_DEFLATE, delegate.get("large").getBodyCodec());
+            Assert.assertNull(delegate.get("small").getBodyCodec());
+            Assert.assertArrayEquals(large, this.sent(cache.get("large")));
+            Assert.assertArrayEquals(small, this.sent(cache.get("small")));
+        } finally {
+            cache.cleanup();
+        }
+    }
+
+    private byte[] sent(CachedResponse response) throws IOException {
+        MockHttpServletResponse servletResponse = new MockHttpServletResponse();
+        response.toResponse(servletResponse);
+        servletResponse.getOutputStream().flush();
+        return ((MockServletOutputStream) servletResponse.getOutputStream()).getBinaryContent();
+    }
+
+    private static byte[] script(int lines) {
+        StringBuilder script = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            script.append("var v").append(i).append(" = ").append(i).append(";\n");
+        }
+        return script.toString().getBytes(UTF_8);
+    }
+
+    private static CachedResponse response(byte[] body) throws IOException {
+        WebUtilitiesResponseWrapper wrapper = new WebUtilitiesResponseWrapper(new MockHttpServletResponse());
+        wrapper.setContentType("text/javascript");
+        wrapper.setHeader("X-Test", "compressed");
+        wrapper.getOutputStream().write(body);
+        return new CachedResponse(System.currentTimeMillis() / 1000 * 1000, wrapper);
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2010-2016 Rajendra Patil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.webutilities.test.common;
+
+import com.googlecode.webutilities.common.cache.CacheConfig;
+import com.googlecode.webutilities.common.cache.impl.RedisCache;
+import com.googlecode.webutilities.test.util.RespStandIn;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bulk operations of {@link RedisCache} against an in process server speaking RESP, one command and one round trip
+ * each
+ */
+public class RespBulkOperationsTest {
+
+    private static final int PORT = 16380;
+
+    private static RespStandIn redis;
+
+    @BeforeClass
+    public static void startRedis() throws IOException {
+        redis = new RespStandIn(PORT);
+    }
+
+    @AfterClass
+    public static void stopRedis() throws IOException {
+        redis.close();
+    }
+
+    @Test
+    public void testBulkOperationsTakeOneRoundTrip() throws Exception {
+        CacheConfig<String, String> config = new CacheConfig<>(CacheConfig.CacheProvider.REDIS, "localhost", PORT, 30, 0);
+        RedisCache<String, String> cache = new RedisCache<>(config);
+        try {
+            Assert.assertNull(cache.get("bulk-warm-up")); //connection is made
+            Map<String, String> entries = new LinkedHashMap<>();
+            for (char c = 'a'; c <= 'e'; c++) {
+                entries.put("bulk-" + c, "value-" + c);
+            }
+            List<String> keys = new ArrayList<>(entries.keySet());
+            keys.add("bulk-missing");
+
+            redis.resetCounts();
+            cache.putAll(entries);
+            Assert.assertEquals(Collections.nCopies(entries.size(), "SETEX"), redis.getCommands());
+            Assert.assertEquals(1, redis.getRoundTrips()); //pipelined
+            Assert.assertEquals(30, redis.getTtl("bulk-a"));
+
+            redis.resetCounts();
+            Assert.assertEquals(entries, cache.getAll(keys));
+            Assert.assertEquals(Collections.singletonList("MGET"), redis.getCommands());
+            Assert.assertEquals(1, redis.getRoundTrips());
+
+            redis.resetCounts();
+            cache.invalidateAll(keys);
+            Assert.assertEquals(Collections.singletonList("DEL"), redis.getCommands());
+            Assert.assertEquals(1, redis.getRoundTrips());
+            Assert.assertTrue(cache.getAll(keys).isEmpty());
+        } finally {
+            cache.cleanup();
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2010-2016 Rajendra Patil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.webutilities.test.filters;
+
+import com.googlecode.webutilities.common.cache.Cache;
+import com.googlecode.webutilities.common.cache.CacheConfig;
+import com.googlecode.webutilities.common.cache.CacheFactory;
+import com.googlecode.webutilities.common.cache.impl.MemcachedCache;
+import com.googlecode.webutilities.common.cache.impl.TieredCache;
+import com.googlecode.webutilities.common.cache.impl.WriteBehindCache;
+import com.googlecode.webutilities.test.util.MemcachedStandIn;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Same scenarios as {@link MemcachedResponseCacheFilterTest}, against an in process memcached speaking binary protocol
+ */
+public class BinaryProtocolResponseCacheFilterTest extends ResponseCacheFilterTest {
+
+    private static final int PORT = 21211;
+
+    private static MemcachedStandIn memcached;
+
+    @BeforeClass
+    public static void startMemcached() throws IOException {
+        memcached = new MemcachedStandIn(PORT);
+    }
+
+    @AfterClass
+    public static void stopMemcached() throws IOException {
+        memcached.close();
+    }
+
+    @Override
+    protected String getTestPropertiesName() {
+        return BinaryProtocolResponseCacheFilterTest.class.getSimpleName() + ".properties";
+    }
+
+    @Override
+    public void testAllDefinedScenarios() throws Exception {
+        super.testAllDefinedScenarios();
+        Assert.assertTrue(memcached.getSets() > 0); //not the fallback default cache
+        Assert.assertTrue(memcached.getGets() > 0);
+    }
+
+    @Test
+    public void testSlowServerIsAMiss() throws Exception {
+        CacheConfig<String, String> config = new CacheConfig<>(CacheConfig.CacheProvider.MEMCACHED, "localhost", PORT, 0, 0);
+        config.setBinaryProtocol(true);
+        config.setOperationTimeout(200);
+        MemcachedCache<String, String> cache = new MemcachedCache<>(config);
+        try {
+            cache.put("slow", "value");
+            Assert.assertEquals("value", cache.get("slow"));
+            Assert.assertEquals("value", cache.getAll(Arrays.asList("slow", "missing")).get("slow"));
+
+            memcached.setGetDelayMillis(1000);
+            long start = System.currentTimeMillis();
+            Assert.assertNull(cache.get("slow"));
+            Map<String, String> values = cache.getAll(Arrays.asList("slow", "missing"));
+            Assert.assertTrue(values.isEmpty());
+            Assert.assertTrue(System.currentTimeMillis() - start < 1000);
+        } finally {
+            memcached.setGetDelayMillis(0);
+            cache.cleanup();
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testWriteBehind() throws Exception {
+        CacheConfig<String, String> config = new CacheConfig<>(CacheConfig.CacheProvider.MEMCACHED, "localhost", PORT, 0, 0);
+        config.setBinaryProtocol(true);
+        config.setWriteBehind(true);
+        Cache<String, String> cache = CacheFactory.getCache(config);
+        try {
+            Assert.assertTrue(cache instanceof WriteBehindCache);
+            Assert.assertTrue(CacheFactory.isCacheProvider(cache, CacheConfig.CacheProvider.MEMCACHED));
+            WriteBehindCache<String, String> writeBehind = (WriteBehindCache<String, String>) cache;
+            Cache<String, String> remote = writeBehind.getDelegate();
+            cache.put("behind", "value");
+            Assert.assertEquals("value", cache.get("behind")); //queued or written
+            writeBehind.flush();
+            Assert.assertEquals("value", remote.get("behind"));
+
+            cache.put("behind", "stale");
+            cache.invalidate("behind");
+            writeBehind.flush();
+            Assert.assertNull(cache.get("behind"));
+            Assert.assertNull(remote.get("behind"));
+            Assert.assertEquals(0, writeBehind.getDroppedCount());
+        } finally {
+            cache.cleanup();
+        }
+    }
+
+    @Test
+    public void testTagInvalidation() throws Exception {
+        CacheConfig<String, String> config = new CacheConfig<>(CacheConfig.CacheProvider.MEMCACHED, "localhost", PORT, 0, 0);
+        config.setBinaryProtocol(true);
+        MemcachedCache<String, String> cache = new MemcachedCache<>(config);
+        try {
+            cache.put("tagged-a", "a", Arrays.asList("app:/tags", "res:/a.js"));
+            cache.put("tagged-b", "b", Arrays.asList("app:/tags", "res:/b.js"));
+            cache.put("untagged", "c");
+            Assert.assertEquals("a", cache.get("tagged-a"));
+            Assert.assertEquals(3, cache.getAll(Arrays.asList("tagged-a", "tagged-b", "untagged")).size());
+
+            cache.invalidateTag("res:/a.js");
+            Assert.assertNull(cache.get("tagged-a"));
+            Assert.assertEquals("b", cache.get("tagged-b"));
+
+            cache.put("tagged-a", "a2", Arrays.asList("app:/tags", "res:/a.js")); //tagged after invalidation
+            Assert.assertEquals("a2", cache.get("tagged-a"));
+
+            cache.invalidateTag("app:/tags");
+            Map<String, String> values = cache.getAll(Arrays.asList("tagged-a", "tagged-b", "untagged"));
+            Assert.assertEquals(1, values.size());
+            Assert.assertEquals("c", values.get("untagged"));
+        } finally {
+            cache.cleanup();
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testTieredCache() throws Exception {
+        CacheConfig<String, String> config = new CacheConfig<>(CacheConfig.CacheProvider.MEMCACHED, "localhost", PORT, 0, 0);
+        config.setBinaryProtocol(true);
+        config.setLocalTier(true);
+        Cache<String, String> cache = CacheFactory.getCache(config);
+        try {
+            Assert.assertTrue(cache instanceof TieredCache);
+            Assert.assertTrue(CacheFactory.isCacheProvider(cache, CacheConfig.CacheProvider.MEMCACHED));
+            Cache<String, String> remote = ((TieredCache<String, String>) cache).getRemote();
+
+            cache.put("tiered", "a");
+            Assert.assertEquals("a", remote.get("tiered")); //written through
+            int gets = memcached.getGets();
+            Assert.assertEquals("a", cache.get("tiered"));
+            Assert.assertEquals(gets, memcached.getGets()); //from local tier
+
+            remote.put("promoted", "b"); //as if put by another server
+            gets = memcached.getGets();
+            Assert.assertEquals("b", cache.get("promoted")); //read through
+            Assert.assertEquals(gets + 1, memcached.getGets());
+            Assert.assertEquals("b", cache.get("promoted")); //promoted
+            Assert.assertEquals(gets + 1, memcached.getGets());
+
+            cache.invalidate("tiered");
+            cache.invalidate("promoted");
+            Assert.assertNull(remote.get("tiered"));
+            Assert.assertNull(remote.get("promoted"));
+            Assert.assertNull(cache.get("tiered"));
+            Assert.assertNull(cache.get("promoted"));
+
+            cache.put("tagged", "c", Arrays.asList("app:/tiered"));
+            Assert.assertEquals("c", cache.get("tagged"));
+            cache.invalidateTag("app:/tiered");
+            Assert.assertNull(remote.get("tagged"));
+            Assert.assertNull(cache.get("tagged"));
+        } finally {
+            cache.cleanup();
+        }
+    }
+}
@@ -0,0 +1,406 @@
+/*
+ * Copyright 2010-2016 Rajendra Patil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.webutilities.test.filters;
+
+import com.googlecode.webutilities.common.cache.Cache;
+import com.googlecode.webutilities.common.cache.CachedResponse;
+import com.googlecode.webutilities.filters.ResponseCacheFilter;
+import com.mockrunner.mock.web.MockFilterConfig;
+import com.mockrunner.mock.web.MockHttpServletRequest;
+import com.mockrunner.mock.web.MockHttpServletResponse;
+import com.mockrunner.mock.web.MockServletContext;
+import com.mockrunner.mock.web.MockServletOutputStream;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Drives {@link ResponseCacheFilter} directly with a chain that can be made to fail, and a resource that can be
+ * modified after its response is cached, which the scenarios in properties can't do.
+ */
+public class ResponseCacheFilterChainTest {
+
+    private static final String RESOURCE = "/js/chain.js";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final FilterChain THROWING = (request, response) -> {
+        throw new ServletException("rendering failed");
+    };
+
+    private static final FilterChain FAILING = (request, response) -> {
+        ((HttpServletResponse) response).setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        response.getOutputStream().write("failed".getBytes(UTF_8));
+    };
+
+    private final MockServletContext servletContext = new MockServletContext();
+
+    private final long now = System.currentTimeMillis() / 1000 * 1000; //as precise as header dates
+
+    private ResponseCacheFilter responseCacheFilter;
+
+    private Path directory;
+
+    private int version;
+
+    private final FilterChain rendering = (request, response) -> {
+        response.setContentType("text/javascript");
+        response.getOutputStream().write(Files.readAllBytes(Paths.get(servletContext.getRealPath(RESOURCE))));
+    };
+
+    @Before
+    public void createResourceDirectory() throws IOException {
+        directory = Files.createTempDirectory("response-cache-chain");
+    }
+
+    @After
+    public void cleanup() {
+        if (responseCacheFilter != null) {
+            responseCacheFilter.destroy();
+        }
+        File[] files = directory.toFile().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.toFile().delete();
+    }
+
+    @Test
+    public void testStaleWhileRevalidate() throws Exception {
+        this.init("staleWhileRevalidate", "60");
+        this.publish("var v = 1;", now - 300000);
+        this.assertResponse(this.get(rendering), "ADDED", "var v = 1;");
+
+        this.publish("var v = 2;", now - 10000);
+        this.assertResponse(this.get(rendering), "STALE", "var v = 1;");
+        this.assertResponse(this.get(rendering), "FOUND", "var v = 2;"); //revalidated after the stale one was sent
+    }
+
+    @Test
+    public void testRevalidatedLargerThanMaxCacheableSize() throws Exception {
+        this.init("staleWhileRevalidate", "60", "maxCacheableSize", "20");
+        this.publish("var v = 1;", now - 300000);
+        this.assertResponse(this.get(rendering), "ADDED", "var v = 1;");
+
+        String large = "var v = 'larger than twenty bytes';";
+        this.publish(large, now - 10000);
+        this.assertResponse(this.get(rendering), "STALE", "var v = 1;");
+        this.assertResponse(this.get(rendering), "NOT_FOUND", large); //neither cached nor the stale one kept
+    }
+
+    @Test
+    public void testStaleIfErrorIsNotRevalidated() throws Exception {
+        this.init("staleIfError", "60");
+        this.publish("var v = 1;", now - 300000);
+        this.assertResponse(this.get(rendering), "ADDED", "var v = 1;");
+
+        this.publish("var v = 2;", now);
+        this.assertResponse(this.get(rendering), "ADDED", "var v = 2;"); //rendered fresh, stale one only on errors
+    }
+
+    @Test
+    public void testStaleModifiedInFuture() throws Exception {
+        this.init("staleWhileRevalidate", "60", "staleIfError", "60");
+        this.publish("var v = 1;", now - 300000);
+        this.assertResponse(this.get(rendering), "ADDED", "var v = 1;");
+
+        this.publish("var v = 2;", now + 30000);
+        this.assertResponse(this.get(rendering), "ADDED", "var v = 2;");
+    }
+
+    @Test
+    public void testStaleIfErrorWhenChainThrows() throws Exception {
+        this.init("staleIfError", "60");
+        this.publish("var v = 1;", now - 300000);
+        this.assertResponse(this.get(rendering), "ADDED", "var v = 1;");
+
+        this.publish("var v = 2;", now - 10000);
+        this.assertResponse(this.get(THROWING), "STALE", "var v = 1;");
+        this.assertResponse(this.get(rendering), "ADDED", "var v = 2;");
+    }
+
+    @Test
+    public void testStaleIfErrorWhenChainFails() throws Exception {
+        this.init("staleIfError", "60");
+        this.publish("var v = 1;", now - 300000);
+        this.assertResponse(this.get(rendering), "ADDED", "var v = 1;");
+
+        this.publish("var v = 2;", now - 10000);
+        MockHttpServletResponse response = this.get(FAILING);
+        this.assertResponse(response, "STALE", "var v = 1;");
+        Assert.assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+    }
+
+    @Test
+    public void testErrorBeyondStaleIfError() throws Exception {
+        this.init("staleIfError", "60");
+        this.publish("var v = 1;", now - 300000);
+        this.assertResponse(this.get(rendering), "ADDED", "var v = 1;");
+
+        this.publish("var v = 2;", now - 120000);
+        try {
+            this.get(THROWING);
+            Assert.fail("Stale response served beyond staleIfError");
+        } catch (ServletException ex) {
+            Assert.assertEquals("rendering failed", ex.getMessage());
+        }
+        MockHttpServletResponse response = this.get(FAILING);
+        Assert.assertEquals(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, response.getStatus());
+        this.assertResponse(response, "NOT_FOUND", "failed");
+    }
+
+    @Test
+    public void testCoalescedRequests() throws Exception {
+        this.init("coalesceRequests", "true", "coalesceTimeout", "10000");
+        this.publish("var v = 1;", now - 300000);
+        AtomicInteger renders = new AtomicInteger();
+        CountDownLatch rendering = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        FilterChain blocking = this.blockingFirst(renders, rendering, release);
+
+        MockHttpServletResponse[] responses = new MockHttpServletResponse[5];
+        Thread[] requests = new Thread[responses.length];
+        requests[0] = this.request(blocking, responses, 0);
+        Assert.assertTrue(rendering.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i < requests.length; i++) {
+            requests[i] = this.request(blocking, responses, i);
+        }
+        for (int i = 1; i < requests.length; i++) {
+            this.awaitWaiting(requests[i]);
+        }
+        release.countDown();
+        for (Thread request : requests) {
+            request.join(5000);
+        }
+
+        Assert.assertEquals(1, renders.get());
+        this.assertResponse(responses[0], "ADDED", "var v = 1;");
+        for (int i = 1; i < responses.length; i++) {
+            this.assertResponse(responses[i], "FOUND", "var v = 1;");
+        }
+    }
+
+    @Test
+    public void testCoalesceTimeout() throws Exception {
+        this.init("coalesceRequests", "true", "coalesceTimeout", "100");
+        this.publish("var v = 1;", now - 300000);
+        AtomicInteger renders = new AtomicInteger();
+        CountDownLatch rendering = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        FilterChain blocking = this.blockingFirst(renders, rendering, release);
+
+        MockHttpServletResponse[] responses = new MockHttpServletResponse[1];
+        Thread leader = this.request(blocking, responses, 0);
+        Assert.assertTrue(rendering.await(5, TimeUnit.SECONDS));
+        long start = System.currentTimeMillis();
+        this.assertResponse(this.get(blocking), "ADDED", "var v = 1;"); //gave up waiting, rendered itself
+        Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+        release.countDown();
+        leader.join(5000);
+
+        Assert.assertEquals(2, renders.get());
+        this.assertResponse(responses[0], "ADDED", "var v = 1;");
+    }
+
+    @Test
+    public void testStoreCompressed() throws Exception {
+        this.init("storeCompressed", "true");
+        CountingCache cache = new CountingCache();
+        responseCacheFilter.setCache(cache);
+        StringBuilder script = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            script.append("var v").append(i).append(" = ").append(i).append(";\n");
+        }
+        this.publish(script.toString(), now - 300000);
+
+        this.assertResponse(this.get(rendering, "gzip, deflate"), "ADDED", script.toString());
+        Assert.assertEquals(1, cache.puts.get());
+
+        for (int hit = 0; hit < 2; hit++) {
+            MockHttpServletResponse response = this.get(rendering, "gzip, deflate");
+            Assert.assertEquals("FOUND", response.getHeader(ResponseCacheFilter.CACHE_HEADER));
+            Assert.assertEquals("gzip", response.getHeader("Content-Encoding"));
+            Assert.assertEquals("Accept-Encoding", response.getHeader("Vary"));
+            Assert.assertEquals(script.toString(), new String(gunzip(this.bodyOf(response)), UTF_8));
+            Assert.assertEquals(2, cache.puts.get()); //put back once when gzip body is made, not on later hits
+        }
+
+        this.assertResponse(this.get(rendering), "FOUND", script.toString()); //identity for clients not accepting gzip
+        Assert.assertEquals(2, cache.puts.get());
+    }
+
+    private void init(String... initParams) throws ServletException {
+        MockFilterConfig filterConfig = new MockFilterConfig();
+        filterConfig.setupServletContext(servletContext);
+        for (int i = 0; i < initParams.length; i += 2) {
+            filterConfig.setInitParameter(initParams[i], initParams[i + 1]);
+        }
+        responseCacheFilter = new ExtendedMockResponseCacheFilter();
+        responseCacheFilter.init(filterConfig);
+    }
+
+    /**
+     * Puts new content of the resource in a new file, as attributes of the old one may still be shared by
+     * ResourceMetadata for a second.
+     */
+    private void publish(String content, long lastModified) throws IOException {
+        Path file = directory.resolve("chain-" + (version++) + ".js");
+        Files.write(file, content.getBytes(UTF_8));
+        Files.setLastModifiedTime(file, FileTime.fromMillis(lastModified));
+        servletContext.setRealPath(RESOURCE, file.toString());
+    }
+
+    /**
+     * Renders the resource, the first rendering blocks till it is released
+     */
+    private FilterChain blockingFirst(AtomicInteger renders, CountDownLatch rendering, CountDownLatch release) {
+        return (request, response) -> {
+            if (renders.incrementAndGet() == 1) {
+                rendering.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            this.rendering.doFilter(request, response);
+        };
+    }
+
+    private Thread request(FilterChain filterChain, MockHttpServletResponse[] responses, int index) {
+        Thread request = new Thread(() -> {
+            try {
+                responses[index] = this.get(filterChain);
+            } catch (IOException | ServletException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }, "request-" + index);
+        request.start();
+        return request;
+    }
+
+    private void awaitWaiting(Thread request) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (request.getState() != Thread.State.TIMED_WAITING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(Thread.State.TIMED_WAITING, request.getState());
+    }
+
+    private MockHttpServletResponse get(FilterChain filterChain) throws IOException, ServletException {
+        return this.get(filterChain, null);
+    }
+
+    private MockHttpServletResponse get(FilterChain filterChain, String acceptEncoding) throws IOException, ServletException {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setMethod("GET");
+        request.setContextPath("");
+        request.setRequestURI(RESOURCE);
+        if (acceptEncoding != null) {
+            request.addHeader("Accept-Encoding", acceptEncoding);
+        }
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        responseCacheFilter.doFilter(request, response, filterChain);
+        return response;
+    }
+
+    private void assertResponse(MockHttpServletResponse response, String cacheState, String body) throws IOException {
+        Assert.assertEquals(cacheState, response.getHeader(ResponseCacheFilter.CACHE_HEADER));
+        Assert.assertEquals(body, new String(this.bodyOf(response), UTF_8));
+    }
+
+    private byte[] bodyOf(MockHttpServletResponse response) throws IOException {
+        response.getOutputStream().flush();
+        return ((MockServletOutputStream) response.getOutputStream()).getBinaryContent();
+    }
+
+    private static byte[] gunzip(byte[] data) throws IOException {
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(data))) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * In memory cache counting puts, to see when responses are put back
+     */
+    private static class CountingCache implements Cache<String, CachedResponse> {
+
+        private final Map<String, CachedResponse> entries = new ConcurrentHashMap<>();
+
+        private final AtomicInteger puts = new AtomicInteger();
+
+        @Override
+        public void put(String key, CachedResponse value) {
+            puts.incrementAndGet();
+            entries.put(key, value);
+        }
+
+        @Override
+        public void put(String key, CachedResponse value, Collection<String> tags) {
+            this.put(key, value);
+        }
+
+        @Override
+        public CachedResponse get(String key) {
+            return entries.get(key);
+        }
+
+        @Override
+        public void invalidate(String key) {
+            entries.remove(key);
+        }
+
+        @Override
+        public void invalidateAll() {
+            entries.clear();
+        }
+
+        @Override
+        public void cleanup() {
+            entries.clear();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2010-2016 Rajendra Patil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.webutilities.test.servlets;
+
+import com.googlecode.webutilities.servlets.JSCSSMergeServlet;
+import com.mockrunner.mock.web.MockHttpServletRequest;
+import com.mockrunner.mock.web.MockHttpServletResponse;
+import com.mockrunner.mock.web.MockServletConfig;
+import com.mockrunner.mock.web.MockServletContext;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.ServletException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * Which responses are kept in the merged contents cache. A file rewritten with the same length and last modified time
+ * looks unchanged to the cache, so the old contents are served only if they were cached.
+ */
+public class JSCSSMergeServletBufferingTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final MockServletContext servletContext = new MockServletContext();
+
+    private JSCSSMergeServlet jscssMergeServlet;
+
+    private Path directory;
+
+    @Before
+    public void createResources() throws IOException {
+        directory = Files.createTempDirectory("merge-buffering");
+        this.write("/js/a.js", "var a = 1;");
+        this.write("/js/b.js", "var b = 1;");
+    }
+
+    @After
+    public void cleanup() {
+        if (jscssMergeServlet != null) {
+            jscssMergeServlet.destroy();
+        }
+        File[] files = directory.toFile().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.toFile().delete();
+    }
+
+    @Test
+    public void testSmallBundleIsCached() throws Exception {
+        this.init();
+        Assert.assertEquals("var a = 1;\nvar b = 1;", this.get("/js/a,b.js"));
+        this.write("/js/b.js", "var b = 2;");
+        Assert.assertEquals("var a = 1;\nvar b = 1;", this.get("/js/a,b.js"));
+    }
+
+    @Test
+    public void testSingleFileIsStreamed() throws Exception {
+        this.init();
+        Assert.assertEquals("var b = 1;", this.get("/js/b.js"));
+        this.write("/js/b.js", "var b = 2;");
+        Assert.assertEquals("var b = 2;", this.get("/js/b.js"));
+    }
+
+    @Test
+    public void testBundleTooBigForCacheIsStreamed() throws Exception {
+        StringBuilder big = new StringBuilder("var b = '");
+        for (int i = 0; i < 1024; i++) {
+            big.append('1');
+        }
+        this.write("/js/b.js", big.append("';").toString());
+        this.init(JSCSSMergeServlet.INIT_PARAM_MAX_CACHE_SIZE_IN_KB, "1");
+        Assert.assertEquals("var a = 1;\n" + big, this.get("/js/a,b.js"));
+        String changed = big.toString().replace('1', '2');
+        this.write("/js/b.js", changed);
+        Assert.assertEquals("var a = 1;\n" + changed, this.get("/js/a,b.js"));
+    }
+
+    /**
+     * Writes the resource, always with the same last modified time
+     */
+    private void write(String resourcePath, String contents) throws IOException {
+        Path file = directory.resolve(resourcePath.substring(resourcePath.lastIndexOf('/') + 1));
+        Files.write(file, contents.getBytes(UTF_8));
+        Files.setLastModifiedTime(file, FileTime.fromMillis(1000000000000L));
+        servletContext.setRealPath(resourcePath, file.toString());
+    }
+
+    private void init(String... initParams) throws ServletException {
+        MockServletConfig servletConfig = new MockServletConfig();
+        servletConfig.setServletContext(servletContext);
+        for (int i = 0; i < initParams.length; i += 2) {
+            servletConfig.setInitParameter(initParams[i], initParams[i + 1]);
+        }
+        jscssMergeServlet = new JSCSSMergeServlet();
+        jscssMergeServlet.init(servletConfig);
+    }
+
+    private String get(String uri) throws IOException, ServletException {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setMethod("GET");
+        request.setContextPath("");
+        request.setRequestURI(uri);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        jscssMergeServlet.service(request, response);
+        return response.getOutputStreamContent();
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2010-2016 Rajendra Patil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.webutilities.test.servlets;
+
+import com.googlecode.webutilities.servlets.JSCSSMergeServlet;
+import com.mockrunner.mock.web.MockHttpServletRequest;
+import com.mockrunner.mock.web.MockHttpServletResponse;
+import com.mockrunner.mock.web.MockServletConfig;
+import com.mockrunner.mock.web.MockServletContext;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Merging when one of the resources fails to be read: incomplete contents must be neither sent with 200 nor kept
+ */
+public class JSCSSMergeServletFailureTest {
+
+    private static final String BUNDLE = "/js/a,bad.js";
+
+    private static final String FAILING_RESOURCE = "/js/bad.js";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final AtomicBoolean failing = new AtomicBoolean(true);
+
+    private final MockServletContext servletContext = new MockServletContext() {
+        @Override
+        public synchronized InputStream getResourceAsStream(String path) {
+            if (!FAILING_RESOURCE.equals(path)) return super.getResourceAsStream(path);
+            return failing.get() ? new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    throw new IOException("disk error");
+                }
+            } : new ByteArrayInputStream("var bad = 2;".getBytes(UTF_8));
+        }
+    };
+
+    private JSCSSMergeServlet jscssMergeServlet;
+
+    private Path directory;
+
+    @Before
+    public void createResources() throws IOException {
+        directory = Files.createTempDirectory("merge-failure");
+        File a = directory.resolve("a.js").toFile();
+        Files.write(a.toPath(), "var a = 1;".getBytes(UTF_8));
+        servletContext.setRealPath("/js/a.js", a.getPath());
+        servletContext.setRealPath(FAILING_RESOURCE, directory.resolve("bad.js").toString()); //not a file, so it is streamed
+    }
+
+    @After
+    public void cleanup() {
+        if (jscssMergeServlet != null) {
+            jscssMergeServlet.destroy();
+        }
+        delete(directory.toFile());
+    }
+
+    @Test
+    public void testFailedReadIsNotSentNorCached() throws Exception {
+        this.init();
+        Assert.assertEquals(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, this.get().getErrorCode());
+
+        failing.set(false);
+        MockHttpServletResponse response = this.get();
+        Assert.assertFalse(response.wasErrorSent());
+        Assert.assertEquals(HttpServletResponse.SC_OK, response.getStatusCode());
+        Assert.assertEquals("var a = 1;\nvar bad = 2;", response.getOutputStreamContent());
+    }
+
+    @Test
+    public void testFailedParallelReadIsNotSentNorCached() throws Exception {
+        this.init(JSCSSMergeServlet.INIT_PARAM_PARALLEL_LOAD_THREADS, "2", JSCSSMergeServlet.INIT_PARAM_PARALLEL_LOAD_THRESHOLD, "2");
+        Assert.assertEquals(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, this.get().getErrorCode());
+
+        failing.set(false);
+        MockHttpServletResponse response = this.get();
+        Assert.assertFalse(response.wasErrorSent());
+        Assert.assertEquals("var a = 1;\nvar bad = 2;", response.getOutputStreamContent());
+    }
+
+    @Test
+    public void testFailedReadIsNotPrebuilt() throws Exception {
+        File bundlesDir = directory.resolve("bundles").toFile();
+        this.init(JSCSSMergeServlet.INIT_PARAM_PREBUILT_BUNDLES, BUNDLE,
+                JSCSSMergeServlet.INIT_PARAM_PREBUILT_BUNDLES_DIR, bundlesDir.getPath());
+        String[] prebuilt = bundlesDir.list();
+        Assert.assertNotNull(prebuilt);
+        Assert.assertEquals(0, prebuilt.length);
+
+        failing.set(false);
+        MockHttpServletResponse response = this.get();
+        Assert.assertFalse(response.wasErrorSent());
+        Assert.assertEquals("var a = 1;\nvar bad = 2;", response.getOutputStreamContent());
+    }
+
+    private void init(String... initParams) throws ServletException {
+        MockServletConfig servletConfig = new MockServletConfig();
+        servletConfig.setServletContext(servletContext);
+        for (int i = 0; i < initParams.length; i += 2) {
+            servletConfig.setInitParameter(initParams[i], initParams[i + 1]);
+        }
+        jscssMergeServlet = new JSCSSMergeServlet();
+        jscssMergeServlet.init(servletConfig);
+    }
+
+    private MockHttpServletResponse get() throws IOException, ServletException {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setMethod("GET");
+        request.setContextPath("");
+        request.setRequestURI(BUNDLE);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        jscssMergeServlet.service(request, response);
+        return response;
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -118,7 +118,11 @@ public class JSCSSMergeServletTest extends AbstractServletTest {
     @Override
     public void executeCurrentTestLogic() throws Exception {
 
-        servletTestModule.doGet();
+        if ("HEAD".equals(properties.getProperty(this.currentTestNumber + ".test.request.method"))) {
+            servletTestModule.doHead();
+        } else {
+            servletTestModule.doGet();
+        }
 
         MockHttpServletResponse response = webMockObjectFactory.getMockResponse();
 
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2010-2016 Rajendra Patil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.webutilities.test.util;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In process memcached server speaking (the part of) binary protocol the client uses: get, set, add, append, increment,
+ * delete, flush, noop and version. Entries never expire. Gets can be delayed to act as a slow server.
+ */
+public class MemcachedStandIn implements Closeable {
+
+    private static final int GET = 0x00, SET = 0x01, ADD = 0x02, DELETE = 0x04, INCREMENT = 0x05, FLUSH = 0x08, GETQ = 0x09, NOOP = 0x0a,
+            VERSION = 0x0b, GETK = 0x0c, GETKQ = 0x0d, APPEND = 0x0e;
+
+    private static final int NOT_FOUND = 0x0001, EXISTS = 0x0002, NOT_STORED = 0x0005, UNKNOWN_COMMAND = 0x0081;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ServerSocket serverSocket;
+
+    private final Map<String, byte[][]> entries = new ConcurrentHashMap<>(); // key -> {flags, value}
+
+    private final AtomicInteger gets = new AtomicInteger();
+
+    private final AtomicInteger sets = new AtomicInteger();
+
+    private volatile long getDelayMillis;
+
+    public MemcachedStandIn(int port) throws IOException {
+        this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::accept, "memcached-stand-in");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getGets() {
+        return gets.get();
+    }
+
+    public int getSets() {
+        return sets.get();
+    }
+
+    public void setGetDelayMillis(long getDelayMillis) {
+        this.getDelayMillis = getDelayMillis;
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    private void accept() {
+        try {
+            while (!serverSocket.isClosed()) {
+                Socket socket = serverSocket.accept();
+                Thread connection = new Thread(() -> this.serve(socket), "memcached-stand-in-connection");
+                connection.setDaemon(true);
+                connection.start();
+            }
+        } catch (IOException ex) {
+            //closed
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+            while (true) {
+                in.readUnsignedByte(); //magic
+                int opcode = in.readUnsignedByte();
+                int keyLength = in.readUnsignedShort();
+                int extrasLength = in.readUnsignedByte();
+                in.readUnsignedByte(); //data type
+                in.readUnsignedShort(); //vbucket
+                int bodyLength = in.readInt();
+                int opaque = in.readInt();
+                in.readLong(); //cas
+                byte[] extras = new byte[extrasLength];
+                in.readFully(extras);
+                byte[] keyBytes = new byte[keyLength];
+                in.readFully(keyBytes);
+                byte[] value = new byte[bodyLength - keyLength - extrasLength];
+                in.readFully(value);
+                String key = new String(keyBytes, "UTF-8");
+                switch (opcode) {
+                    case GET:
+                    case GETQ:
+                    case GETK:
+                    case GETKQ:
+                        gets.incrementAndGet();
+                        this.delay();
+                        byte[][] entry = entries.get(key);
+                        boolean withKey = opcode == GETK || opcode == GETKQ;
+                        if (entry != null) {
+                            respond(out, opcode, opaque, 0, entry[0], withKey ? keyBytes : new byte[0], entry[1]);
+                        } else if (opcode == GET || opcode == GETK) {
+                            respond(out, opcode, opaque, NOT_FOUND, new byte[0], withKey ? keyBytes : new byte[0], "Not found".getBytes("UTF-8"));
+                        }
+                        break;
+                    case SET:
+                        sets.incrementAndGet();
+                        entries.put(key, new byte[][]{new byte[]{extras[0], extras[1], extras[2], extras[3]}, value});
+                        respond(out, opcode, opaque, 0, new byte[0], new byte[0], new byte[0]);
+                        break;
+                    case ADD:
+                        byte[][] added = new byte[][]{new byte[]{extras[0], extras[1], extras[2], extras[3]}, value};
+                        respond(out, opcode, opaque, entries.putIfAbsent(key, added) == null ? 0 : EXISTS, new byte[0], new byte[0], new byte[0]);
+                        break;
+                    case APPEND:
+                        byte[][] appended = entries.computeIfPresent(key, (k, existing) -> {
+                            byte[] joined = Arrays.copyOf(existing[1], existing[1].length + value.length);
+                            System.arraycopy(value, 0, joined, existing[1].length, value.length);
+                            return new byte[][]{existing[0], joined};
+                        });
+                        respond(out, opcode, opaque, appended != null ? 0 : NOT_STORED, new byte[0], new byte[0], new byte[0]);
+                        break;
+                    case INCREMENT:
+                        long delta = number(extras, 0, 8);
+                        long initial = number(extras, 8, 8);
+                        boolean create = number(extras, 16, 4) != 0xFFFFFFFFL; //expiration of all ones: don't create
+                        byte[][] counter = entries.compute(key, (k, existing) -> {
+                            if (existing == null) {
+                                return create ? new byte[][]{new byte[4], String.valueOf(initial).getBytes(UTF_8)} : null;
+                            }
+                            long incremented = Long.parseLong(new String(existing[1], UTF_8).trim()) + delta;
+                            return new byte[][]{existing[0], String.valueOf(incremented).getBytes(UTF_8)};
+                        });
+                        if (counter == null) {
+                            respond(out, opcode, opaque, NOT_FOUND, new byte[0], new byte[0], "Not found".getBytes("UTF-8"));
+                        } else {
+                            long count = Long.parseLong(new String(counter[1], UTF_8));
+                            byte[] valueBytes = new byte[8];
+                            for (int i = 0; i < 8; i++) {
+                                valueBytes[i] = (byte) (count >>> (56 - 8 * i));
+                            }
+                            respond(out, opcode, opaque, 0, new byte[0], new byte[0], valueBytes);
+                        }
+                        break;
+                    case DELETE:
+                        respond(out, opcode, opaque, entries.remove(key) != null ? 0 : NOT_FOUND, new byte[0], new byte[0], new byte[0]);
+                        break;
+                    case FLUSH:
+                        entries.clear();
+                        respond(out, opcode, opaque, 0, new byte[0], new byte[0], new byte[0]);
+                        break;
+                    case NOOP:
+                        respond(out, opcode, opaque, 0, new byte[0], new byte[0], new byte[0]);
+                        break;
+                    case VERSION:
+                        respond(out, opcode, opaque, 0, new byte[0], new byte[0], "1.4.0".getBytes("UTF-8"));
+                        break;
+                    default:
+                        respond(out, opcode, opaque, UNKNOWN_COMMAND, new byte[0], new byte[0], new byte[0]);
+                }
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+        } catch (EOFException | SocketException ex) {
+            //client went away
+        } catch (IOException | InterruptedException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static long number(byte[] bytes, int offset, int length) {
+        long value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            value = value << 8 | (bytes[i] & 0xFF);
+        }
+        return value;
+    }
+
+    private void delay() throws InterruptedException {
+        if (getDelayMillis > 0) {
+            Thread.sleep(getDelayMillis);
+        }
+    }
+
+    private static void respond(DataOutputStream out, int opcode, int opaque, int status, byte[] extras, byte[] key,
+                                byte[] value) throws IOException {
+        out.writeByte(0x81);
+        out.writeByte(opcode);
+        out.writeShort(key.length);
+        out.writeByte(extras.length);
+        out.writeByte(0);
+        out.writeShort(status);
+        out.writeInt(extras.length + key.length + value.length);
+        out.writeInt(opaque);
+        out.writeLong(0);
+        out.write(extras);
+        out.write(key);
+        out.write(value);
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2010-2016 Rajendra Patil
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.webutilities.test.util;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In process Redis server speaking (the part of) RESP the client uses: get, set, setex, mget, del, sadd, smembers,
+ * expire, ttl, multi/exec, flushdb and ping. Entries never expire, their TTL is only recorded. Commands run and round
+ * trips (replies flushed after the client had nothing more to send) are counted.
+ */
+public class RespStandIn implements Closeable {
+
+    private static final Charset KEYS = Charset.forName("ISO-8859-1"); //byte per char, so binary keys round trip
+
+    private final ServerSocket serverSocket;
+
+    private final Map<String, byte[]> strings = new ConcurrentHashMap<>();
+
+    private final Map<String, Set<String>> sets = new ConcurrentHashMap<>();
+
+    private final Map<String, Integer> ttls = new ConcurrentHashMap<>();
+
+    private final List<String> commands = new CopyOnWriteArrayList<>();
+
+    private final AtomicInteger roundTrips = new AtomicInteger();
+
+    public RespStandIn(int port) throws IOException {
+        this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::accept, "resp-stand-in");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * @return names (upper cased) of the commands run so far
+     */
+    public List<String> getCommands() {
+        return new ArrayList<>(commands);
+    }
+
+    public int getRoundTrips() {
+        return roundTrips.get();
+    }
+
+    public void resetCounts() {
+        commands.clear();
+        roundTrips.set(0);
+    }
+
+    /**
+     * @return seconds the key was last set to expire in, -1 if it doesn't expire
+     */
+    public int getTtl(String key) {
+        return ttls.getOrDefault(key, -1);
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    private void accept() {
+        try {
+            while (!serverSocket.isClosed()) {
+                Socket socket = serverSocket.accept();
+                Thread connection = new Thread(() -> this.serve(socket), "resp-stand-in-connection");
+                connection.setDaemon(true);
+                connection.start();
+            }
+        } catch (IOException ex) {
+            //closed
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+             BufferedOutputStream out = new BufferedOutputStream(s.getOutputStream())) {
+            List<List<byte[]>> queued = null;
+            while (true) {
+                List<byte[]> command = readCommand(in);
+                String name = new String(command.get(0), KEYS).toUpperCase();
+                commands.add(name);
+                if (name.equals("MULTI")) {
+                    queued = new ArrayList<>();
+                    out.write("+OK\r\n".getBytes(KEYS));
+                } else if (name.equals("EXEC") && queued != null) {
+                    out.write(("*" + queued.size() + "\r\n").getBytes(KEYS));
+                    for (List<byte[]> transacted : queued) {
+                        this.run(transacted, out);
+                    }
+                    queued = null;
+                } else if (queued != null) {
+                    queued.add(command);
+                    out.write("+QUEUED\r\n".getBytes(KEYS));
+                } else {
+                    this.run(command, out);
+                }
+                if (in.available() == 0) {
+                    roundTrips.incrementAndGet(); //before the client can see the replies
+                    out.flush();
+                }
+            }
+        } catch (EOFException | SocketException ex) {
+            //client went away
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private void run(List<byte[]> command, OutputStream out) throws IOException {
+        String name = new String(command.get(0), KEYS).toUpperCase();
+        switch (name) {
+            case "PING":
+                out.write("+PONG\r\n".getBytes(KEYS));
+                break;
+            case "GET":
+                writeBulk(out, strings.get(key(command, 1)));
+                break;
+            case "SET":
+                strings.put(key(command, 1), command.get(2));
+                ttls.remove(key(command, 1));
+                out.write("+OK\r\n".getBytes(KEYS));
+                break;
+            case "SETEX":
+                strings.put(key(command, 1), command.get(3));
+                ttls.put(key(command, 1), Integer.parseInt(key(command, 2)));
+                out.write("+OK\r\n".getBytes(KEYS));
+                break;
+            case "MGET":
+                out.write(("*" + (command.size() - 1) + "\r\n").getBytes(KEYS));
+                for (int i = 1; i < command.size(); i++) {
+                    writeBulk(out, strings.get(key(command, i)));
+                }
+                break;
+            case "DEL":
+                int deleted = 0;
+                for (int i = 1; i < command.size(); i++) {
+                    boolean removed = strings.remove(key(command, i)) != null | sets.remove(key(command, i)) != null;
+                    ttls.remove(key(command, i));
+                    deleted += removed ? 1 : 0;
+                }
+                out.write((":" + deleted + "\r\n").getBytes(KEYS));
+                break;
+            case "SADD":
+                Set<String> members = sets.computeIfAbsent(key(command, 1), k -> ConcurrentHashMap.newKeySet());
+                int added = 0;
+                for (int i = 2; i < command.size(); i++) {
+                    added += members.add(key(command, i)) ? 1 : 0;
+                }
+                out.write((":" + added + "\r\n").getBytes(KEYS));
+                break;
+            case "SMEMBERS":
+                Set<String> set = sets.getOrDefault(key(command, 1), Collections.<String>emptySet());
+                out.write(("*" + set.size() + "\r\n").getBytes(KEYS));
+                for (String member : set) {
+                    writeBulk(out, member.getBytes(KEYS));
+                }
+                break;
+            case "EXPIRE":
+                boolean exists = strings.containsKey(key(command, 1)) || sets.containsKey(key(command, 1));
+                if (exists) {
+                    ttls.put(key(command, 1), Integer.parseInt(key(command, 2)));
+                }
+                out.write((exists ? ":1\r\n" : ":0\r\n").getBytes(KEYS));
+                break;
+            case "TTL":
+                out.write((":" + getTtl(key(command, 1)) + "\r\n").getBytes(KEYS));
+                break;
+            case "FLUSHDB":
+                strings.clear();
+                sets.clear();
+                ttls.clear();
+                out.write("+OK\r\n".getBytes(KEYS));
+                break;
+            default:
+                out.write(("-ERR unknown command '" + name + "'\r\n").getBytes(KEYS));
+        }
+    }
+
+    private static String key(List<byte[]> command, int index) {
+        return new String(command.get(index), KEYS);
+    }
+
+    private static void writeBulk(OutputStream out, byte[] value) throws IOException {
+        if (value == null) {
+            out.write("$-1\r\n".getBytes(KEYS));
+        } else {
+            out.write(("$" + value.length + "\r\n").getBytes(KEYS));
+            out.write(value);
+            out.write("\r\n".getBytes(KEYS));
+        }
+    }
+
+    private static List<byte[]> readCommand(DataInputStream in) throws IOException {
+        String header = readLine(in);
+        if (!header.startsWith("*")) throw new IOException("Inline commands are not supported: " + header);
+        int count = Integer.parseInt(header.substring(1));
+        List<byte[]> command = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int length = Integer.parseInt(readLine(in).substring(1));
+            byte[] argument = new byte[length];
+            in.readFully(argument);
+            readLine(in);
+            command.add(argument);
+        }
+        return command;
+    }
+
+    private static String readLine(DataInputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\r') {
+            if (c < 0) throw new EOFException();
+            line.append((char) c);
+        }
+        in.read(); // \n
+        return line.toString();
+    }
+}
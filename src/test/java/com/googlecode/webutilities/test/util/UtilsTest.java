@@ -14,6 +14,7 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.googlecode.webutilities.util.HttpDateCodec;
 import com.googlecode.webutilities.util.Utils;
 import com.mockrunner.mock.web.MockServletContext;
 import com.mockrunner.mock.web.WebMockObjectFactory;
@@ -94,4 +95,21 @@ public class UtilsTest {
 			start = false;
 		}
 	}
+
+	@Test
+	public void testHeaderDates() {
+		long time = 784111777000L; // Sun, 06 Nov 1994 08:49:37 GMT
+		Assert.assertEquals("Sun, 06 Nov 1994 08:49:37 GMT", Utils.forHeaderDate(time + 999));
+		Assert.assertEquals(time, Utils.readTimeFromHeader("Sun, 06 Nov 1994 08:49:37 GMT"));
+		Assert.assertEquals(time, Utils.readTimeFromHeader("Sunday, 06-Nov-94 08:49:37 GMT"));
+		Assert.assertEquals(time, Utils.readTimeFromHeader("Sun Nov  6 08:49:37 1994"));
+		Assert.assertEquals(time, Utils.readTimeFromHeader("Sun, 06 Nov 1994 08:49:37 GMT; length=1234"));
+		Assert.assertEquals(time, Utils.readTimeFromHeader("Sun, 06 Nov 1994 10:49:37 +0200"));
+		Assert.assertEquals(time, Utils.readDateFromHeader("Sun, 06 Nov 1994 08:49:37 GMT").getTime());
+		Assert.assertEquals(HttpDateCodec.INVALID, Utils.readTimeFromHeader("Sun, 31 Nov 1994 08:49:37 GMT"));
+		Assert.assertEquals(HttpDateCodec.INVALID, Utils.readTimeFromHeader("yesterday"));
+		Assert.assertNull(Utils.readDateFromHeader(null));
+		long now = System.currentTimeMillis() / 1000 * 1000;
+		Assert.assertEquals(now, Utils.readTimeFromHeader(Utils.forHeaderDate(now)));
+	}
 }
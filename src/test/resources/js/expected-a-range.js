@@ -0,0 +1 @@
+Person
\ No newline at end of file